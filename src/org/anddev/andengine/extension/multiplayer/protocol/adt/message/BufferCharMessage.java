@@ -0,0 +1,69 @@
+package org.anddev.andengine.extension.multiplayer.protocol.adt.message;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Like {@link CharMessage}, but also read from and written to a {@link ByteBuffer} directly, see {@link IBufferMessage}.
+ * Subclasses that read or write more than the char have to extend {@link CharMessage} instead, or override both codecs.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 11:21:05 - 19.07.2011
+ */
+public abstract class BufferCharMessage extends CharMessage implements IBufferMessage {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public BufferCharMessage(final char pChar) {
+		super(pChar);
+	}
+
+	public BufferCharMessage(final DataInputStream pDataInputStream) throws IOException {
+		super(pDataInputStream);
+	}
+
+	public BufferCharMessage(final ByteBuffer pByteBuffer) throws IOException {
+		super('\u0000');
+		this.read(pByteBuffer);
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public void read(final ByteBuffer pByteBuffer) throws IOException {
+		this.mChar = pByteBuffer.getChar();
+	}
+
+	@Override
+	public void write(final ByteBuffer pByteBuffer) throws IOException {
+		pByteBuffer.putShort(this.getFlag());
+		pByteBuffer.putChar(this.getChar());
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+}
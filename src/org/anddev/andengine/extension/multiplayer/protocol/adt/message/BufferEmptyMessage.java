@@ -0,0 +1,67 @@
+package org.anddev.andengine.extension.multiplayer.protocol.adt.message;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Like {@link EmptyMessage}, but also read from and written to a {@link ByteBuffer} directly, see {@link IBufferMessage}.
+ * Subclasses that read or write anything have to extend {@link EmptyMessage} instead, or override both codecs.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 11:21:58 - 19.07.2011
+ */
+public abstract class BufferEmptyMessage extends EmptyMessage implements IBufferMessage {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public BufferEmptyMessage() {
+		/* Nothing to initialize. */
+	}
+
+	public BufferEmptyMessage(final DataInputStream pDataInputStream) throws IOException {
+		super(pDataInputStream);
+	}
+
+	public BufferEmptyMessage(final ByteBuffer pByteBuffer) throws IOException {
+		/* Nothing to read. */
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public void read(final ByteBuffer pByteBuffer) throws IOException {
+		/* Nothing to read. */
+	}
+
+	@Override
+	public void write(final ByteBuffer pByteBuffer) throws IOException {
+		pByteBuffer.putShort(this.getFlag());
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+}
@@ -0,0 +1,69 @@
+package org.anddev.andengine.extension.multiplayer.protocol.adt.message;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Like {@link IntMessage}, but also read from and written to a {@link ByteBuffer} directly, see {@link IBufferMessage}.
+ * Subclasses that read or write more than the int have to extend {@link IntMessage} instead, or override both codecs.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 11:20:14 - 19.07.2011
+ */
+public abstract class BufferIntMessage extends IntMessage implements IBufferMessage {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public BufferIntMessage(final int pInt) {
+		super(pInt);
+	}
+
+	public BufferIntMessage(final DataInputStream pDataInputStream) throws IOException {
+		super(pDataInputStream);
+	}
+
+	public BufferIntMessage(final ByteBuffer pByteBuffer) throws IOException {
+		super(0);
+		this.read(pByteBuffer);
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public void read(final ByteBuffer pByteBuffer) throws IOException {
+		this.mInt = pByteBuffer.getInt();
+	}
+
+	@Override
+	public void write(final ByteBuffer pByteBuffer) throws IOException {
+		pByteBuffer.putShort(this.getFlag());
+		pByteBuffer.putInt(this.getInt());
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+}
@@ -0,0 +1,69 @@
+package org.anddev.andengine.extension.multiplayer.protocol.adt.message;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Like {@link LongMessage}, but also read from and written to a {@link ByteBuffer} directly, see {@link IBufferMessage}.
+ * Subclasses that read or write more than the long have to extend {@link LongMessage} instead, or override both codecs.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 11:20:41 - 19.07.2011
+ */
+public abstract class BufferLongMessage extends LongMessage implements IBufferMessage {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public BufferLongMessage(final long pLong) {
+		super(pLong);
+	}
+
+	public BufferLongMessage(final DataInputStream pDataInputStream) throws IOException {
+		super(pDataInputStream);
+	}
+
+	public BufferLongMessage(final ByteBuffer pByteBuffer) throws IOException {
+		super(0);
+		this.read(pByteBuffer);
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public void read(final ByteBuffer pByteBuffer) throws IOException {
+		this.mLong = pByteBuffer.getLong();
+	}
+
+	@Override
+	public void write(final ByteBuffer pByteBuffer) throws IOException {
+		pByteBuffer.putShort(this.getFlag());
+		pByteBuffer.putLong(this.getLong());
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+}
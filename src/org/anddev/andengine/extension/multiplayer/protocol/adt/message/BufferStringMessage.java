@@ -0,0 +1,71 @@
+package org.anddev.andengine.extension.multiplayer.protocol.adt.message;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.anddev.andengine.extension.multiplayer.protocol.util.ByteBufferUtils;
+
+/**
+ * Like {@link StringMessage}, but also read from and written to a {@link ByteBuffer} directly, see {@link IBufferMessage}.
+ * Subclasses that read or write more than the string have to extend {@link StringMessage} instead, or override both codecs.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 11:21:32 - 19.07.2011
+ */
+public abstract class BufferStringMessage extends StringMessage implements IBufferMessage {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public BufferStringMessage(final String pString) {
+		super(pString);
+	}
+
+	public BufferStringMessage(final DataInputStream pDataInputStream) throws IOException {
+		super(pDataInputStream);
+	}
+
+	public BufferStringMessage(final ByteBuffer pByteBuffer) throws IOException {
+		super((String)null);
+		this.read(pByteBuffer);
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public void read(final ByteBuffer pByteBuffer) throws IOException {
+		this.mString = ByteBufferUtils.getUTF(pByteBuffer);
+	}
+
+	@Override
+	public void write(final ByteBuffer pByteBuffer) throws IOException {
+		pByteBuffer.putShort(this.getFlag());
+		ByteBufferUtils.putUTF(pByteBuffer, this.getString());
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+}
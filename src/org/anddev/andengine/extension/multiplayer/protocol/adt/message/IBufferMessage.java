@@ -0,0 +1,37 @@
+package org.anddev.andengine.extension.multiplayer.protocol.adt.message;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link IMessage} that can also be read from and written to a {@link ByteBuffer} directly,
+ * producing the exact same bytes as {@link IMessage#write(java.io.DataOutputStream)}.
+ * Encoders and readers prefer the {@link ByteBuffer} codec whenever a message implements it, so a subclass that changes one codec has to change the other one too.
+ * See the Buffer*Message base classes, i.e. {@link BufferIntMessage}.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 11:02:18 - 11.07.2011
+ */
+public interface IBufferMessage extends IMessage {
+	// ===========================================================
+	// Final Fields
+	// ===========================================================
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Reads the payload, the flag was already read.
+	 */
+	public void read(final ByteBuffer pByteBuffer) throws IOException;
+	/**
+	 * Writes the flag and the payload.
+	 * @throws BufferOverflowException when the {@link ByteBuffer} has not enough space remaining.
+	 */
+	public void write(final ByteBuffer pByteBuffer) throws IOException;
+}
@@ -0,0 +1,110 @@
+package org.anddev.andengine.extension.multiplayer.protocol.adt.message;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.anddev.andengine.extension.multiplayer.protocol.util.VarIntUtils;
+
+/**
+ * Like {@link IntMessage}, but the int is written as a zig-zag encoded {@link VarIntUtils varint}, taking 1 to 5 bytes instead of always 4.
+ * Values close to zero, like ids and deltas, take the fewest bytes, no matter if positive or negative.
+ * Subclasses that read or write more than the int have to override both codecs, see {@link IBufferMessage}.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 11:02:37 - 13.07.2011
+ */
+public abstract class VarIntMessage extends Message implements IBufferMessage {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	protected int mInt;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public VarIntMessage(final int pInt) {
+		this.mInt = pInt;
+	}
+
+	public VarIntMessage(final DataInputStream pDataInputStream) throws IOException {
+		this.read(pDataInputStream);
+	}
+
+	public VarIntMessage(final ByteBuffer pByteBuffer) throws IOException {
+		this.read(pByteBuffer);
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public int getInt() {
+		return this.mInt;
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public void read(final DataInputStream pDataInputStream) throws IOException {
+		this.mInt = VarIntUtils.readSignedVarInt(pDataInputStream);
+	}
+
+	@Override
+	protected void onAppendTransmissionDataForToString(final StringBuilder pStringBuilder) {
+		pStringBuilder.append(", getInt()=").append(this.getInt());
+	}
+
+	@Override
+	public void onWriteTransmissionData(final DataOutputStream pDataOutputStream) throws IOException {
+		VarIntUtils.writeSignedVarInt(pDataOutputStream, this.getInt());
+	}
+
+	@Override
+	public void read(final ByteBuffer pByteBuffer) throws IOException {
+		this.mInt = VarIntUtils.readSignedVarInt(pByteBuffer);
+	}
+
+	@Override
+	public void write(final ByteBuffer pByteBuffer) throws IOException {
+		pByteBuffer.putShort(this.getFlag());
+		VarIntUtils.writeSignedVarInt(pByteBuffer, this.getInt());
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if(this == obj) {
+			return true;
+		}
+		if(obj == null) {
+			return false;
+		}
+		if(this.getClass() != obj.getClass()) {
+			return false;
+		}
+
+		final VarIntMessage other = (VarIntMessage) obj;
+
+		return this.getFlag() == other.getFlag() && this.getInt() == other.getInt();
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+}
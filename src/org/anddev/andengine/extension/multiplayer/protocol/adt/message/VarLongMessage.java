@@ -0,0 +1,110 @@
+package org.anddev.andengine.extension.multiplayer.protocol.adt.message;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.anddev.andengine.extension.multiplayer.protocol.util.VarIntUtils;
+
+/**
+ * Like {@link LongMessage}, but the long is written as a zig-zag encoded {@link VarIntUtils varint}, taking 1 to 10 bytes instead of always 8.
+ * Values close to zero, like ids and deltas, take the fewest bytes, no matter if positive or negative.
+ * Subclasses that read or write more than the long have to override both codecs, see {@link IBufferMessage}.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 11:09:14 - 13.07.2011
+ */
+public abstract class VarLongMessage extends Message implements IBufferMessage {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	protected long mLong;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public VarLongMessage(final long pLong) {
+		this.mLong = pLong;
+	}
+
+	public VarLongMessage(final DataInputStream pDataInputStream) throws IOException {
+		this.read(pDataInputStream);
+	}
+
+	public VarLongMessage(final ByteBuffer pByteBuffer) throws IOException {
+		this.read(pByteBuffer);
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public long getLong() {
+		return this.mLong;
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public void read(final DataInputStream pDataInputStream) throws IOException {
+		this.mLong = VarIntUtils.readSignedVarLong(pDataInputStream);
+	}
+
+	@Override
+	protected void onAppendTransmissionDataForToString(final StringBuilder pStringBuilder) {
+		pStringBuilder.append(", getLong()=").append(this.getLong());
+	}
+
+	@Override
+	public void onWriteTransmissionData(final DataOutputStream pDataOutputStream) throws IOException {
+		VarIntUtils.writeSignedVarLong(pDataOutputStream, this.getLong());
+	}
+
+	@Override
+	public void read(final ByteBuffer pByteBuffer) throws IOException {
+		this.mLong = VarIntUtils.readSignedVarLong(pByteBuffer);
+	}
+
+	@Override
+	public void write(final ByteBuffer pByteBuffer) throws IOException {
+		pByteBuffer.putShort(this.getFlag());
+		VarIntUtils.writeSignedVarLong(pByteBuffer, this.getLong());
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if(this == obj) {
+			return true;
+		}
+		if(obj == null) {
+			return false;
+		}
+		if(this.getClass() != obj.getClass()) {
+			return false;
+		}
+
+		final VarLongMessage other = (VarLongMessage) obj;
+
+		return this.getFlag() == other.getFlag() && this.getLong() == other.getLong();
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+}
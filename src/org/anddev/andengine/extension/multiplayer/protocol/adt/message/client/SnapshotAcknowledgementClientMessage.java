@@ -0,0 +1,84 @@
+package org.anddev.andengine.extension.multiplayer.protocol.adt.message.client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.anddev.andengine.extension.multiplayer.protocol.util.VarIntUtils;
+
+/**
+ * Tells the server the sequence of the latest {@link org.anddev.andengine.extension.multiplayer.protocol.shared.Snapshot} the client received,
+ * so the server can send the following ones as deltas against it.
+ * The flag is chosen by the application, see {@link org.anddev.andengine.extension.multiplayer.protocol.server.SnapshotReplicator}.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 15:52:40 - 13.07.2011
+ */
+public class SnapshotAcknowledgementClientMessage extends ClientMessage {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final short mFlag;
+
+	private int mSequence;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public SnapshotAcknowledgementClientMessage(final short pFlag) {
+		this.mFlag = pFlag;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	@Override
+	public short getFlag() {
+		return this.mFlag;
+	}
+
+	public int getSequence() {
+		return this.mSequence;
+	}
+
+	public void setSequence(final int pSequence) {
+		this.mSequence = pSequence;
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	protected void onReadTransmissionData(final DataInputStream pDataInputStream) throws IOException {
+		this.mSequence = VarIntUtils.readVarInt(pDataInputStream);
+	}
+
+	@Override
+	protected void onWriteTransmissionData(final DataOutputStream pDataOutputStream) throws IOException {
+		VarIntUtils.writeVarInt(pDataOutputStream, this.mSequence);
+	}
+
+	@Override
+	protected void onAppendTransmissionDataForToString(final StringBuilder pStringBuilder) {
+		pStringBuilder.append(", getSequence()=").append(this.getSequence());
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+}
@@ -0,0 +1,158 @@
+package org.anddev.andengine.extension.multiplayer.protocol.adt.message.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+import org.anddev.andengine.extension.multiplayer.protocol.shared.Snapshot;
+import org.anddev.andengine.extension.multiplayer.protocol.util.ByteBufferInputStream;
+import org.anddev.andengine.extension.multiplayer.protocol.util.VarIntUtils;
+
+/**
+ * Carries a {@link Snapshot} as a delta against a baseline {@link Snapshot}, see {@link Snapshot#writeDelta(Snapshot, java.io.DataOutput)}.
+ * The flag is chosen by the application, see {@link org.anddev.andengine.extension.multiplayer.protocol.server.SnapshotReplicator}.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 15:37:12 - 13.07.2011
+ */
+public class SnapshotServerMessage extends ServerMessage {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	public static final int DELTA_LENGTH_MAXIMUM = 1 << 20;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final short mFlag;
+
+	private int mSequence;
+	private int mBaselineSequence;
+
+	/* Written to when sending. */
+	private ByteArrayOutputStream mDeltaOutputStream;
+	private DataOutputStream mDeltaDataOutputStream;
+
+	/* Read into when receiving. */
+	private byte[] mDeltaData;
+	private int mDeltaLength;
+	private ByteBufferInputStream mDeltaInputStream;
+	private DataInputStream mDeltaDataInputStream;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public SnapshotServerMessage(final short pFlag) {
+		this.mFlag = pFlag;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	@Override
+	public short getFlag() {
+		return this.mFlag;
+	}
+
+	public int getSequence() {
+		return this.mSequence;
+	}
+
+	/**
+	 * @return {@link Snapshot#SEQUENCE_NONE} when the delta was written against no baseline, i.e. contains all entities.
+	 */
+	public int getBaselineSequence() {
+		return this.mBaselineSequence;
+	}
+
+	/**
+	 * Encodes the delta of the {@link Snapshot} against the baseline right away, so both can be modified afterwards.
+	 * @param pBaseline <code>null</code> to include all entities.
+	 */
+	public void setSnapshot(final Snapshot pSnapshot, final Snapshot pBaseline) throws IOException {
+		if(this.mDeltaOutputStream == null) {
+			this.mDeltaOutputStream = new ByteArrayOutputStream();
+			this.mDeltaDataOutputStream = new DataOutputStream(this.mDeltaOutputStream);
+		}
+
+		this.mSequence = pSnapshot.getSequence();
+		this.mBaselineSequence = (pBaseline == null) ? Snapshot.SEQUENCE_NONE : pBaseline.getSequence();
+
+		this.mDeltaOutputStream.reset();
+		pSnapshot.writeDelta(pBaseline, this.mDeltaDataOutputStream);
+		this.mDeltaDataOutputStream.flush();
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	protected void onReadTransmissionData(final DataInputStream pDataInputStream) throws IOException {
+		this.mSequence = VarIntUtils.readVarInt(pDataInputStream);
+		this.mBaselineSequence = VarIntUtils.readVarInt(pDataInputStream);
+
+		final int deltaLength = VarIntUtils.readVarInt(pDataInputStream);
+		if(deltaLength < 0 || deltaLength > DELTA_LENGTH_MAXIMUM) {
+			throw new StreamCorruptedException("Illegal delta length: '" + deltaLength + "'.");
+		}
+
+		if(this.mDeltaData == null || this.mDeltaData.length < deltaLength) {
+			this.mDeltaData = new byte[Math.max(deltaLength, (this.mDeltaData == null) ? 0 : this.mDeltaData.length * 2)];
+			if(this.mDeltaInputStream == null) {
+				this.mDeltaInputStream = new ByteBufferInputStream(ByteBuffer.wrap(this.mDeltaData));
+				this.mDeltaDataInputStream = new DataInputStream(this.mDeltaInputStream);
+			} else {
+				this.mDeltaInputStream.setByteBuffer(ByteBuffer.wrap(this.mDeltaData));
+			}
+		}
+		pDataInputStream.readFully(this.mDeltaData, 0, deltaLength);
+		this.mDeltaLength = deltaLength;
+	}
+
+	@Override
+	protected void onWriteTransmissionData(final DataOutputStream pDataOutputStream) throws IOException {
+		VarIntUtils.writeVarInt(pDataOutputStream, this.mSequence);
+		VarIntUtils.writeVarInt(pDataOutputStream, this.mBaselineSequence);
+
+		VarIntUtils.writeVarInt(pDataOutputStream, this.mDeltaOutputStream.size());
+		this.mDeltaOutputStream.writeTo(pDataOutputStream);
+	}
+
+	@Override
+	protected void onAppendTransmissionDataForToString(final StringBuilder pStringBuilder) {
+		pStringBuilder.append(", getSequence()=").append(this.getSequence());
+		pStringBuilder.append(", getBaselineSequence()=").append(this.getBaselineSequence());
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Applies the received delta, see {@link Snapshot#readDelta(Snapshot, java.io.DataInput)}, and sets the sequence of the {@link Snapshot}.
+	 * @param pBaseline the {@link Snapshot} with the {@link #getBaselineSequence()}, <code>null</code> for {@link Snapshot#SEQUENCE_NONE}.
+	 */
+	public void applyTo(final Snapshot pSnapshot, final Snapshot pBaseline) throws IOException {
+		final ByteBuffer deltaByteBuffer = this.mDeltaInputStream.getByteBuffer();
+		deltaByteBuffer.clear();
+		deltaByteBuffer.limit(this.mDeltaLength);
+
+		pSnapshot.readDelta(pBaseline, this.mDeltaDataInputStream);
+		pSnapshot.setSequence(this.mSequence);
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+}
@@ -9,6 +9,8 @@ import org.anddev.andengine.extension.multiplayer.protocol.shared.Connection;
 import org.anddev.andengine.extension.multiplayer.protocol.shared.IMessageHandler;
 import org.anddev.andengine.extension.multiplayer.protocol.shared.IMessageReader;
 import org.anddev.andengine.extension.multiplayer.protocol.shared.MessageReader;
+import org.anddev.andengine.extension.multiplayer.protocol.util.IMessageFactory;
+import org.anddev.andengine.extension.multiplayer.protocol.util.MessagePool;
 
 /**
  * (c) 2010 Nicolas Gramlich 
@@ -32,12 +34,30 @@ public interface IServerMessageReader<C extends Connection> extends IMessageRead
 	@Override
 	public void registerMessage(final short pFlag, final Class<? extends IServerMessage> pServerMessageClass, final IMessageHandler<C, ServerConnector<C>, IServerMessage> pServerMessageHandler);
 
+	@Override
+	public void registerMessage(final short pFlag, final IMessageFactory<? extends IServerMessage> pServerMessageFactory);
+
+	@Override
+	public void registerMessage(final short pFlag, final IMessageFactory<? extends IServerMessage> pServerMessageFactory, final IMessageHandler<C, ServerConnector<C>, IServerMessage> pServerMessageHandler);
+
+	@Override
+	public void registerMessage(final short pFlag, final IMessageFactory<? extends IServerMessage> pServerMessageFactory, final int pInitialPoolSize);
+
 	@Override
 	public void registerMessageHandler(final short pFlag, final IMessageHandler<C, ServerConnector<C>, IServerMessage> pServerMessageHandler);
 
 	@Override
 	public IServerMessage readMessage(final DataInputStream pDataInputStream) throws IOException;
 
+	@Override
+	public IServerMessage readMessage(final short pFlag, final DataInputStream pDataInputStream) throws IOException;
+
+	@Override
+	public IServerMessage readFramedMessage(final DataInputStream pDataInputStream) throws IOException;
+
+	@Override
+	public IServerMessage readFramedMessage(final short pFlag, final DataInputStream pDataInputStream) throws IOException;
+
 	@Override
 	public void handleMessage(final ServerConnector<C> pServerConnector, final IServerMessage pServerMessage) throws IOException;
 
@@ -61,6 +81,14 @@ public interface IServerMessageReader<C extends Connection> extends IMessageRead
 		// Constructors
 		// ===========================================================
 
+		public ServerMessageReader() {
+			/* Nothing. */
+		}
+
+		public ServerMessageReader(final MessagePool<IServerMessage> pServerMessagePool) {
+			super(pServerMessagePool);
+		}
+
 		// ===========================================================
 		// Getter & Setter
 		// ===========================================================
@@ -0,0 +1,159 @@
+package org.anddev.andengine.extension.multiplayer.protocol.client;
+
+import java.io.IOException;
+
+import org.anddev.andengine.extension.multiplayer.protocol.adt.message.client.SnapshotAcknowledgementClientMessage;
+import org.anddev.andengine.extension.multiplayer.protocol.adt.message.server.IServerMessage;
+import org.anddev.andengine.extension.multiplayer.protocol.adt.message.server.SnapshotServerMessage;
+import org.anddev.andengine.extension.multiplayer.protocol.client.connector.ServerConnector;
+import org.anddev.andengine.extension.multiplayer.protocol.shared.Connection;
+import org.anddev.andengine.extension.multiplayer.protocol.shared.Snapshot;
+import org.anddev.andengine.extension.multiplayer.protocol.util.IMessageFactory;
+
+/**
+ * Receives the {@link Snapshot}s sent by a {@link org.anddev.andengine.extension.multiplayer.protocol.server.SnapshotReplicator} with the same flags and history size,
+ * applies each delta to its baseline and acknowledges it, so the following ones can be sent as deltas against it.
+ * Deltas arriving late, i.e. as unreliable datagrams, are dropped.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 16:31:25 - 13.07.2011
+ */
+public class SnapshotReceiver<C extends Connection> {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final short mSnapshotFlag;
+	private final ISnapshotReceiverListener<C> mSnapshotReceiverListener;
+
+	private final Snapshot[] mHistory;
+	private Snapshot mSnapshot;
+
+	private final SnapshotAcknowledgementClientMessage mSnapshotAcknowledgementClientMessage;
+
+	private final IMessageFactory<SnapshotServerMessage> mSnapshotMessageFactory = new IMessageFactory<SnapshotServerMessage>() {
+		@Override
+		public SnapshotServerMessage newMessage() {
+			return new SnapshotServerMessage(SnapshotReceiver.this.mSnapshotFlag);
+		}
+	};
+
+	private final IServerMessageHandler<C> mSnapshotMessageHandler = new IServerMessageHandler<C>() {
+		@Override
+		public void onHandleMessage(final ServerConnector<C> pServerConnector, final IServerMessage pServerMessage) throws IOException {
+			SnapshotReceiver.this.onSnapshotServerMessage(pServerConnector, (SnapshotServerMessage) pServerMessage);
+		}
+	};
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public SnapshotReceiver(final short pSnapshotFlag, final short pAcknowledgementFlag, final ISnapshotReceiverListener<C> pSnapshotReceiverListener) {
+		this(pSnapshotFlag, pAcknowledgementFlag, Snapshot.HISTORY_SIZE_DEFAULT, pSnapshotReceiverListener);
+	}
+
+	/**
+	 * @param pHistorySize has to match the history size of the {@link org.anddev.andengine.extension.multiplayer.protocol.server.SnapshotReplicator}.
+	 */
+	public SnapshotReceiver(final short pSnapshotFlag, final short pAcknowledgementFlag, final int pHistorySize, final ISnapshotReceiverListener<C> pSnapshotReceiverListener) {
+		if(pHistorySize < 1) {
+			throw new IllegalArgumentException("pHistorySize must be at least 1: " + pHistorySize);
+		}
+
+		this.mSnapshotFlag = pSnapshotFlag;
+		this.mSnapshotReceiverListener = pSnapshotReceiverListener;
+		this.mSnapshotAcknowledgementClientMessage = new SnapshotAcknowledgementClientMessage(pAcknowledgementFlag);
+
+		this.mHistory = new Snapshot[pHistorySize];
+		for(int i = 0; i < pHistorySize; i++) {
+			this.mHistory[i] = new Snapshot();
+		}
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return the latest {@link Snapshot} received, must not be modified, or <code>null</code> before the first one.
+	 */
+	public synchronized Snapshot getSnapshot() {
+		return this.mSnapshot;
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Registers the {@link SnapshotServerMessage} on the {@link ServerConnector}, so it has to be called before its {@link IServerMessageReader} is frozen.
+	 */
+	public void register(final ServerConnector<C> pServerConnector) {
+		pServerConnector.registerServerMessage(this.mSnapshotFlag, this.mSnapshotMessageFactory, this.mSnapshotMessageHandler);
+	}
+
+	private synchronized void onSnapshotServerMessage(final ServerConnector<C> pServerConnector, final SnapshotServerMessage pSnapshotServerMessage) throws IOException {
+		final int sequence = pSnapshotServerMessage.getSequence();
+		final int latestSequence = (this.mSnapshot == null) ? Snapshot.SEQUENCE_NONE : this.mSnapshot.getSequence();
+		if(sequence <= latestSequence) {
+			/* Arrived after a newer one. */
+			return;
+		}
+
+		final Snapshot[] history = this.mHistory;
+		final int baselineSequence = pSnapshotServerMessage.getBaselineSequence();
+		final Snapshot baseline;
+		if(baselineSequence == Snapshot.SEQUENCE_NONE) {
+			baseline = null;
+		} else {
+			baseline = history[baselineSequence % history.length];
+			if(baseline.getSequence() != baselineSequence || sequence - baselineSequence >= history.length) {
+				/* The baseline is gone, the server moves on to a newer one as soon as it receives the next acknowledgement. */
+				return;
+			}
+		}
+
+		final Snapshot snapshot = history[sequence % history.length];
+		pSnapshotServerMessage.applyTo(snapshot, baseline);
+		this.mSnapshot = snapshot;
+
+		this.mSnapshotAcknowledgementClientMessage.setSequence(sequence);
+		pServerConnector.sendClientMessage(this.mSnapshotAcknowledgementClientMessage);
+
+		if(this.mSnapshotReceiverListener != null) {
+			this.mSnapshotReceiverListener.onSnapshotReceived(this, snapshot);
+		}
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	public static interface ISnapshotReceiverListener<C extends Connection> {
+		// ===========================================================
+		// Final Fields
+		// ===========================================================
+
+		// ===========================================================
+		// Methods
+		// ===========================================================
+
+		/**
+		 * Called on the thread handling the {@link IServerMessage}s of the {@link ServerConnector}.
+		 * @param pSnapshot must not be modified and is only valid until the next call.
+		 */
+		public void onSnapshotReceived(final SnapshotReceiver<C> pSnapshotReceiver, final Snapshot pSnapshot);
+	}
+}
@@ -1,25 +1,44 @@
 package org.anddev.andengine.extension.multiplayer.protocol.client;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.anddev.andengine.extension.multiplayer.protocol.server.SocketServerDiscoveryServer;
 import org.anddev.andengine.extension.multiplayer.protocol.shared.IDiscoveryData;
-import org.anddev.andengine.extension.multiplayer.protocol.shared.IDiscoveryData.DiscoveryDataFactory;
+import org.anddev.andengine.extension.multiplayer.protocol.util.ByteBufferInputStream;
 import org.anddev.andengine.extension.multiplayer.protocol.util.WifiUtils;
+import org.anddev.andengine.util.ArrayUtils;
 import org.anddev.andengine.util.Debug;
 import org.anddev.andengine.util.SocketUtils;
 import org.anddev.andengine.util.pool.GenericPool;
 
 /**
+ * A discovery broadcasts a single request and then collects the responses of all servers for {@link #getTimeout()} milliseconds,
+ * each server is passed to {@link ISocketServerDiscoveryClientListener#onDiscovery(SocketServerDiscoveryClient, IDiscoveryData)} once, as soon as its response arrived.
+ * All discoveries share one {@link DatagramSocket}, which stays bound to the local port until {@link #terminate()}.
+ * When the discovery address is a multicast group, IPv4 or IPv6, the requests are sent to that group, see {@link SocketServerDiscoveryServer#setMulticastGroup(InetAddress, NetworkInterface)}.
+ * <p/>
+ * Alternatively {@link #startBrowsing(int, int, ISocketServerDiscoveryBrowserListener)} keeps discovering in the background
+ * and caches the {@link DiscoveredServer}s, so a lobby can read {@link #getDiscoveredServers()} instead of discovering again and again.
+ * 
  * (c) 2010 Nicolas Gramlich 
  * (c) 2011 Zynga Inc.
  * 
@@ -35,6 +54,9 @@ public class SocketServerDiscoveryClient<T extends IDiscoveryData> {
 
 	protected static final int TIMEOUT_DEFAULT = 5000;
 
+	public static final int BROWSE_INTERVAL_DEFAULT = 2000;
+	public static final int BROWSE_EXPIRY_DEFAULT = 3 * BROWSE_INTERVAL_DEFAULT;
+
 	// ===========================================================
 	// Fields
 	// ===========================================================
@@ -49,8 +71,20 @@ public class SocketServerDiscoveryClient<T extends IDiscoveryData> {
 
 	private final ExecutorService mExecutorService = Executors.newSingleThreadExecutor();
 
+	private DatagramSocket mDatagramSocket;
+	private NetworkInterface mMulticastNetworkInterface;
+
 	private final byte[] mDiscoveryResponseData = new byte[1024];
 	private final DatagramPacket mDiscoveryResponseDatagramPacket = new DatagramPacket(this.mDiscoveryResponseData, this.mDiscoveryResponseData.length);
+	private final ByteBuffer mDiscoveryResponseByteBuffer = ByteBuffer.wrap(this.mDiscoveryResponseData);
+	private final DataInputStream mDiscoveryResponseDataInputStream = new DataInputStream(new ByteBufferInputStream(this.mDiscoveryResponseByteBuffer));
+
+	/* The servers that already responded to the current discovery. */
+	private final HashSet<SocketAddress> mDiscoveredSocketAddresses = new HashSet<SocketAddress>();
+
+	private final AtomicBoolean mBrowsing = new AtomicBoolean(false);
+	private ISocketServerDiscoveryBrowserListener<T> mSocketServerDiscoveryBrowserListener;
+	private final ConcurrentHashMap<SocketAddress, DiscoveredServer<T>> mDiscoveredServers = new ConcurrentHashMap<SocketAddress, DiscoveredServer<T>>();
 
 	private final DatagramPacket mDiscoveryRequestDatagramPacket;
 
@@ -61,7 +95,7 @@ public class SocketServerDiscoveryClient<T extends IDiscoveryData> {
 	// ===========================================================
 
 	/**
-	 * @param pDiscoveryBroadcastIPAddress use {@link WifiUtils#getBroadcastIPAddressRaw(android.content.Context)}.
+	 * @param pDiscoveryBroadcastIPAddress use {@link WifiUtils#getBroadcastIPAddressRaw(android.content.Context)}, or a multicast group, i.e. {@link SocketServerDiscoveryServer#MULTICASTGROUP_IPV4_DEFAULT}.
 	 * @param pDiscoveryDataClass
 	 * @param pSocketServerDiscoveryClientListener
 	 * @throws UnknownHostException
@@ -124,6 +158,9 @@ public class SocketServerDiscoveryClient<T extends IDiscoveryData> {
 		return this.mLocalPort;
 	}
 
+	/**
+	 * @return how long a discovery collects responses, in milliseconds.
+	 */
 	public int getTimeout() {
 		return this.mTimeout;
 	}
@@ -136,6 +173,40 @@ public class SocketServerDiscoveryClient<T extends IDiscoveryData> {
 		return this.mDiscoveryBroadcastInetAddress;
 	}
 
+	public boolean isMulticast() {
+		return this.mDiscoveryBroadcastInetAddress.isMulticastAddress();
+	}
+
+	public NetworkInterface getMulticastNetworkInterface() {
+		return this.mMulticastNetworkInterface;
+	}
+
+	/**
+	 * Has to be called before the first discovery.
+	 * @param pNetworkInterface the {@link NetworkInterface} multicast requests are sent on, <code>null</code> for the default one. IPv6 link-local groups usually need one.
+	 */
+	public void setMulticastNetworkInterface(final NetworkInterface pNetworkInterface) {
+		this.mMulticastNetworkInterface = pNetworkInterface;
+	}
+
+	public boolean isBrowsing() {
+		return this.mBrowsing.get();
+	}
+
+	/**
+	 * @return a snapshot of the servers found while browsing, that didn't expire yet. Never blocks on the network.
+	 */
+	public List<DiscoveredServer<T>> getDiscoveredServers() {
+		return new ArrayList<DiscoveredServer<T>>(this.mDiscoveredServers.values());
+	}
+
+	/**
+	 * @return <code>null</code> when no server at that {@link SocketAddress} was found while browsing, or it expired.
+	 */
+	public DiscoveredServer<T> getDiscoveredServer(final SocketAddress pSocketAddress) {
+		return this.mDiscoveredServers.get(pSocketAddress);
+	}
+
 	// ===========================================================
 	// Methods for/from SuperClass/Interfaces
 	// ===========================================================
@@ -157,44 +228,140 @@ public class SocketServerDiscoveryClient<T extends IDiscoveryData> {
 		});
 	}
 
+	/**
+	 * @see #startBrowsing(int, int, ISocketServerDiscoveryBrowserListener)
+	 */
+	public void startBrowsing(final ISocketServerDiscoveryBrowserListener<T> pSocketServerDiscoveryBrowserListener) throws IllegalStateException {
+		this.startBrowsing(BROWSE_INTERVAL_DEFAULT, BROWSE_EXPIRY_DEFAULT, pSocketServerDiscoveryBrowserListener);
+	}
+
+	/**
+	 * Broadcasts a discovery request every interval, until {@link #stopBrowsing()}. A server that didn't respond for longer than the expiry is removed from the {@link DiscoveredServer}s.
+	 * Discoveries started by {@link #discoverAsync()} meanwhile wait until browsing stopped.
+	 * @param pExpiryMilliseconds must be longer than the interval, so a single lost response doesn't expire a server.
+	 */
+	public void startBrowsing(final int pIntervalMilliseconds, final int pExpiryMilliseconds, final ISocketServerDiscoveryBrowserListener<T> pSocketServerDiscoveryBrowserListener) throws IllegalStateException {
+		if(pIntervalMilliseconds <= 0 || pExpiryMilliseconds <= pIntervalMilliseconds) {
+			throw new IllegalArgumentException("pExpiryMilliseconds: '" + pExpiryMilliseconds + "' must be longer than pIntervalMilliseconds: '" + pIntervalMilliseconds + "', which must be positive.");
+		}
+		if(this.mTerminated.get()) {
+			throw new IllegalStateException(this.getClass().getSimpleName() + " was already terminated.");
+		}
+		if(this.mBrowsing.getAndSet(true)) {
+			throw new IllegalStateException(this.getClass().getSimpleName() + " is already browsing.");
+		}
+
+		this.mSocketServerDiscoveryBrowserListener = pSocketServerDiscoveryBrowserListener;
+
+		this.mExecutorService.execute(new Runnable() {
+			@Override
+			public void run() {
+				SocketServerDiscoveryClient.this.browse(pIntervalMilliseconds, pExpiryMilliseconds);
+			}
+		});
+	}
+
+	/**
+	 * Browsing ends after the current interval. The {@link DiscoveredServer}s are kept.
+	 */
+	public void stopBrowsing() {
+		this.mBrowsing.set(false);
+	}
+
 	private void discover() {
-		DatagramSocket datagramSocket = null;
 		try {
-			datagramSocket = new DatagramSocket(this.mLocalPort);
-			datagramSocket.setBroadcast(true);
+			final DatagramSocket datagramSocket = this.obtainDatagramSocket();
+
+			this.mDiscoveredSocketAddresses.clear();
 
 			this.sendDiscoveryRequest(datagramSocket);
 
-			final byte[] discoveryResponseData = this.receiveDiscoveryResponseData(datagramSocket);
+			this.receiveDiscoveryResponses(datagramSocket, System.currentTimeMillis() + this.mTimeout, false);
 
-			this.handleDiscoveryResponseData(discoveryResponseData);
-		} catch (final SocketTimeoutException t) {
-			this.mSocketServerDiscoveryClientListener.onTimeout(this, t);
+			if(this.mDiscoveredSocketAddresses.isEmpty()) {
+				this.mSocketServerDiscoveryClientListener.onTimeout(this, new SocketTimeoutException("No discovery response within " + this.mTimeout + "ms."));
+			}
 		} catch (final Throwable t) {
-			this.mSocketServerDiscoveryClientListener.onException(this, t);
+			if(!this.mTerminated.get()) {
+				this.mSocketServerDiscoveryClientListener.onException(this, t);
+			}
+		}
+	}
+
+	private void browse(final int pIntervalMilliseconds, final int pExpiryMilliseconds) {
+		try {
+			final DatagramSocket datagramSocket = this.obtainDatagramSocket();
+
+			while(this.mBrowsing.get() && !this.mTerminated.get()) {
+				this.sendDiscoveryRequest(datagramSocket);
+
+				this.receiveDiscoveryResponses(datagramSocket, System.currentTimeMillis() + pIntervalMilliseconds, true);
+
+				this.expireDiscoveredServers(System.currentTimeMillis() - pExpiryMilliseconds);
+			}
+		} catch (final Throwable t) {
+			if(!this.mTerminated.get()) {
+				this.mSocketServerDiscoveryBrowserListener.onException(this, t);
+			}
 		} finally {
-			SocketUtils.closeSocket(datagramSocket);
+			this.mBrowsing.set(false);
 		}
 	}
 
+	private synchronized DatagramSocket obtainDatagramSocket() throws IOException {
+		if(this.mTerminated.get()) {
+			throw new SocketException(this.getClass().getSimpleName() + " was already terminated.");
+		}
+
+		if(this.mDatagramSocket == null || this.mDatagramSocket.isClosed()) {
+			if(this.isMulticast()) {
+				final MulticastSocket multicastSocket = new MulticastSocket(this.mLocalPort);
+				if(this.mMulticastNetworkInterface != null) {
+					multicastSocket.setNetworkInterface(this.mMulticastNetworkInterface);
+				}
+				this.mDatagramSocket = multicastSocket;
+			} else {
+				this.mDatagramSocket = new DatagramSocket(this.mLocalPort);
+				this.mDatagramSocket.setBroadcast(true);
+			}
+		}
+		return this.mDatagramSocket;
+	}
+
 	private void sendDiscoveryRequest(final DatagramSocket datagramSocket) throws IOException {
 		datagramSocket.send(this.mDiscoveryRequestDatagramPacket);
 	}
 
-	protected byte[] receiveDiscoveryResponseData(final DatagramSocket datagramSocket) throws SocketException, IOException {
-		datagramSocket.setSoTimeout(this.mTimeout);
-		datagramSocket.receive(this.mDiscoveryResponseDatagramPacket);
+	/**
+	 * Receives until the deadline. When discovering, every server is handled only for its first response.
+	 */
+	private void receiveDiscoveryResponses(final DatagramSocket pDatagramSocket, final long pDeadline, final boolean pBrowsing) throws IOException {
+		final DatagramPacket discoveryResponseDatagramPacket = this.mDiscoveryResponseDatagramPacket;
+
+		long remainingMilliseconds;
+		while((remainingMilliseconds = pDeadline - System.currentTimeMillis()) > 0 && !this.mTerminated.get()) {
+			pDatagramSocket.setSoTimeout((int)remainingMilliseconds);
+			/* The length shrinks to the length of the last received datagram. */
+			discoveryResponseDatagramPacket.setLength(this.mDiscoveryResponseData.length);
+			try {
+				pDatagramSocket.receive(discoveryResponseDatagramPacket);
+			} catch (final SocketTimeoutException e) {
+				return;
+			}
 
-		final byte[] discoveryResponseData = new byte[this.mDiscoveryResponseDatagramPacket.getLength()];
-		System.arraycopy(this.mDiscoveryResponseDatagramPacket.getData(), this.mDiscoveryResponseDatagramPacket.getOffset(), discoveryResponseData, 0, this.mDiscoveryResponseDatagramPacket.getLength());
-		return discoveryResponseData;
+			if(pBrowsing) {
+				this.handleBrowsedDiscoveryResponse(discoveryResponseDatagramPacket);
+			} else if(this.mDiscoveredSocketAddresses.add(discoveryResponseDatagramPacket.getSocketAddress())) {
+				this.handleDiscoveryResponse(discoveryResponseDatagramPacket);
+			}
+		}
 	}
 
-	private void handleDiscoveryResponseData(final byte[] pDiscoveryResponseData) {
+	private void handleDiscoveryResponse(final DatagramPacket pDiscoveryResponseDatagramPacket) {
 		final T discoveryResponse = this.mDiscoveryDataPool.obtainPoolItem();
 
 		try {
-			DiscoveryDataFactory.read(pDiscoveryResponseData, discoveryResponse);
+			this.readDiscoveryResponse(pDiscoveryResponseDatagramPacket, discoveryResponse);
 			this.mSocketServerDiscoveryClientListener.onDiscovery(SocketServerDiscoveryClient.this, discoveryResponse);
 		} catch(final Throwable t) {
 			this.mSocketServerDiscoveryClientListener.onException(this, t);
@@ -203,14 +370,81 @@ public class SocketServerDiscoveryClient<T extends IDiscoveryData> {
 		this.mDiscoveryDataPool.recyclePoolItem(discoveryResponse);
 	}
 
+	/**
+	 * A response that didn't change since the last one only refreshes the {@link DiscoveredServer#getLastSeenTimestamp()}, without being read again.
+	 */
+	private void handleBrowsedDiscoveryResponse(final DatagramPacket pDiscoveryResponseDatagramPacket) {
+		final SocketAddress socketAddress = pDiscoveryResponseDatagramPacket.getSocketAddress();
+		final byte[] data = pDiscoveryResponseDatagramPacket.getData();
+		final int offset = pDiscoveryResponseDatagramPacket.getOffset();
+		final int length = pDiscoveryResponseDatagramPacket.getLength();
+		final long now = System.currentTimeMillis();
+
+		final DiscoveredServer<T> discoveredServer = this.mDiscoveredServers.get(socketAddress);
+		if(discoveredServer != null && discoveredServer.hasDiscoveryResponseData(data, offset, length)) {
+			discoveredServer.mLastSeenTimestamp = now;
+			return;
+		}
+
+		/* Not recycled, as the DiscoveredServer might still be used after it expired. */
+		final T discoveryData = this.mDiscoveryDataPool.obtainPoolItem();
+		try {
+			this.readDiscoveryResponse(pDiscoveryResponseDatagramPacket, discoveryData);
+		} catch(final Throwable t) {
+			this.mSocketServerDiscoveryBrowserListener.onException(this, t);
+			this.mDiscoveryDataPool.recyclePoolItem(discoveryData);
+			return;
+		}
+
+		final byte[] discoveryResponseData = new byte[length];
+		System.arraycopy(data, offset, discoveryResponseData, 0, length);
+
+		if(discoveredServer == null) {
+			final DiscoveredServer<T> newDiscoveredServer = new DiscoveredServer<T>(socketAddress);
+			newDiscoveredServer.set(discoveryData, discoveryResponseData, now);
+			this.mDiscoveredServers.put(socketAddress, newDiscoveredServer);
+			this.mSocketServerDiscoveryBrowserListener.onDiscoveredServerAdded(this, newDiscoveredServer);
+		} else {
+			discoveredServer.set(discoveryData, discoveryResponseData, now);
+			this.mSocketServerDiscoveryBrowserListener.onDiscoveredServerUpdated(this, discoveredServer);
+		}
+	}
+
+	private void expireDiscoveredServers(final long pLastSeenTimestampMinimum) {
+		final Iterator<DiscoveredServer<T>> iterator = this.mDiscoveredServers.values().iterator();
+		while(iterator.hasNext()) {
+			final DiscoveredServer<T> discoveredServer = iterator.next();
+			if(discoveredServer.mLastSeenTimestamp < pLastSeenTimestampMinimum) {
+				iterator.remove();
+				this.mSocketServerDiscoveryBrowserListener.onDiscoveredServerExpired(this, discoveredServer);
+			}
+		}
+	}
+
+	/**
+	 * Reads right out of the received datagram.
+	 */
+	private void readDiscoveryResponse(final DatagramPacket pDiscoveryResponseDatagramPacket, final T pDiscoveryData) throws IOException {
+		final ByteBuffer discoveryResponseByteBuffer = this.mDiscoveryResponseByteBuffer;
+		discoveryResponseByteBuffer.limit(pDiscoveryResponseDatagramPacket.getOffset() + pDiscoveryResponseDatagramPacket.getLength());
+		discoveryResponseByteBuffer.position(pDiscoveryResponseDatagramPacket.getOffset());
+
+		pDiscoveryData.read(this.mDiscoveryResponseDataInputStream);
+	}
+
 	public void terminate() {
 		if(!this.mTerminated.getAndSet(true)) {
+			this.mBrowsing.set(false);
+
 			this.onTerminate();
 		}
 	}
 
-	private void onTerminate() {
+	private synchronized void onTerminate() {
 		this.mExecutorService.shutdownNow();
+
+		/* Ends a running discovery right away. */
+		SocketUtils.closeSocket(this.mDatagramSocket);
 	}
 
 	// ===========================================================
@@ -226,8 +460,113 @@ public class SocketServerDiscoveryClient<T extends IDiscoveryData> {
 		// Methods
 		// ===========================================================
 
+		/**
+		 * @param pDiscoveryData is recycled afterwards, so it must not be kept.
+		 */
 		public void onDiscovery(final SocketServerDiscoveryClient<T> pSocketServerDiscoveryClient, final T pDiscoveryData);
+		/**
+		 * Called when no server responded to a discovery.
+		 */
 		public void onTimeout(final SocketServerDiscoveryClient<T> pSocketServerDiscoveryClient, final SocketTimeoutException pSocketTimeoutException);
 		public void onException(final SocketServerDiscoveryClient<T> pSocketServerDiscoveryClient, final Throwable pThrowable);
 	}
+
+	/**
+	 * All methods are called on the thread of the {@link SocketServerDiscoveryClient}.
+	 */
+	public interface ISocketServerDiscoveryBrowserListener<T extends IDiscoveryData> {
+		// ===========================================================
+		// Final Fields
+		// ===========================================================
+
+		// ===========================================================
+		// Methods
+		// ===========================================================
+
+		public void onDiscoveredServerAdded(final SocketServerDiscoveryClient<T> pSocketServerDiscoveryClient, final DiscoveredServer<T> pDiscoveredServer);
+		/**
+		 * Called when the server responded with different {@link IDiscoveryData}.
+		 */
+		public void onDiscoveredServerUpdated(final SocketServerDiscoveryClient<T> pSocketServerDiscoveryClient, final DiscoveredServer<T> pDiscoveredServer);
+		public void onDiscoveredServerExpired(final SocketServerDiscoveryClient<T> pSocketServerDiscoveryClient, final DiscoveredServer<T> pDiscoveredServer);
+		public void onException(final SocketServerDiscoveryClient<T> pSocketServerDiscoveryClient, final Throwable pThrowable);
+	}
+
+	public static class DiscoveredServer<T extends IDiscoveryData> {
+		// ===========================================================
+		// Constants
+		// ===========================================================
+
+		// ===========================================================
+		// Fields
+		// ===========================================================
+
+		private final SocketAddress mSocketAddress;
+
+		private volatile T mDiscoveryData;
+		private volatile long mLastSeenTimestamp;
+
+		/* Only accessed by the thread of the SocketServerDiscoveryClient. */
+		private byte[] mDiscoveryResponseData;
+
+		// ===========================================================
+		// Constructors
+		// ===========================================================
+
+		DiscoveredServer(final SocketAddress pSocketAddress) {
+			this.mSocketAddress = pSocketAddress;
+		}
+
+		// ===========================================================
+		// Getter & Setter
+		// ===========================================================
+
+		/**
+		 * @return the {@link SocketAddress} the responses came from.
+		 */
+		public SocketAddress getSocketAddress() {
+			return this.mSocketAddress;
+		}
+
+		/**
+		 * @return replaced, not modified, when the server responded with different {@link IDiscoveryData}.
+		 */
+		public T getDiscoveryData() {
+			return this.mDiscoveryData;
+		}
+
+		/**
+		 * @return the {@link System#currentTimeMillis()} of the latest response.
+		 */
+		public long getLastSeenTimestamp() {
+			return this.mLastSeenTimestamp;
+		}
+
+		void set(final T pDiscoveryData, final byte[] pDiscoveryResponseData, final long pLastSeenTimestamp) {
+			this.mDiscoveryResponseData = pDiscoveryResponseData;
+			this.mDiscoveryData = pDiscoveryData;
+			this.mLastSeenTimestamp = pLastSeenTimestamp;
+		}
+
+		// ===========================================================
+		// Methods for/from SuperClass/Interfaces
+		// ===========================================================
+
+		@Override
+		public String toString() {
+			return this.getClass().getSimpleName() + "[getSocketAddress()=" + this.mSocketAddress + ", getLastSeenTimestamp()=" + this.mLastSeenTimestamp + "]";
+		}
+
+		// ===========================================================
+		// Methods
+		// ===========================================================
+
+		boolean hasDiscoveryResponseData(final byte[] pData, final int pOffset, final int pLength) {
+			return this.mDiscoveryResponseData.length == pLength && ArrayUtils.equals(this.mDiscoveryResponseData, 0, pData, pOffset, pLength);
+		}
+
+		// ===========================================================
+		// Inner and Anonymous Classes
+		// ===========================================================
+	}
 }
@@ -1,8 +1,11 @@
 package org.anddev.andengine.extension.multiplayer.protocol.client.connector;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.anddev.andengine.extension.multiplayer.protocol.adt.message.client.IClientMessage;
 import org.anddev.andengine.extension.multiplayer.protocol.adt.message.server.IServerMessage;
@@ -11,6 +14,8 @@ import org.anddev.andengine.extension.multiplayer.protocol.client.IServerMessage
 import org.anddev.andengine.extension.multiplayer.protocol.client.IServerMessageReader.ServerMessageReader;
 import org.anddev.andengine.extension.multiplayer.protocol.shared.Connection;
 import org.anddev.andengine.extension.multiplayer.protocol.shared.Connector;
+import org.anddev.andengine.extension.multiplayer.protocol.util.IMessageFactory;
+import org.anddev.andengine.extension.multiplayer.protocol.util.MessageBatch;
 import org.anddev.andengine.util.ParameterCallable;
 import org.anddev.andengine.util.SmartList;
 
@@ -31,6 +36,7 @@ public class ServerConnector<C extends Connection> extends Connector<C> {
 	// ===========================================================
 
 	private final IServerMessageReader<C> mServerMessageReader;
+	private final Queue<IServerMessage> mPendingServerMessages = new ConcurrentLinkedQueue<IServerMessage>();
 
 	private final ParameterCallable<IServerConnectorListener<C>> mOnStartedParameterCallable = new ParameterCallable<ServerConnector.IServerConnectorListener<C>>() {
 		@Override
@@ -93,20 +99,96 @@ public class ServerConnector<C extends Connection> extends Connector<C> {
 
 	@Override
 	public void onTerminated(final Connection pConnection) {
+		this.terminateDatagramConnection();
 		this.getConnectorListeners().call(this.mOnTerminatedParameterCallable);
 	}
 
+	/**
+	 * A batch is unpacked right away, its {@link IServerMessage}s are handled one after another, just like they were sent on their own.
+	 */
 	@Override
 	public void read(final DataInputStream pDataInputStream) throws IOException {
-		final IServerMessage serverMessage = this.mServerMessageReader.readMessage(pDataInputStream);
-		this.mServerMessageReader.handleMessage(this, serverMessage);
-		this.mServerMessageReader.recycleMessage(serverMessage);
+		final short flag = pDataInputStream.readShort();
+		if(flag == MessageBatch.FLAG_BATCH) {
+			final DataInputStream batchDataInputStream = this.mServerMessageReader.readBatch(pDataInputStream);
+			try {
+				while(batchDataInputStream.available() > 0) {
+					this.onServerMessageRead(this.readServerMessage(batchDataInputStream.readShort(), batchDataInputStream));
+				}
+			} catch (final EOFException e) {
+				/* The batch was read completely, so it must not be read again as if it was incomplete. */
+				throw new StreamCorruptedException("Message is longer than the rest of its batch.");
+			}
+		} else {
+			this.onServerMessageRead(this.readServerMessage(flag, pDataInputStream));
+		}
 	}
 
 	// ===========================================================
 	// Methods
 	// ===========================================================
 
+	private IServerMessage readServerMessage(final short pFlag, final DataInputStream pDataInputStream) throws IOException {
+		if(this.mFramed) {
+			return this.mServerMessageReader.readFramedMessage(pFlag, pDataInputStream);
+		} else {
+			return this.mServerMessageReader.readMessage(pFlag, pDataInputStream);
+		}
+	}
+
+	/**
+	 * @param pServerMessage <code>null</code> when it was skipped.
+	 */
+	private void onServerMessageRead(final IServerMessage pServerMessage) throws IOException {
+		if(pServerMessage == null) {
+			return;
+		}
+
+		if(this.mDispatchPolicy == DispatchPolicy.QUEUED) {
+			this.mPendingServerMessages.offer(pServerMessage);
+		} else {
+			this.mServerMessageReader.handleMessage(this, pServerMessage);
+			this.mServerMessageReader.recycleMessage(pServerMessage);
+		}
+	}
+
+	/**
+	 * Handles all {@link IServerMessage}s that were queued because of {@link DispatchPolicy#QUEUED}, on the calling thread. Each one is recycled afterwards.
+	 * @return the amount of handled {@link IServerMessage}s.
+	 */
+	public int processPendingMessages() throws IOException {
+		return this.processPendingMessages(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param pMaximum the maximum amount of {@link IServerMessage}s to handle, the rest stays queued.
+	 * @return the amount of handled {@link IServerMessage}s.
+	 */
+	public int processPendingMessages(final int pMaximum) throws IOException {
+		final Queue<IServerMessage> pendingServerMessages = this.mPendingServerMessages;
+		final IServerMessageReader<C> serverMessageReader = this.mServerMessageReader;
+
+		int processedCount = 0;
+		while(processedCount < pMaximum) {
+			final IServerMessage serverMessage = pendingServerMessages.poll();
+			if(serverMessage == null) {
+				break;
+			}
+			processedCount++;
+
+			try {
+				serverMessageReader.handleMessage(this, serverMessage);
+			} finally {
+				serverMessageReader.recycleMessage(serverMessage);
+			}
+		}
+		return processedCount;
+	}
+
+	public boolean hasPendingMessages() {
+		return !this.mPendingServerMessages.isEmpty();
+	}
+
 	public void registerServerMessage(final short pFlag, final Class<? extends IServerMessage> pServerMessageClass) {
 		this.mServerMessageReader.registerMessage(pFlag, pServerMessageClass);
 	}
@@ -115,14 +197,24 @@ public class ServerConnector<C extends Connection> extends Connector<C> {
 		this.mServerMessageReader.registerMessage(pFlag, pServerMessageClass, pServerMessageHandler);
 	}
 
+	public void registerServerMessage(final short pFlag, final IMessageFactory<? extends IServerMessage> pServerMessageFactory) {
+		this.mServerMessageReader.registerMessage(pFlag, pServerMessageFactory);
+	}
+
+	public void registerServerMessage(final short pFlag, final IMessageFactory<? extends IServerMessage> pServerMessageFactory, final IServerMessageHandler<C> pServerMessageHandler) {
+		this.mServerMessageReader.registerMessage(pFlag, pServerMessageFactory, pServerMessageHandler);
+	}
+
+	public void registerServerMessage(final short pFlag, final IMessageFactory<? extends IServerMessage> pServerMessageFactory, final int pInitialPoolSize) {
+		this.mServerMessageReader.registerMessage(pFlag, pServerMessageFactory, pInitialPoolSize);
+	}
+
 	public void registerServerMessageHandler(final short pFlag, final IServerMessageHandler<C> pServerMessageHandler) {
 		this.mServerMessageReader.registerMessageHandler(pFlag, pServerMessageHandler);
 	}
 
 	public synchronized void sendClientMessage(final IClientMessage pClientMessage) throws IOException {
-		final DataOutputStream dataOutputStream = this.mConnection.getDataOutputStream();
-		pClientMessage.write(dataOutputStream);
-		dataOutputStream.flush();
+		this.write(pClientMessage);
 	}
 
 	// ===========================================================
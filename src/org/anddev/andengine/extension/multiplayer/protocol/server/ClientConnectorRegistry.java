@@ -0,0 +1,149 @@
+package org.anddev.andengine.extension.multiplayer.protocol.server;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.anddev.andengine.extension.multiplayer.protocol.server.connector.ClientConnector;
+import org.anddev.andengine.extension.multiplayer.protocol.shared.Connection;
+
+/**
+ * Holds the {@link ClientConnector}s of a {@link Server}. Adding and removing copies the list, so reading is never blocked:
+ * {@link #getClientConnectors()} returns an immutable snapshot that can be iterated while {@link ClientConnector}s come and go,
+ * and {@link ClientConnector}s can be looked up in constant time by the id or the remote {@link SocketAddress} of their {@link Connection}.
+ * Thread-safe.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 10:21:47 - 14.07.2011
+ */
+public class ClientConnectorRegistry<CC extends ClientConnector<?>> {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	/* Replaced, never modified, once published. */
+	private volatile List<CC> mClientConnectors = Collections.emptyList();
+
+	private final Map<Integer, CC> mClientConnectorsByConnectionID = new ConcurrentHashMap<Integer, CC>();
+	private final Map<SocketAddress, CC> mClientConnectorsByRemoteSocketAddress = new ConcurrentHashMap<SocketAddress, CC>();
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return an immutable snapshot of all {@link ClientConnector}s, not affected by later adds and removes.
+	 */
+	public List<CC> getClientConnectors() {
+		return this.mClientConnectors;
+	}
+
+	public int size() {
+		return this.mClientConnectors.size();
+	}
+
+	public boolean isEmpty() {
+		return this.mClientConnectors.isEmpty();
+	}
+
+	/**
+	 * @return <code>null</code> when there is no {@link ClientConnector} with that {@link Connection#getConnectionID()}.
+	 */
+	public CC getClientConnector(final int pConnectionID) {
+		return this.mClientConnectorsByConnectionID.get(pConnectionID);
+	}
+
+	/**
+	 * @return <code>null</code> when there is no {@link ClientConnector} with that {@link Connection#getRemoteSocketAddress()}.
+	 */
+	public CC getClientConnector(final SocketAddress pRemoteSocketAddress) {
+		return this.mClientConnectorsByRemoteSocketAddress.get(pRemoteSocketAddress);
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * @return <code>false</code> when the {@link ClientConnector} was already added.
+	 */
+	public synchronized boolean add(final CC pClientConnector) {
+		final List<CC> clientConnectors = this.mClientConnectors;
+		if(clientConnectors.contains(pClientConnector)) {
+			return false;
+		}
+
+		final ArrayList<CC> newClientConnectors = new ArrayList<CC>(clientConnectors.size() + 1);
+		newClientConnectors.addAll(clientConnectors);
+		newClientConnectors.add(pClientConnector);
+
+		final Connection connection = pClientConnector.getConnection();
+		this.mClientConnectorsByConnectionID.put(connection.getConnectionID(), pClientConnector);
+		final SocketAddress remoteSocketAddress = connection.getRemoteSocketAddress();
+		if(remoteSocketAddress != null) {
+			this.mClientConnectorsByRemoteSocketAddress.put(remoteSocketAddress, pClientConnector);
+		}
+
+		this.mClientConnectors = Collections.unmodifiableList(newClientConnectors);
+		return true;
+	}
+
+	/**
+	 * @return <code>false</code> when the {@link ClientConnector} was not added.
+	 */
+	public synchronized boolean remove(final CC pClientConnector) {
+		final List<CC> clientConnectors = this.mClientConnectors;
+		final int index = clientConnectors.indexOf(pClientConnector);
+		if(index < 0) {
+			return false;
+		}
+
+		final ArrayList<CC> newClientConnectors = new ArrayList<CC>(clientConnectors);
+		newClientConnectors.remove(index);
+
+		final Connection connection = pClientConnector.getConnection();
+		this.mClientConnectorsByConnectionID.remove(connection.getConnectionID());
+		final SocketAddress remoteSocketAddress = connection.getRemoteSocketAddress();
+		if(remoteSocketAddress != null) {
+			this.mClientConnectorsByRemoteSocketAddress.remove(remoteSocketAddress);
+		}
+
+		this.mClientConnectors = Collections.unmodifiableList(newClientConnectors);
+		return true;
+	}
+
+	/**
+	 * @return the snapshot of all {@link ClientConnector}s that were removed.
+	 */
+	public synchronized List<CC> clear() {
+		final List<CC> clientConnectors = this.mClientConnectors;
+
+		this.mClientConnectors = Collections.emptyList();
+		this.mClientConnectorsByConnectionID.clear();
+		this.mClientConnectorsByRemoteSocketAddress.clear();
+
+		return clientConnectors;
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+}
@@ -0,0 +1,232 @@
+package org.anddev.andengine.extension.multiplayer.protocol.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.anddev.andengine.extension.multiplayer.protocol.shared.DatagramConnection;
+import org.anddev.andengine.util.Debug;
+
+import android.os.SystemClock;
+
+/**
+ * Receives the datagrams of all clients on a single port and passes each one to the shared {@link DatagramConnection} of its sender.
+ * The {@link IDatagramServerListener} is asked for a {@link DatagramConnection} whenever a datagram arrives from an unknown sender.
+ * Also ticks all {@link DatagramConnection}s, see {@link DatagramConnection#onTick()}.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 15:58:31 - 12.07.2011
+ */
+public class DatagramServer extends Thread {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final int mPort;
+	private final DatagramChannel mDatagramChannel;
+	private final IDatagramServerListener mDatagramServerListener;
+
+	private final Map<SocketAddress, DatagramConnection> mDatagramConnections = new ConcurrentHashMap<SocketAddress, DatagramConnection>();
+
+	private final AtomicBoolean mRunning = new AtomicBoolean(false);
+	private final AtomicBoolean mTerminated = new AtomicBoolean(false);
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public DatagramServer(final int pPort, final IDatagramServerListener pDatagramServerListener) throws IOException {
+		this.mPort = pPort;
+		this.mDatagramServerListener = pDatagramServerListener;
+
+		this.mDatagramChannel = DatagramChannel.open();
+		try {
+			this.mDatagramChannel.socket().bind(new InetSocketAddress(pPort));
+		} catch (final IOException e) {
+			this.mDatagramChannel.close();
+			throw e;
+		}
+
+		this.initName();
+	}
+
+	private void initName() {
+		this.setName(this.getClass().getName());
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public int getPort() {
+		return this.mPort;
+	}
+
+	public boolean isRunning() {
+		return this.mRunning.get();
+	}
+
+	public boolean isTerminated() {
+		return this.mTerminated.get();
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public void run() {
+		this.mRunning.set(true);
+
+		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_MORE_FAVORABLE);  // TODO What ThreadPriority makes sense here?
+
+		final ByteBuffer datagramBuffer = ByteBuffer.allocate(DatagramConnection.DATAGRAM_SIZE_MAXIMUM);
+		Selector selector = null;
+		try {
+			this.mDatagramChannel.configureBlocking(false);
+			selector = Selector.open();
+			this.mDatagramChannel.register(selector, SelectionKey.OP_READ);
+
+			long lastTickTime = SystemClock.uptimeMillis();
+			while(!Thread.interrupted() && this.mRunning.get() && !this.mTerminated.get()) {
+				/* Wakes up at least once per tick, so the DatagramConnections resend and acknowledge in time. */
+				selector.select(DatagramConnection.TICK_INTERVAL);
+				selector.selectedKeys().clear();
+
+				SocketAddress senderSocketAddress;
+				while((senderSocketAddress = this.receive(datagramBuffer)) != null) {
+					this.onReceive(senderSocketAddress, datagramBuffer);
+				}
+
+				final long now = SystemClock.uptimeMillis();
+				if(now - lastTickTime >= DatagramConnection.TICK_INTERVAL) {
+					lastTickTime = now;
+					for(final DatagramConnection datagramConnection : this.mDatagramConnections.values()) {
+						datagramConnection.onTick();
+					}
+				}
+			}
+		} catch (final ClosedChannelException cce) {
+			/* Terminated. */
+		} catch (final Throwable pThrowable) {
+			this.mDatagramServerListener.onException(this, pThrowable);
+		} finally {
+			if(selector != null) {
+				try {
+					selector.close();
+				} catch (final IOException e) {
+					Debug.e(e);
+				}
+			}
+			this.terminate();
+		}
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		this.terminate();
+		super.finalize();
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * @return the sender of the datagram received into the {@link ByteBuffer}, or <code>null</code> when there was none.
+	 */
+	private SocketAddress receive(final ByteBuffer pDatagramBuffer) throws IOException {
+		pDatagramBuffer.clear();
+		final SocketAddress senderSocketAddress = this.mDatagramChannel.receive(pDatagramBuffer);
+		pDatagramBuffer.flip();
+		return senderSocketAddress;
+	}
+
+	private void onReceive(final SocketAddress pSenderSocketAddress, final ByteBuffer pDatagram) {
+		DatagramConnection datagramConnection = this.mDatagramConnections.get(pSenderSocketAddress);
+		if(datagramConnection == null) {
+			try {
+				datagramConnection = this.mDatagramServerListener.onUnknownSender(this, pSenderSocketAddress);
+			} catch (final IOException e) {
+				this.mDatagramServerListener.onException(this, e);
+			}
+			if(datagramConnection == null) {
+				/* Not from any of our clients. */
+				return;
+			}
+			this.mDatagramConnections.put(pSenderSocketAddress, datagramConnection);
+		}
+		datagramConnection.onReceive(pDatagram);
+	}
+
+	/**
+	 * @return a {@link DatagramConnection} to the {@link SocketAddress}, sharing the {@link DatagramChannel} of this {@link DatagramServer}.
+	 */
+	public DatagramConnection newDatagramConnection(final SocketAddress pRemoteSocketAddress) throws IOException {
+		return new DatagramConnection(this.mDatagramChannel, pRemoteSocketAddress, true);
+	}
+
+	/**
+	 * Datagrams from that {@link SocketAddress} are treated as from an unknown sender again.
+	 */
+	public void removeDatagramConnection(final SocketAddress pRemoteSocketAddress) {
+		if(pRemoteSocketAddress != null) {
+			this.mDatagramConnections.remove(pRemoteSocketAddress);
+		}
+	}
+
+	public void terminate() {
+		if(!this.mTerminated.getAndSet(true)) {
+			this.mRunning.set(false);
+
+			try {
+				this.mDatagramChannel.close();
+			} catch (final IOException e) {
+				Debug.e(e);
+			}
+
+			this.interrupt();
+
+			for(final DatagramConnection datagramConnection : this.mDatagramConnections.values()) {
+				datagramConnection.terminate();
+			}
+			this.mDatagramConnections.clear();
+		}
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	public static interface IDatagramServerListener {
+		// ===========================================================
+		// Final Fields
+		// ===========================================================
+
+		// ===========================================================
+		// Methods
+		// ===========================================================
+
+		/**
+		 * Called on the {@link DatagramServer} thread.
+		 * @return the {@link DatagramConnection} the datagrams of that sender are passed to from now on, or <code>null</code> to drop the datagram.
+		 */
+		public DatagramConnection onUnknownSender(final DatagramServer pDatagramServer, final SocketAddress pSenderSocketAddress) throws IOException;
+		public void onException(final DatagramServer pDatagramServer, final Throwable pThrowable);
+	}
+}
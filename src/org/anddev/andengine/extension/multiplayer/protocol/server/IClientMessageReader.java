@@ -9,6 +9,8 @@ import org.anddev.andengine.extension.multiplayer.protocol.shared.Connection;
 import org.anddev.andengine.extension.multiplayer.protocol.shared.IMessageHandler;
 import org.anddev.andengine.extension.multiplayer.protocol.shared.IMessageReader;
 import org.anddev.andengine.extension.multiplayer.protocol.shared.MessageReader;
+import org.anddev.andengine.extension.multiplayer.protocol.util.IMessageFactory;
+import org.anddev.andengine.extension.multiplayer.protocol.util.MessagePool;
 
 /**
  * (c) 2010 Nicolas Gramlich 
@@ -32,12 +34,30 @@ public interface IClientMessageReader<C extends Connection> extends IMessageRead
 	@Override
 	public void registerMessage(final short pFlag, final Class<? extends IClientMessage> pClientMessageClass, final IMessageHandler<C, ClientConnector<C>, IClientMessage> pClientMessageHandler);
 
+	@Override
+	public void registerMessage(final short pFlag, final IMessageFactory<? extends IClientMessage> pClientMessageFactory);
+
+	@Override
+	public void registerMessage(final short pFlag, final IMessageFactory<? extends IClientMessage> pClientMessageFactory, final IMessageHandler<C, ClientConnector<C>, IClientMessage> pClientMessageHandler);
+
+	@Override
+	public void registerMessage(final short pFlag, final IMessageFactory<? extends IClientMessage> pClientMessageFactory, final int pInitialPoolSize);
+
 	@Override
 	public void registerMessageHandler(final short pFlag, final IMessageHandler<C, ClientConnector<C>, IClientMessage> pClientMessageHandler);
 
 	@Override
 	public IClientMessage readMessage(final DataInputStream pDataInputStream) throws IOException;
 
+	@Override
+	public IClientMessage readMessage(final short pFlag, final DataInputStream pDataInputStream) throws IOException;
+
+	@Override
+	public IClientMessage readFramedMessage(final DataInputStream pDataInputStream) throws IOException;
+
+	@Override
+	public IClientMessage readFramedMessage(final short pFlag, final DataInputStream pDataInputStream) throws IOException;
+
 	@Override
 	public void handleMessage(final ClientConnector<C> pClientConnector, final IClientMessage pClientMessage) throws IOException;
 
@@ -61,6 +81,14 @@ public interface IClientMessageReader<C extends Connection> extends IMessageRead
 		// Constructors
 		// ===========================================================
 
+		public ClientMessageReader() {
+			/* Nothing. */
+		}
+
+		public ClientMessageReader(final MessagePool<IClientMessage> pClientMessagePool) {
+			super(pClientMessagePool);
+		}
+
 		// ===========================================================
 		// Getter & Setter
 		// ===========================================================
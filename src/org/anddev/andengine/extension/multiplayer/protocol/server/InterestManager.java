@@ -0,0 +1,277 @@
+package org.anddev.andengine.extension.multiplayer.protocol.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.anddev.andengine.extension.multiplayer.protocol.server.connector.ClientConnector;
+
+import android.util.SparseArray;
+
+/**
+ * Spatial area-of-interest filtering: every {@link ClientConnector} registers a circular area of interest, every entity its position.
+ * The areas are sorted into a uniform grid of square cells, so finding the {@link ClientConnector}s interested in a position
+ * only looks at the areas overlapping the cell of that position, instead of at all {@link ClientConnector}s.
+ * The cell size should be about the typical radius of an area of interest.
+ * Thread-safe.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 17:12:06 - 13.07.2011
+ */
+public class InterestManager<CC extends ClientConnector<?>> {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	/* Cell coordinates are clamped to 16 bits each, so they can be packed into a single int key. Cells beyond that share the border cells. */
+	private static final int CELL_COORDINATE_MINIMUM = Short.MIN_VALUE;
+	private static final int CELL_COORDINATE_MAXIMUM = Short.MAX_VALUE;
+
+	/**
+	 * The most cells a single area of interest may cover per axis, so sorting it into the grid, which happens while holding the lock, stays cheap.
+	 */
+	public static final int CELL_SPAN_MAXIMUM = 64;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final float mCellSize;
+
+	private final Map<CC, Interest<CC>> mInterests = new HashMap<CC, Interest<CC>>();
+	private final SparseArray<ArrayList<Interest<CC>>> mCells = new SparseArray<ArrayList<Interest<CC>>>();
+
+	private final SparseArray<float[]> mEntityPositions = new SparseArray<float[]>();
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public InterestManager(final float pCellSize) {
+		if(!(pCellSize > 0)) {
+			throw new IllegalArgumentException("pCellSize must be positive: " + pCellSize);
+		}
+		this.mCellSize = pCellSize;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public float getCellSize() {
+		return this.mCellSize;
+	}
+
+	public synchronized boolean hasInterest(final CC pClientConnector) {
+		return this.mInterests.containsKey(pClientConnector);
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Adds or moves the area of interest of the {@link ClientConnector}, i.e. every tick around the position of its player.
+	 * The grid is only updated when the area moved into other cells.
+	 * @throws IllegalArgumentException when the area covers more than {@link #CELL_SPAN_MAXIMUM} cells per axis, i.e. the radius is much larger than the cell size.
+	 */
+	public synchronized void setInterest(final CC pClientConnector, final float pX, final float pY, final float pRadius) {
+		final int cellMinimumX = this.getCellCoordinate(pX - pRadius);
+		final int cellMinimumY = this.getCellCoordinate(pY - pRadius);
+		final int cellMaximumX = this.getCellCoordinate(pX + pRadius);
+		final int cellMaximumY = this.getCellCoordinate(pY + pRadius);
+		if(cellMaximumX - cellMinimumX >= CELL_SPAN_MAXIMUM || cellMaximumY - cellMinimumY >= CELL_SPAN_MAXIMUM) {
+			throw new IllegalArgumentException("pRadius: '" + pRadius + "' covers more than: '" + CELL_SPAN_MAXIMUM + "' cells per axis, with a cell size of: '" + this.mCellSize + "'.");
+		}
+
+		Interest<CC> interest = this.mInterests.get(pClientConnector);
+		if(interest == null) {
+			interest = new Interest<CC>(pClientConnector);
+			this.mInterests.put(pClientConnector, interest);
+			interest.setCells(cellMinimumX, cellMinimumY, cellMaximumX, cellMaximumY);
+			this.addToCells(interest);
+		} else if(!interest.hasCells(cellMinimumX, cellMinimumY, cellMaximumX, cellMaximumY)) {
+			this.removeFromCells(interest);
+			interest.setCells(cellMinimumX, cellMinimumY, cellMaximumX, cellMaximumY);
+			this.addToCells(interest);
+		}
+		interest.set(pX, pY, pRadius);
+	}
+
+	/**
+	 * From now on the {@link ClientConnector} is not interested in any position, i.e. when it disconnected.
+	 */
+	public synchronized void removeInterest(final CC pClientConnector) {
+		final Interest<CC> interest = this.mInterests.remove(pClientConnector);
+		if(interest != null) {
+			this.removeFromCells(interest);
+		}
+	}
+
+	public synchronized void setEntityPosition(final int pEntityID, final float pX, final float pY) {
+		float[] position = this.mEntityPositions.get(pEntityID);
+		if(position == null) {
+			position = new float[2];
+			this.mEntityPositions.put(pEntityID, position);
+		}
+		position[0] = pX;
+		position[1] = pY;
+	}
+
+	public synchronized void removeEntity(final int pEntityID) {
+		this.mEntityPositions.delete(pEntityID);
+	}
+
+	/**
+	 * Adds all {@link ClientConnector}s whose area of interest contains the position to the {@link ArrayList}.
+	 */
+	public synchronized void getInterestedClientConnectors(final float pX, final float pY, final ArrayList<CC> pClientConnectors) {
+		final ArrayList<Interest<CC>> cell = this.mCells.get(InterestManager.getCellKey(this.getCellCoordinate(pX), this.getCellCoordinate(pY)));
+		if(cell == null) {
+			return;
+		}
+
+		final int interestCount = cell.size();
+		for(int i = 0; i < interestCount; i++) {
+			final Interest<CC> interest = cell.get(i);
+			if(interest.contains(pX, pY)) {
+				pClientConnectors.add(interest.mClientConnector);
+			}
+		}
+	}
+
+	/**
+	 * Adds all {@link ClientConnector}s whose area of interest contains the position of the entity to the {@link ArrayList}, none when the entity is unknown.
+	 */
+	public synchronized void getInterestedClientConnectors(final int pEntityID, final ArrayList<CC> pClientConnectors) {
+		final float[] position = this.mEntityPositions.get(pEntityID);
+		if(position != null) {
+			this.getInterestedClientConnectors(position[0], position[1], pClientConnectors);
+		}
+	}
+
+	private int getCellCoordinate(final float pCoordinate) {
+		final float cellCoordinate = (float)Math.floor(pCoordinate / this.mCellSize);
+		if(cellCoordinate < CELL_COORDINATE_MINIMUM) {
+			return CELL_COORDINATE_MINIMUM;
+		} else if(cellCoordinate > CELL_COORDINATE_MAXIMUM) {
+			return CELL_COORDINATE_MAXIMUM;
+		} else {
+			return (int)cellCoordinate;
+		}
+	}
+
+	private static int getCellKey(final int pCellX, final int pCellY) {
+		return (pCellX << 16) | (pCellY & 0xFFFF);
+	}
+
+	private void addToCells(final Interest<CC> pInterest) {
+		final SparseArray<ArrayList<Interest<CC>>> cells = this.mCells;
+		for(int cellX = pInterest.mCellMinimumX; cellX <= pInterest.mCellMaximumX; cellX++) {
+			for(int cellY = pInterest.mCellMinimumY; cellY <= pInterest.mCellMaximumY; cellY++) {
+				final int cellKey = InterestManager.getCellKey(cellX, cellY);
+				ArrayList<Interest<CC>> cell = cells.get(cellKey);
+				if(cell == null) {
+					cell = new ArrayList<Interest<CC>>();
+					cells.put(cellKey, cell);
+				}
+				cell.add(pInterest);
+			}
+		}
+	}
+
+	private void removeFromCells(final Interest<CC> pInterest) {
+		final SparseArray<ArrayList<Interest<CC>>> cells = this.mCells;
+		for(int cellX = pInterest.mCellMinimumX; cellX <= pInterest.mCellMaximumX; cellX++) {
+			for(int cellY = pInterest.mCellMinimumY; cellY <= pInterest.mCellMaximumY; cellY++) {
+				final int cellKey = InterestManager.getCellKey(cellX, cellY);
+				final ArrayList<Interest<CC>> cell = cells.get(cellKey);
+				if(cell != null) {
+					cell.remove(pInterest);
+					if(cell.isEmpty()) {
+						cells.delete(cellKey);
+					}
+				}
+			}
+		}
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	private static class Interest<CC> {
+		// ===========================================================
+		// Constants
+		// ===========================================================
+
+		// ===========================================================
+		// Fields
+		// ===========================================================
+
+		private final CC mClientConnector;
+
+		private float mX;
+		private float mY;
+		private float mRadiusSquared;
+
+		private int mCellMinimumX;
+		private int mCellMinimumY;
+		private int mCellMaximumX;
+		private int mCellMaximumY;
+
+		// ===========================================================
+		// Constructors
+		// ===========================================================
+
+		public Interest(final CC pClientConnector) {
+			this.mClientConnector = pClientConnector;
+		}
+
+		// ===========================================================
+		// Getter & Setter
+		// ===========================================================
+
+		public void set(final float pX, final float pY, final float pRadius) {
+			this.mX = pX;
+			this.mY = pY;
+			this.mRadiusSquared = pRadius * pRadius;
+		}
+
+		public void setCells(final int pCellMinimumX, final int pCellMinimumY, final int pCellMaximumX, final int pCellMaximumY) {
+			this.mCellMinimumX = pCellMinimumX;
+			this.mCellMinimumY = pCellMinimumY;
+			this.mCellMaximumX = pCellMaximumX;
+			this.mCellMaximumY = pCellMaximumY;
+		}
+
+		public boolean hasCells(final int pCellMinimumX, final int pCellMinimumY, final int pCellMaximumX, final int pCellMaximumY) {
+			return this.mCellMinimumX == pCellMinimumX && this.mCellMinimumY == pCellMinimumY && this.mCellMaximumX == pCellMaximumX && this.mCellMaximumY == pCellMaximumY;
+		}
+
+		// ===========================================================
+		// Methods for/from SuperClass/Interfaces
+		// ===========================================================
+
+		// ===========================================================
+		// Methods
+		// ===========================================================
+
+		public boolean contains(final float pX, final float pY) {
+			final float dX = pX - this.mX;
+			final float dY = pY - this.mY;
+			return dX * dX + dY * dY <= this.mRadiusSquared;
+		}
+
+		// ===========================================================
+		// Inner and Anonymous Classes
+		// ===========================================================
+	}
+}
@@ -0,0 +1,237 @@
+package org.anddev.andengine.extension.multiplayer.protocol.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.anddev.andengine.extension.multiplayer.protocol.server.NioSocketServer.INioSocketServerListener.DefaultNioSocketServerListener;
+import org.anddev.andengine.extension.multiplayer.protocol.server.connector.ClientConnector;
+import org.anddev.andengine.extension.multiplayer.protocol.server.connector.ClientConnector.IClientConnectorListener;
+import org.anddev.andengine.extension.multiplayer.protocol.server.connector.NioSocketConnectionClientConnector.DefaultNioSocketConnectionClientConnectorListener;
+import org.anddev.andengine.extension.multiplayer.protocol.shared.NioSelectorThread;
+import org.anddev.andengine.extension.multiplayer.protocol.shared.NioSocketConnection;
+import org.anddev.andengine.util.Debug;
+
+/**
+ * A {@link Server} that serves all of its clients from a small fixed amount of {@link NioSelectorThread}s,
+ * instead of running one blocking {@link Thread} per client like the {@link SocketServer} does.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 12:10:33 - 04.07.2011
+ */
+public abstract class NioSocketServer<CC extends ClientConnector<NioSocketConnection>> extends Server<NioSocketConnection, CC> {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	public static final int SELECTORTHREAD_COUNT_DEFAULT = 2;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final int mPort;
+	private ServerSocketChannel mServerSocketChannel;
+
+	private final NioSelectorThread[] mNioSelectorThreads;
+	private int mNioSelectorThreadIndex;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public NioSocketServer(final int pPort) {
+		this(pPort, new DefaultNioSocketConnectionClientConnectorListener());
+	}
+
+	public NioSocketServer(final int pPort, final IClientConnectorListener<NioSocketConnection> pClientConnectorListener) {
+		this(pPort, pClientConnectorListener, new DefaultNioSocketServerListener<CC>());
+	}
+
+	public NioSocketServer(final int pPort, final INioSocketServerListener<CC> pNioSocketServerListener) {
+		this(pPort, new DefaultNioSocketConnectionClientConnectorListener(), pNioSocketServerListener);
+	}
+
+	public NioSocketServer(final int pPort, final IClientConnectorListener<NioSocketConnection> pClientConnectorListener, final INioSocketServerListener<CC> pNioSocketServerListener) {
+		this(pPort, SELECTORTHREAD_COUNT_DEFAULT, pClientConnectorListener, pNioSocketServerListener);
+	}
+
+	public NioSocketServer(final int pPort, final int pSelectorThreadCount, final IClientConnectorListener<NioSocketConnection> pClientConnectorListener, final INioSocketServerListener<CC> pNioSocketServerListener) {
+		super(pClientConnectorListener, pNioSocketServerListener);
+
+		if (pPort < 0) {
+			final IllegalArgumentException illegalArgumentException = new IllegalArgumentException("Illegal port '< 0'.");
+			this.onException(illegalArgumentException);
+			throw illegalArgumentException;
+		} else if (pSelectorThreadCount < 1) {
+			final IllegalArgumentException illegalArgumentException = new IllegalArgumentException("Illegal selectorThreadCount '< 1'.");
+			this.onException(illegalArgumentException);
+			throw illegalArgumentException;
+		} else {
+			this.mPort = pPort;
+			this.mNioSelectorThreads = new NioSelectorThread[pSelectorThreadCount];
+		}
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public int getPort() {
+		return this.mPort;
+	}
+
+	public int getSelectorThreadCount() {
+		return this.mNioSelectorThreads.length;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public INioSocketServerListener<CC> getServerListener() {
+		return (INioSocketServerListener<CC>)super.getServerListener();
+	}
+
+	public void setNioSocketServerListener(final INioSocketServerListener<CC> pNioSocketServerListener) {
+		super.setServerListener(pNioSocketServerListener);
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	protected abstract CC newClientConnector(final NioSocketConnection pNioSocketConnection) throws IOException;
+
+	@Override
+	protected void onStart() throws IOException {
+		final NioSelectorThread[] nioSelectorThreads = this.mNioSelectorThreads;
+		for(int i = 0; i < nioSelectorThreads.length; i++) {
+			nioSelectorThreads[i] = new NioSelectorThread();
+			nioSelectorThreads[i].start();
+		}
+
+		/* The ServerSocketChannel stays blocking, as accepting happens on the Server-Thread itself. */
+		this.mServerSocketChannel = ServerSocketChannel.open();
+		this.mServerSocketChannel.socket().bind(new InetSocketAddress(this.mPort));
+		this.getServerListener().onStarted(this);
+	}
+
+	@Override
+	protected CC acceptClientConnector() throws IOException {
+		/* Wait for an incoming connection. */
+		final SocketChannel clientSocketChannel = this.mServerSocketChannel.accept();
+
+		/* Spawn a new ClientConnector, which is served by one of the NioSelectorThreads. */
+		return this.newClientConnector(new NioSocketConnection(clientSocketChannel, this.nextNioSelectorThread()));
+	}
+
+	@Override
+	protected void onTerminate() {
+		if(this.mServerSocketChannel != null) {
+			try {
+				this.mServerSocketChannel.close();
+			} catch (final IOException e) {
+				Debug.e(e);
+			}
+		}
+
+		final NioSelectorThread[] nioSelectorThreads = this.mNioSelectorThreads;
+		for(int i = 0; i < nioSelectorThreads.length; i++) {
+			if(nioSelectorThreads[i] != null) {
+				nioSelectorThreads[i].terminate();
+			}
+		}
+
+		this.getServerListener().onTerminated(this);
+	}
+
+	@Override
+	protected void onException(final Throwable pThrowable) {
+		this.getServerListener().onException(this, pThrowable);
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	private NioSelectorThread nextNioSelectorThread() {
+		final NioSelectorThread[] nioSelectorThreads = this.mNioSelectorThreads;
+		this.mNioSelectorThreadIndex = (this.mNioSelectorThreadIndex + 1) % nioSelectorThreads.length;
+		return nioSelectorThreads[this.mNioSelectorThreadIndex];
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	public static interface INioSocketServerListener<CC extends ClientConnector<NioSocketConnection>> extends IServerListener<NioSocketServer<CC>> {
+		// ===========================================================
+		// Final Fields
+		// ===========================================================
+
+		// ===========================================================
+		// Methods
+		// ===========================================================
+
+		@Override
+		public void onStarted(final NioSocketServer<CC> pNioSocketServer);
+
+		@Override
+		public void onTerminated(final NioSocketServer<CC> pNioSocketServer);
+
+		@Override
+		public void onException(final NioSocketServer<CC> pNioSocketServer, final Throwable pThrowable);
+
+		// ===========================================================
+		// Inner and Anonymous Classes
+		// ===========================================================
+
+		public static class DefaultNioSocketServerListener<CC extends ClientConnector<NioSocketConnection>> implements INioSocketServerListener<CC> {
+			// ===========================================================
+			// Constants
+			// ===========================================================
+
+			// ===========================================================
+			// Fields
+			// ===========================================================
+
+			// ===========================================================
+			// Constructors
+			// ===========================================================
+
+			// ===========================================================
+			// Getter & Setter
+			// ===========================================================
+
+			// ===========================================================
+			// Methods for/from SuperClass/Interfaces
+			// ===========================================================
+
+			@Override
+			public void onStarted(final NioSocketServer<CC> pNioSocketServer) {
+				Debug.d("NioSocketServer started on port: " + pNioSocketServer.getPort());
+			}
+
+			@Override
+			public void onTerminated(final NioSocketServer<CC> pNioSocketServer) {
+				Debug.d("NioSocketServer terminated on port: " + pNioSocketServer.getPort());
+			}
+
+			@Override
+			public void onException(final NioSocketServer<CC> pNioSocketServer, final Throwable pThrowable) {
+				Debug.e(pThrowable);
+			}
+
+			// ===========================================================
+			// Methods
+			// ===========================================================
+
+			// ===========================================================
+			// Inner and Anonymous Classes
+			// ===========================================================
+		}
+	}
+}
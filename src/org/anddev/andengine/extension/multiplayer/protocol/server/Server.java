@@ -1,15 +1,25 @@
 package org.anddev.andengine.extension.multiplayer.protocol.server;
 
 import java.io.IOException;
+import java.net.SocketAddress;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.anddev.andengine.extension.multiplayer.protocol.adt.message.client.IClientMessage;
 import org.anddev.andengine.extension.multiplayer.protocol.adt.message.server.IServerMessage;
+import org.anddev.andengine.extension.multiplayer.protocol.server.DatagramServer.IDatagramServerListener;
 import org.anddev.andengine.extension.multiplayer.protocol.server.connector.ClientConnector;
 import org.anddev.andengine.extension.multiplayer.protocol.server.connector.ClientConnector.IClientConnectorListener;
 import org.anddev.andengine.extension.multiplayer.protocol.shared.Connection;
+import org.anddev.andengine.extension.multiplayer.protocol.shared.DatagramConnection;
+import org.anddev.andengine.extension.multiplayer.protocol.shared.Connector.DispatchPolicy;
+import org.anddev.andengine.extension.multiplayer.protocol.shared.Connector.FlushPolicy;
+import org.anddev.andengine.extension.multiplayer.protocol.util.MessageEncoder;
 import org.anddev.andengine.util.Debug;
-import org.anddev.andengine.util.SmartList;
 
 /**
  * (c) 2010 Nicolas Gramlich 
@@ -23,6 +33,8 @@ public abstract class Server<C extends Connection, CC extends ClientConnector<C>
 	// Constants
 	// ===========================================================
 
+	public static final long TERMINATE_TIMEOUT_DEFAULT = 1000;
+
 	// ===========================================================
 	// Fields
 	// ===========================================================
@@ -32,9 +44,20 @@ public abstract class Server<C extends Connection, CC extends ClientConnector<C>
 	private final AtomicBoolean mRunning = new AtomicBoolean(false);
 	private final AtomicBoolean mTerminated = new AtomicBoolean(false);
 
-	protected final SmartList<CC> mClientConnectors = new SmartList<CC>();
+	protected final ClientConnectorRegistry<CC> mClientConnectorRegistry = new ClientConnectorRegistry<CC>();
 	protected IClientConnectorListener<C> mClientConnectorListener;
 
+	private final MessageEncoder mBroadcastMessageEncoder = new MessageEncoder();
+
+	private DatagramServer mDatagramServer;
+
+	/* Joining and leaving doesn't block sending to a room, sending iterates over a snapshot of its members.
+	 * Joining and leaving lock the members of the room, so a room is only removed while it is empty and nobody can join it. */
+	private final ConcurrentMap<String, CopyOnWriteArrayList<CC>> mRooms = new ConcurrentHashMap<String, CopyOnWriteArrayList<CC>>();
+
+	private InterestManager<CC> mInterestManager;
+	private final ArrayList<CC> mInterestedClientConnectors = new ArrayList<CC>();
+
 	// ===========================================================
 	// Constructors
 	// ===========================================================
@@ -70,6 +93,36 @@ public abstract class Server<C extends Connection, CC extends ClientConnector<C>
 		this.mClientConnectorListener = pClientConnectorListener;
 	}
 
+	/**
+	 * @return an immutable snapshot of all connected {@link ClientConnector}s.
+	 */
+	public List<CC> getClientConnectors() {
+		return this.mClientConnectorRegistry.getClientConnectors();
+	}
+
+	/**
+	 * @return <code>null</code> when no {@link ClientConnector} with that {@link Connection#getConnectionID()} is connected.
+	 */
+	public CC getClientConnector(final int pConnectionID) {
+		return this.mClientConnectorRegistry.getClientConnector(pConnectionID);
+	}
+
+	public boolean hasDatagramServer() {
+		return this.mDatagramServer != null;
+	}
+
+	public DatagramServer getDatagramServer() {
+		return this.mDatagramServer;
+	}
+
+	public boolean hasInterestManager() {
+		return this.mInterestManager != null;
+	}
+
+	public InterestManager<CC> getInterestManager() {
+		return this.mInterestManager;
+	}
+
 	public IServerListener<? extends Server<C, CC>> getServerListener() {
 		return this.mServerListener;
 	}
@@ -136,51 +189,364 @@ public abstract class Server<C extends Connection, CC extends ClientConnector<C>
 	// Methods
 	// ===========================================================
 
-	private synchronized void onAddClientConnector(final CC pClientConnector) {
-		Server.this.mClientConnectors.add(pClientConnector);
+	private void onAddClientConnector(final CC pClientConnector) {
+		this.mClientConnectorRegistry.add(pClientConnector);
+
+		if(this.mTerminated.get()) {
+			/* Started while terminating, possibly after all ClientConnectors were terminated. */
+			this.mClientConnectorRegistry.remove(pClientConnector);
+			pClientConnector.terminate();
+		}
+	}
+
+	private void onRemoveClientConnector(final CC pClientConnector) {
+		this.mClientConnectorRegistry.remove(pClientConnector);
+
+		if(this.mDatagramServer != null) {
+			this.mDatagramServer.removeDatagramConnection(pClientConnector.getConnection().getRemoteSocketAddress());
+		}
+
+		if(this.mInterestManager != null) {
+			this.mInterestManager.removeInterest(pClientConnector);
+		}
+
+		this.leaveAllRooms(pClientConnector);
+	}
+
+	/**
+	 * Starts receiving datagrams on the port, i.e. the same port number the clients connect to.
+	 * A {@link ClientConnector} gets its {@link DatagramConnection} as soon as the first datagram arrives from the {@link SocketAddress} of its {@link Connection},
+	 * until then all messages are sent over the {@link Connection}. See {@link DatagramConnection#create(java.net.Socket)} for the client side.
+	 */
+	public synchronized void enableDatagramServer(final int pPort) throws IOException {
+		if(this.mDatagramServer != null) {
+			throw new IllegalStateException(DatagramServer.class.getSimpleName() + " was already enabled.");
+		}
+
+		this.mDatagramServer = new DatagramServer(pPort, new IDatagramServerListener() {
+			@Override
+			public DatagramConnection onUnknownSender(final DatagramServer pDatagramServer, final SocketAddress pSenderSocketAddress) throws IOException {
+				return Server.this.onDatagramFromUnknownSender(pDatagramServer, pSenderSocketAddress);
+			}
+
+			@Override
+			public void onException(final DatagramServer pDatagramServer, final Throwable pThrowable) {
+				Server.this.onException(pThrowable);
+			}
+		});
+		this.mDatagramServer.start();
+	}
+
+	/**
+	 * Enables the positional {@link #sendBroadcastServerMessage(IServerMessage, float, float)}.
+	 * The areas of interest of the {@link ClientConnector}s and the positions of the entities are set on the {@link InterestManager}, see {@link #getInterestManager()}.
+	 * @param pCellSize see {@link InterestManager#InterestManager(float)}.
+	 */
+	public synchronized void enableInterestManager(final float pCellSize) {
+		if(this.mInterestManager != null) {
+			throw new IllegalStateException(InterestManager.class.getSimpleName() + " was already enabled.");
+		}
+
+		this.mInterestManager = new InterestManager<CC>(pCellSize);
 	}
 
-	private synchronized void onRemoveClientConnector(final CC pClientConnector) {
-		Server.this.mClientConnectors.remove(pClientConnector);
+	private DatagramConnection onDatagramFromUnknownSender(final DatagramServer pDatagramServer, final SocketAddress pSenderSocketAddress) throws IOException {
+		final CC clientConnector = this.mClientConnectorRegistry.getClientConnector(pSenderSocketAddress);
+		if(clientConnector == null) {
+			return null;
+		}
+
+		final DatagramConnection datagramConnection = pDatagramServer.newDatagramConnection(pSenderSocketAddress);
+		clientConnector.setDatagramConnection(datagramConnection);
+		datagramConnection.start();
+		return datagramConnection;
 	}
 
+	/**
+	 * @see #terminate(long)
+	 */
 	public void terminate() {
-		if(!this.mTerminated.getAndSet(true)) {
-			this.mRunning.set(false);
+		this.terminate(TERMINATE_TIMEOUT_DEFAULT);
+	}
+
+	/**
+	 * Closes all {@link ClientConnector}s at once, each after everything sent to it was written, see {@link ClientConnector#drainAndTerminate()},
+	 * and waits until all of them are closed, but no longer than the timeout. The {@link ClientConnector}s still open then are closed right away.
+	 * @param pTimeoutMilliseconds <code>0</code> to not wait for the {@link ClientConnector}s to drain.
+	 * @return <code>true</code> when all {@link ClientConnector}s closed within the timeout, <code>false</code> when some were closed right away or the {@link Server} was already terminated.
+	 */
+	public boolean terminate(final long pTimeoutMilliseconds) {
+		if(this.mTerminated.getAndSet(true)) {
+			return false;
+		}
+
+		this.mRunning.set(false);
+
+		boolean closedInTime = true;
+		try {
+			final long deadline = System.currentTimeMillis() + pTimeoutMilliseconds;
+			final List<CC> clientConnectors = this.mClientConnectorRegistry.clear();
+
+			/* First let all Clients drain in parallel, which never blocks. */
+			for(final CC clientConnector : clientConnectors) {
+				if(pTimeoutMilliseconds > 0) {
+					clientConnector.drainAndTerminate();
+				} else {
+					clientConnector.terminate();
+				}
+			}
+
+			/* Then wait for all of them against a common deadline, so the slowest one determines how long this takes. */
+			for(final CC clientConnector : clientConnectors) {
+				final Connection connection = clientConnector.getConnection();
+				/* A Client terminating the Server from its own thread can't wait for itself. */
+				if(closedInTime && connection != Thread.currentThread()) {
+					final long remainingMilliseconds = Math.max(0, deadline - System.currentTimeMillis());
+					try {
+						closedInTime = connection.awaitTermination(remainingMilliseconds);
+					} catch (final InterruptedException e) {
+						Debug.e(e);
+						closedInTime = false;
+					}
+				}
+
+				/* Does nothing when it is already terminated, otherwise closes it even when it is stuck draining. */
+				clientConnector.terminate();
+			}
+		} catch (final Exception e) {
+			this.onException(e);
+			closedInTime = false;
+		}
+
+		if(this.mDatagramServer != null) {
+			this.mDatagramServer.terminate();
+		}
+
+		this.interrupt();
+
+		this.onTerminate();
+
+		return closedInTime;
+	}
+
+	/**
+	 * The {@link IServerMessage} is encoded only once (per framing mode) and the same encoded data is sent to all {@link ClientConnector}s.
+	 */
+	public synchronized void sendBroadcastServerMessage(final IServerMessage pServerMessage) throws IOException {
+		if(this.mRunning.get()) {
+			this.sendBroadcastServerMessage(pServerMessage, this.mClientConnectorRegistry.getClientConnectors());
+		}
+	}
+
+	/**
+	 * Like {@link #sendBroadcastServerMessage(IServerMessage)}, but only sent to the {@link ClientConnector}s whose area of interest contains the position.
+	 * The work done only grows with the amount of {@link ClientConnector}s around that position, not with the total amount.
+	 * @see #enableInterestManager(float)
+	 */
+	public synchronized void sendBroadcastServerMessage(final IServerMessage pServerMessage, final float pX, final float pY) throws IOException {
+		if(this.mRunning.get()) {
+			final ArrayList<CC> interestedClientConnectors = this.mInterestedClientConnectors;
+			try {
+				this.getInterestManagerOrThrow().getInterestedClientConnectors(pX, pY, interestedClientConnectors);
+				this.sendBroadcastServerMessage(pServerMessage, interestedClientConnectors);
+			} finally {
+				interestedClientConnectors.clear();
+			}
+		}
+	}
+
+	/**
+	 * Like {@link #sendBroadcastServerMessage(IServerMessage, float, float)}, at the position of the entity, see {@link InterestManager#setEntityPosition(int, float, float)}.
+	 */
+	public synchronized void sendBroadcastServerMessage(final IServerMessage pServerMessage, final int pEntityID) throws IOException {
+		if(this.mRunning.get()) {
+			final ArrayList<CC> interestedClientConnectors = this.mInterestedClientConnectors;
+			try {
+				this.getInterestManagerOrThrow().getInterestedClientConnectors(pEntityID, interestedClientConnectors);
+				this.sendBroadcastServerMessage(pServerMessage, interestedClientConnectors);
+			} finally {
+				interestedClientConnectors.clear();
+			}
+		}
+	}
+
+	/**
+	 * Like {@link #sendBroadcastServerMessage(IServerMessage)}, but only sent to the members of the room, see {@link #joinRoom(String, ClientConnector)}.
+	 */
+	public synchronized void sendRoomServerMessage(final String pRoomName, final IServerMessage pServerMessage) throws IOException {
+		if(this.mRunning.get()) {
+			final List<CC> members = this.mRooms.get(pRoomName);
+			if(members != null) {
+				this.sendBroadcastServerMessage(pServerMessage, members);
+			}
+		}
+	}
+
+	/**
+	 * Rooms are created on the first join and removed after the last leave. A {@link ClientConnector} can be a member of any amount of rooms,
+	 * and leaves all of them when it disconnects.
+	 * @return <code>true</code> if the {@link ClientConnector} was not a member of the room yet, <code>false</code> also when it is disconnected.
+	 */
+	public boolean joinRoom(final String pRoomName, final CC pClientConnector) {
+		final ConcurrentMap<String, CopyOnWriteArrayList<CC>> rooms = this.mRooms;
+		while(true) {
+			CopyOnWriteArrayList<CC> members = rooms.get(pRoomName);
+			if(members == null) {
+				final CopyOnWriteArrayList<CC> newMembers = new CopyOnWriteArrayList<CC>();
+				members = rooms.putIfAbsent(pRoomName, newMembers);
+				if(members == null) {
+					members = newMembers;
+				}
+			}
+
+			final boolean joined;
+			synchronized(members) {
+				if(rooms.get(pRoomName) != members) {
+					/* The room was removed by the last leave in the meantime, join its successor instead. */
+					continue;
+				}
+				joined = members.addIfAbsent(pClientConnector);
+			}
+
+			/* Disconnected in the meantime, leaveAllRooms might have missed this room. */
+			if(joined && pClientConnector.getConnection().isTerminated()) {
+				this.leaveRoom(pRoomName, pClientConnector);
+				return false;
+			}
+			return joined;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the {@link ClientConnector} was a member of the room.
+	 */
+	public boolean leaveRoom(final String pRoomName, final CC pClientConnector) {
+		final CopyOnWriteArrayList<CC> members = this.mRooms.get(pRoomName);
+		if(members == null) {
+			return false;
+		}
+
+		synchronized(members) {
+			final boolean left = members.remove(pClientConnector);
+			if(members.isEmpty()) {
+				this.mRooms.remove(pRoomName, members);
+			}
+			return left;
+		}
+	}
+
+	public void leaveAllRooms(final CC pClientConnector) {
+		for(final String roomName : this.mRooms.keySet()) {
+			this.leaveRoom(roomName, pClientConnector);
+		}
+	}
+
+	/**
+	 * @return the current members of the room, never modified afterwards, empty when there is no such room.
+	 */
+	public List<CC> getRoomMembers(final String pRoomName) {
+		final CopyOnWriteArrayList<CC> members = this.mRooms.get(pRoomName);
+		if(members == null) {
+			return new ArrayList<CC>(0);
+		} else {
+			return new ArrayList<CC>(members);
+		}
+	}
+
+	public boolean isInRoom(final String pRoomName, final CC pClientConnector) {
+		final CopyOnWriteArrayList<CC> members = this.mRooms.get(pRoomName);
+		return members != null && members.contains(pClientConnector);
+	}
+
+	private InterestManager<CC> getInterestManagerOrThrow() {
+		if(this.mInterestManager == null) {
+			throw new IllegalStateException(InterestManager.class.getSimpleName() + " was not enabled.");
+		}
+		return this.mInterestManager;
+	}
 
+	private void sendBroadcastServerMessage(final IServerMessage pServerMessage, final List<CC> pClientConnectors) {
+		/* Encoded lazily, once for all framed and once for all unframed ClientConnectors. */
+		byte[] encodedServerMessage = null;
+		byte[] encodedFramedServerMessage = null;
+		for(final CC clientConnector : pClientConnectors) {
 			try {
-				/* First interrupt all Clients. */
-				final ArrayList<CC> clientConnectors = this.mClientConnectors;
-				for(int i = 0; i < clientConnectors.size(); i++) {
-					clientConnectors.get(i).terminate();
+				if(clientConnector.isFramed()) {
+					if(encodedFramedServerMessage == null) {
+						encodedFramedServerMessage = this.mBroadcastMessageEncoder.encodeFramed(pServerMessage);
+					}
+					clientConnector.sendEncodedServerMessage(pServerMessage.getFlag(), encodedFramedServerMessage);
+				} else {
+					if(encodedServerMessage == null) {
+						encodedServerMessage = this.mBroadcastMessageEncoder.encode(pServerMessage);
+					}
+					clientConnector.sendEncodedServerMessage(pServerMessage.getFlag(), encodedServerMessage);
 				}
-				clientConnectors.clear();
-			} catch (final Exception e) {
+			} catch (final IOException e) {
 				this.onException(e);
 			}
+		}
+	}
 
+	/**
+	 * Flushes all {@link ClientConnector}s, i.e. at the end of a tick when they use {@link FlushPolicy#MANUAL}.
+	 */
+	public synchronized void flush() {
+		final List<CC> clientConnectors = this.mClientConnectorRegistry.getClientConnectors();
+		for(int i = 0; i < clientConnectors.size(); i++) {
 			try {
-				Thread.sleep(1000);
-			} catch (final InterruptedException e) {
-				Debug.e(e);
+				clientConnectors.get(i).flush();
+			} catch (final IOException e) {
+				this.onException(e);
 			}
-			this.interrupt();
+		}
+	}
 
-			this.onTerminate();
+	/**
+	 * Begins a batch on all {@link ClientConnector}s, see {@link ClientConnector#beginBatch()}, i.e. at the start of a tick.
+	 */
+	public synchronized void beginBatch() {
+		final List<CC> clientConnectors = this.mClientConnectorRegistry.getClientConnectors();
+		for(int i = 0; i < clientConnectors.size(); i++) {
+			final CC clientConnector = clientConnectors.get(i);
+			if(!clientConnector.isBatching()) {
+				clientConnector.beginBatch();
+			}
 		}
 	}
 
-	public synchronized void sendBroadcastServerMessage(final IServerMessage pServerMessage) throws IOException {
-		if(this.mRunning.get()) {
-			final ArrayList<CC> clientConnectors = this.mClientConnectors;
-			for(int i = 0; i < clientConnectors.size(); i++) {
-				try {
-					clientConnectors.get(i).sendServerMessage(pServerMessage);
-				} catch (final IOException e) {
-					this.onException(e);
+	/**
+	 * Commits the batches of all {@link ClientConnector}s, see {@link ClientConnector#commitBatch()}, i.e. at the end of a tick.
+	 */
+	public synchronized void commitBatch() {
+		final List<CC> clientConnectors = this.mClientConnectorRegistry.getClientConnectors();
+		for(int i = 0; i < clientConnectors.size(); i++) {
+			try {
+				final CC clientConnector = clientConnectors.get(i);
+				if(clientConnector.isBatching()) {
+					clientConnector.commitBatch();
 				}
+			} catch (final IOException e) {
+				this.onException(e);
+			}
+		}
+	}
+
+	/**
+	 * Handles the pending {@link IClientMessage}s of all {@link ClientConnector}s that use {@link DispatchPolicy#QUEUED}, on the calling thread, i.e. once per tick on the update thread.
+	 * @return the amount of handled {@link IClientMessage}s.
+	 */
+	public synchronized int processPendingMessages() {
+		int processedCount = 0;
+		final List<CC> clientConnectors = this.mClientConnectorRegistry.getClientConnectors();
+		for(int i = 0; i < clientConnectors.size(); i++) {
+			try {
+				processedCount += clientConnectors.get(i).processPendingMessages();
+			} catch (final IOException e) {
+				this.onException(e);
 			}
 		}
+		return processedCount;
 	}
 
 	// ===========================================================
@@ -0,0 +1,250 @@
+package org.anddev.andengine.extension.multiplayer.protocol.server;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.anddev.andengine.extension.multiplayer.protocol.adt.message.client.IClientMessage;
+import org.anddev.andengine.extension.multiplayer.protocol.adt.message.client.SnapshotAcknowledgementClientMessage;
+import org.anddev.andengine.extension.multiplayer.protocol.adt.message.server.SnapshotServerMessage;
+import org.anddev.andengine.extension.multiplayer.protocol.server.connector.ClientConnector;
+import org.anddev.andengine.extension.multiplayer.protocol.server.connector.ClientConnector.IClientConnectorListener;
+import org.anddev.andengine.extension.multiplayer.protocol.shared.Connection;
+import org.anddev.andengine.extension.multiplayer.protocol.shared.DatagramConnection;
+import org.anddev.andengine.extension.multiplayer.protocol.shared.Snapshot;
+import org.anddev.andengine.extension.multiplayer.protocol.util.IMessageFactory;
+import org.anddev.andengine.extension.multiplayer.protocol.util.MessageEncoder;
+import org.anddev.andengine.util.Debug;
+
+import android.util.SparseArray;
+
+/**
+ * Replicates the entities of a {@link Snapshot} to any amount of {@link ClientConnector}s, instead of sending the whole state every tick.
+ * Keeps the last {@link Snapshot}s sent and, for every {@link ClientConnector}, the latest one it acknowledged,
+ * so each {@link ClientConnector} only receives what changed since then. {@link ClientConnector}s that acknowledged the same {@link Snapshot} share the same encoded delta.
+ * The client side is the {@link org.anddev.andengine.extension.multiplayer.protocol.client.SnapshotReceiver}, with the same flags and history size.
+ * 
+ * Typical use, on the update thread: modify {@link #getSnapshot()} and call {@link #sendSnapshot()} once per tick.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 16:03:58 - 13.07.2011
+ */
+public class SnapshotReplicator<C extends Connection> {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final short mSnapshotFlag;
+	private final short mAcknowledgementFlag;
+
+	private final Snapshot mSnapshot = new Snapshot();
+	private final Snapshot[] mHistory;
+	/* Only written by sendSnapshot, but also read on the threads of the ClientConnectors. */
+	private volatile int mSequence = Snapshot.SEQUENCE_NONE;
+
+	/* Acknowledgements arrive on the threads of the ClientConnectors. */
+	private final Map<ClientConnector<C>, AtomicInteger> mAcknowledgedSequences = new ConcurrentHashMap<ClientConnector<C>, AtomicInteger>();
+
+	private final SnapshotServerMessage mSnapshotServerMessage;
+	private final MessageEncoder mMessageEncoder = new MessageEncoder();
+	/* Per baseline sequence, only valid during sendSnapshot. */
+	private final SparseArray<byte[]> mEncodedSnapshotServerMessages = new SparseArray<byte[]>();
+	private final SparseArray<byte[]> mEncodedFramedSnapshotServerMessages = new SparseArray<byte[]>();
+
+	private final IMessageFactory<SnapshotAcknowledgementClientMessage> mAcknowledgementMessageFactory = new IMessageFactory<SnapshotAcknowledgementClientMessage>() {
+		@Override
+		public SnapshotAcknowledgementClientMessage newMessage() {
+			return new SnapshotAcknowledgementClientMessage(SnapshotReplicator.this.mAcknowledgementFlag);
+		}
+	};
+
+	private final IClientMessageHandler<C> mAcknowledgementMessageHandler = new IClientMessageHandler<C>() {
+		@Override
+		public void onHandleMessage(final ClientConnector<C> pClientConnector, final IClientMessage pClientMessage) {
+			SnapshotReplicator.this.onAcknowledgement(pClientConnector, ((SnapshotAcknowledgementClientMessage) pClientMessage).getSequence());
+		}
+	};
+
+	private final IClientConnectorListener<C> mClientConnectorListener = new IClientConnectorListener<C>() {
+		@Override
+		public void onStarted(final ClientConnector<C> pClientConnector) {
+			/* Nothing, it was added already. */
+		}
+
+		@Override
+		public void onTerminated(final ClientConnector<C> pClientConnector) {
+			SnapshotReplicator.this.removeClientConnector(pClientConnector);
+		}
+	};
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public SnapshotReplicator(final short pSnapshotFlag, final short pAcknowledgementFlag) {
+		this(pSnapshotFlag, pAcknowledgementFlag, Snapshot.HISTORY_SIZE_DEFAULT);
+	}
+
+	/**
+	 * @param pHistorySize the amount of sent {@link Snapshot}s kept as possible baselines. A client that didn't acknowledge any of them receives all entities again.
+	 */
+	public SnapshotReplicator(final short pSnapshotFlag, final short pAcknowledgementFlag, final int pHistorySize) {
+		if(pHistorySize < 1) {
+			throw new IllegalArgumentException("pHistorySize must be at least 1: " + pHistorySize);
+		}
+
+		this.mSnapshotFlag = pSnapshotFlag;
+		this.mAcknowledgementFlag = pAcknowledgementFlag;
+		this.mSnapshotServerMessage = new SnapshotServerMessage(pSnapshotFlag);
+
+		this.mHistory = new Snapshot[pHistorySize];
+		for(int i = 0; i < pHistorySize; i++) {
+			this.mHistory[i] = new Snapshot();
+		}
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return the {@link Snapshot} that is sent with the next {@link #sendSnapshot()}. It keeps its entities afterwards, so only what changed needs to be updated.
+	 */
+	public Snapshot getSnapshot() {
+		return this.mSnapshot;
+	}
+
+	/**
+	 * @return the sequence of the last {@link Snapshot} sent, {@link Snapshot#SEQUENCE_NONE} before the first one.
+	 */
+	public int getSequence() {
+		return this.mSequence;
+	}
+
+	/**
+	 * @return the sequence of the latest {@link Snapshot} the {@link ClientConnector} acknowledged, {@link Snapshot#SEQUENCE_NONE} when there is none.
+	 */
+	public int getAcknowledgedSequence(final ClientConnector<C> pClientConnector) {
+		final AtomicInteger acknowledgedSequence = this.mAcknowledgedSequences.get(pClientConnector);
+		return (acknowledgedSequence == null) ? Snapshot.SEQUENCE_NONE : acknowledgedSequence.get();
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Registers the acknowledgement message on the {@link ClientConnector}, so it has to be called before its {@link IClientMessageReader} is frozen.
+	 * The {@link ClientConnector} receives all entities with the next {@link #sendSnapshot()}, i.e. call it from {@link ClientConnector.IClientConnectorListener#onStarted(ClientConnector)}.
+	 * It is removed again on its own once it terminated.
+	 */
+	public void addClientConnector(final ClientConnector<C> pClientConnector) {
+		pClientConnector.registerClientMessage(this.mAcknowledgementFlag, this.mAcknowledgementMessageFactory, this.mAcknowledgementMessageHandler);
+		this.mAcknowledgedSequences.put(pClientConnector, new AtomicInteger(Snapshot.SEQUENCE_NONE));
+		pClientConnector.addClientConnectorListener(this.mClientConnectorListener);
+	}
+
+	public void removeClientConnector(final ClientConnector<C> pClientConnector) {
+		if(this.mAcknowledgedSequences.remove(pClientConnector) != null) {
+			pClientConnector.removeClientConnectorListener(this.mClientConnectorListener);
+		}
+	}
+
+	/**
+	 * Records the current state of {@link #getSnapshot()} under the next sequence and sends it to all {@link ClientConnector}s,
+	 * each as a delta against the latest {@link Snapshot} it acknowledged that is still in the history.
+	 * When the snapshot flag is sent as a datagram, deltas that don't fit into one, i.e. all entities for a new {@link ClientConnector}, are sent over the {@link Connection} instead.
+	 */
+	public synchronized void sendSnapshot() {
+		final int sequence = ++this.mSequence;
+
+		final Snapshot snapshot = this.mHistory[sequence % this.mHistory.length];
+		snapshot.set(this.mSnapshot);
+		snapshot.setSequence(sequence);
+
+		final SparseArray<byte[]> encodedSnapshotServerMessages = this.mEncodedSnapshotServerMessages;
+		final SparseArray<byte[]> encodedFramedSnapshotServerMessages = this.mEncodedFramedSnapshotServerMessages;
+		try {
+			for(final Entry<ClientConnector<C>, AtomicInteger> entry : this.mAcknowledgedSequences.entrySet()) {
+				final ClientConnector<C> clientConnector = entry.getKey();
+				final Snapshot baseline = this.getHistorySnapshot(entry.getValue().get());
+				final int baselineSequence = (baseline == null) ? Snapshot.SEQUENCE_NONE : baseline.getSequence();
+
+				try {
+					final boolean framed = clientConnector.isFramed();
+					final SparseArray<byte[]> encodedServerMessages = framed ? encodedFramedSnapshotServerMessages : encodedSnapshotServerMessages;
+					byte[] encodedServerMessage = encodedServerMessages.get(baselineSequence);
+					if(encodedServerMessage == null) {
+						this.mSnapshotServerMessage.setSnapshot(snapshot, baseline);
+						if(framed) {
+							encodedServerMessage = this.mMessageEncoder.encodeFramed(this.mSnapshotServerMessage);
+						} else {
+							encodedServerMessage = this.mMessageEncoder.encode(this.mSnapshotServerMessage);
+						}
+						encodedServerMessages.put(baselineSequence, encodedServerMessage);
+					}
+					/* Too big for a datagram, so sent over the reliable Connection, where it would go anyway when the flag isn't sent as a datagram. */
+					if(encodedServerMessage.length > DatagramConnection.MESSAGE_SIZE_MAXIMUM) {
+						clientConnector.sendEncodedServerMessage(encodedServerMessage);
+					} else {
+						clientConnector.sendEncodedServerMessage(this.mSnapshotFlag, encodedServerMessage);
+					}
+				} catch (final IOException e) {
+					Debug.e(e);
+				}
+			}
+		} finally {
+			encodedSnapshotServerMessages.clear();
+			encodedFramedSnapshotServerMessages.clear();
+		}
+	}
+
+	/**
+	 * @return <code>null</code> when the {@link Snapshot} with that sequence is no longer (or not yet) in the history.
+	 */
+	private Snapshot getHistorySnapshot(final int pSequence) {
+		if(pSequence == Snapshot.SEQUENCE_NONE || pSequence > this.mSequence || pSequence <= this.mSequence - this.mHistory.length) {
+			return null;
+		}
+
+		final Snapshot snapshot = this.mHistory[pSequence % this.mHistory.length];
+		return (snapshot.getSequence() == pSequence) ? snapshot : null;
+	}
+
+	private void onAcknowledgement(final ClientConnector<C> pClientConnector, final int pSequence) {
+		final AtomicInteger acknowledgedSequence = this.mAcknowledgedSequences.get(pClientConnector);
+		if(acknowledgedSequence == null) {
+			return;
+		}
+
+		/* A Snapshot that wasn't sent yet can't have been received. */
+		if(pSequence > this.mSequence) {
+			return;
+		}
+
+		/* Acknowledgements might arrive out of order, i.e. as datagrams. Only ever move forward. */
+		while(true) {
+			final int current = acknowledgedSequence.get();
+			if(pSequence <= current || acknowledgedSequence.compareAndSet(current, pSequence)) {
+				return;
+			}
+		}
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+}
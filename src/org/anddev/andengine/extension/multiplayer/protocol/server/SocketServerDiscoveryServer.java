@@ -4,8 +4,14 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.anddev.andengine.extension.multiplayer.protocol.server.SocketServerDiscoveryServer.ISocketServerDiscoveryServerListener.DefaultSocketServerDiscoveryServerListener;
 import org.anddev.andengine.extension.multiplayer.protocol.shared.IDiscoveryData;
@@ -15,6 +21,13 @@ import org.anddev.andengine.util.Debug;
 import org.anddev.andengine.util.SocketUtils;
 
 /**
+ * Discovery requests are limited per sender by a token bucket, see {@link #setRateLimit(float, int)},
+ * and repeated requests from the same sender within the coalesce window are answered only once, see {@link #setCoalesceWindow(int)},
+ * so a client discovering in a loop can't keep the server busy.
+ * <p/>
+ * Instead of broadcasts, the requests can be received on a multicast group, IPv4 or IPv6, see {@link #setMulticastGroup(InetAddress, NetworkInterface)},
+ * so only devices that joined the group process them. On Android receiving multicast requires a {@link org.anddev.andengine.extension.multiplayer.protocol.util.WifiUtils#aquireMulticastLock(android.content.Context)}.
+ * 
  * (c) 2010 Nicolas Gramlich 
  * (c) 2011 Zynga Inc.
  * 
@@ -28,6 +41,22 @@ public abstract class SocketServerDiscoveryServer<T extends IDiscoveryData> exte
 
 	public static final int DISCOVERYPORT_DEFAULT = 9999;
 
+	/**
+	 * An administratively scoped IPv4 multicast group, 239.255.65.69.
+	 */
+	public static final byte[] MULTICASTGROUP_IPV4_DEFAULT = new byte[]{(byte)239, (byte)255, (byte)65, (byte)69};
+	/**
+	 * A transient link-local IPv6 multicast group, ff12::4145.
+	 */
+	public static final byte[] MULTICASTGROUP_IPV6_DEFAULT = new byte[]{(byte)0xFF, (byte)0x12, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte)0x41, (byte)0x45};
+
+	public static final float RATELIMIT_REQUESTS_PER_SECOND_DEFAULT = 2;
+	public static final int RATELIMIT_BURST_DEFAULT = 5;
+	public static final int COALESCE_WINDOW_DEFAULT = 100;
+
+	/* Senders that didn't send a request for that long are forgotten. */
+	private static final int DISCOVERYREQUESTSOURCE_EXPIRY = 10000;
+
 	public static final byte[] MAGIC_IDENTIFIER = new byte[]{
 		(byte)'A',
 		(byte)'n',
@@ -70,9 +99,28 @@ public abstract class SocketServerDiscoveryServer<T extends IDiscoveryData> exte
 
 	private DatagramSocket mDatagramSocket;
 
+	private InetAddress mMulticastGroupInetAddress;
+	private NetworkInterface mMulticastNetworkInterface;
+
 	private final byte[] mDiscoveryRequestData = new byte[1024];
 	private final DatagramPacket mDiscoveryRequestDatagramPacket = new DatagramPacket(this.mDiscoveryRequestData, this.mDiscoveryRequestData.length);
 
+	/* Holds the encoded discovery response, which is only encoded again when it was marked dirty. */
+	private final DatagramPacket mDiscoveryResponseDatagramPacket = new DatagramPacket(new byte[0], 0);
+	private final AtomicBoolean mDiscoveryResponseDirty = new AtomicBoolean(true);
+
+	private float mRateLimitRequestsPerSecond = RATELIMIT_REQUESTS_PER_SECOND_DEFAULT;
+	private int mRateLimitBurst = RATELIMIT_BURST_DEFAULT;
+	private int mCoalesceWindow = COALESCE_WINDOW_DEFAULT;
+
+	/* Only accessed by the thread of this SocketServerDiscoveryServer. */
+	private final HashMap<InetAddress, DiscoveryRequestSource> mDiscoveryRequestSources = new HashMap<InetAddress, DiscoveryRequestSource>();
+	private long mDiscoveryRequestSourcesExpiredTimestamp;
+
+	private final AtomicInteger mServedDiscoveryRequestCount = new AtomicInteger(0);
+	private final AtomicInteger mRateLimitedDiscoveryRequestCount = new AtomicInteger(0);
+	private final AtomicInteger mCoalescedDiscoveryRequestCount = new AtomicInteger(0);
+
 	protected ISocketServerDiscoveryServerListener<T> mSocketServerDiscoveryServerListener;
 	protected AtomicBoolean mRunning = new AtomicBoolean(false);
 	protected AtomicBoolean mTerminated = new AtomicBoolean(false);
@@ -128,10 +176,108 @@ public abstract class SocketServerDiscoveryServer<T extends IDiscoveryData> exte
 		return this.mSocketServerDiscoveryServerListener;
 	}
 
+	public boolean isMulticast() {
+		return this.mMulticastGroupInetAddress != null;
+	}
+
+	/**
+	 * @return <code>null</code> when discovery requests are received as broadcasts.
+	 */
+	public InetAddress getMulticastGroupInetAddress() {
+		return this.mMulticastGroupInetAddress;
+	}
+
+	public NetworkInterface getMulticastNetworkInterface() {
+		return this.mMulticastNetworkInterface;
+	}
+
+	/**
+	 * @see #setMulticastGroup(InetAddress, NetworkInterface)
+	 */
+	public void setMulticastGroup(final byte[] pMulticastGroupIPAddress, final NetworkInterface pNetworkInterface) throws UnknownHostException {
+		this.setMulticastGroup(InetAddress.getByAddress(pMulticastGroupIPAddress), pNetworkInterface);
+	}
+
+	/**
+	 * Has to be called before {@link #start()}. The clients have to send their requests to the same group, see {@link org.anddev.andengine.extension.multiplayer.protocol.client.SocketServerDiscoveryClient}.
+	 * @param pMulticastGroupInetAddress i.e. {@link #MULTICASTGROUP_IPV4_DEFAULT} or {@link #MULTICASTGROUP_IPV6_DEFAULT}.
+	 * @param pNetworkInterface the {@link NetworkInterface} to join the group on, <code>null</code> for the default one. IPv6 link-local groups usually need one.
+	 * A Linux host without a route for IPv6 multicast, i.e. one that only has a loopback interface, needs one added first: <code>ip -6 route add ff00::/8 dev lo table local</code>.
+	 */
+	public void setMulticastGroup(final InetAddress pMulticastGroupInetAddress, final NetworkInterface pNetworkInterface) {
+		if(!pMulticastGroupInetAddress.isMulticastAddress()) {
+			throw new IllegalArgumentException("Not a multicast address: '" + pMulticastGroupInetAddress.getHostAddress() + "'.");
+		}
+		this.mMulticastGroupInetAddress = pMulticastGroupInetAddress;
+		this.mMulticastNetworkInterface = pNetworkInterface;
+	}
+
+	public float getRateLimitRequestsPerSecond() {
+		return this.mRateLimitRequestsPerSecond;
+	}
+
+	public int getRateLimitBurst() {
+		return this.mRateLimitBurst;
+	}
+
+	/**
+	 * Has to be called before {@link #start()}.
+	 * @param pRequestsPerSecond how many discovery requests per second are answered per sender in the long run.
+	 * @param pBurst how many discovery requests in a row are answered per sender, before the rate limit kicks in.
+	 */
+	public void setRateLimit(final float pRequestsPerSecond, final int pBurst) {
+		if(!(pRequestsPerSecond > 0) || pBurst < 1) {
+			throw new IllegalArgumentException("pRequestsPerSecond: '" + pRequestsPerSecond + "' and pBurst: '" + pBurst + "' must be positive.");
+		}
+		this.mRateLimitRequestsPerSecond = pRequestsPerSecond;
+		this.mRateLimitBurst = pBurst;
+	}
+
+	public int getCoalesceWindow() {
+		return this.mCoalesceWindow;
+	}
+
+	/**
+	 * Has to be called before {@link #start()}.
+	 * @param pCoalesceWindow in milliseconds, <code>0</code> to answer repeated requests too.
+	 */
+	public void setCoalesceWindow(final int pCoalesceWindow) {
+		this.mCoalesceWindow = pCoalesceWindow;
+	}
+
+	/**
+	 * @return the amount of discovery requests that were answered.
+	 */
+	public int getServedDiscoveryRequestCount() {
+		return this.mServedDiscoveryRequestCount.get();
+	}
+
+	/**
+	 * @return the amount of discovery requests that were dropped because the sender exceeded the rate limit.
+	 */
+	public int getRateLimitedDiscoveryRequestCount() {
+		return this.mRateLimitedDiscoveryRequestCount.get();
+	}
+
+	/**
+	 * @return the amount of discovery requests that were dropped because the sender was answered within the coalesce window already.
+	 */
+	public int getCoalescedDiscoveryRequestCount() {
+		return this.mCoalescedDiscoveryRequestCount.get();
+	}
+
+	public int getDroppedDiscoveryRequestCount() {
+		return this.mRateLimitedDiscoveryRequestCount.get() + this.mCoalescedDiscoveryRequestCount.get();
+	}
+
 	// ===========================================================
 	// Methods for/from SuperClass/Interfaces
 	// ===========================================================
 
+	/**
+	 * Called for the first response and whenever the discovery response was marked dirty, see {@link #setDiscoveryResponseDirty()}.
+	 * The response is encoded right away, so the returned {@link IDiscoveryData} can be reused.
+	 */
 	protected abstract T onCreateDiscoveryResponse();
 
 	@Override
@@ -145,11 +291,14 @@ public abstract class SocketServerDiscoveryServer<T extends IDiscoveryData> exte
 
 			while(!Thread.interrupted() && this.mRunning.get() && !this.mTerminated.get()) {
 				try {
+					/* The length shrinks to the length of the last received datagram. */
+					this.mDiscoveryRequestDatagramPacket.setLength(this.mDiscoveryRequestData.length);
 					this.mDatagramSocket.receive(this.mDiscoveryRequestDatagramPacket);
 
-					if(this.verifyDiscoveryRequest(this.mDiscoveryRequestDatagramPacket)) {
+					if(this.verifyDiscoveryRequest(this.mDiscoveryRequestDatagramPacket) && this.acceptDiscoveryRequest(this.mDiscoveryRequestDatagramPacket)) {
 						this.onDiscovered(this.mDiscoveryRequestDatagramPacket);
 						this.sendDiscoveryResponse(this.mDiscoveryRequestDatagramPacket);
+						this.mServedDiscoveryRequestCount.incrementAndGet();
 					}
 				} catch (final Throwable pThrowable) {
 					this.onException(pThrowable);
@@ -176,18 +325,100 @@ public abstract class SocketServerDiscoveryServer<T extends IDiscoveryData> exte
 		return ArrayUtils.equals(MAGIC_IDENTIFIER, 0, pDiscoveryRequest.getData(), pDiscoveryRequest.getOffset(), MAGIC_IDENTIFIER.length);
 	}
 
+	/**
+	 * @return <code>false</code> when the request is dropped, as the sender was answered within the coalesce window already or exceeded the rate limit.
+	 */
+	protected boolean acceptDiscoveryRequest(final DatagramPacket pDiscoveryRequest) {
+		final InetAddress inetAddress = pDiscoveryRequest.getAddress();
+		final int port = pDiscoveryRequest.getPort();
+		final long now = System.currentTimeMillis();
+
+		this.expireDiscoveryRequestSources(now);
+
+		DiscoveryRequestSource discoveryRequestSource = this.mDiscoveryRequestSources.get(inetAddress);
+		if(discoveryRequestSource == null) {
+			discoveryRequestSource = new DiscoveryRequestSource(this.mRateLimitBurst, now);
+			this.mDiscoveryRequestSources.put(inetAddress, discoveryRequestSource);
+		}
+		discoveryRequestSource.mLastRequestTimestamp = now;
+
+		/* I.e. the same request broadcast on multiple interfaces, the response that was already sent answers it. Doesn't cost a token. */
+		if(discoveryRequestSource.mLastServedPort == port && now - discoveryRequestSource.mLastServedTimestamp < this.mCoalesceWindow) {
+			this.mCoalescedDiscoveryRequestCount.incrementAndGet();
+			this.onDiscoveryRequestDropped(pDiscoveryRequest, DiscoveryRequestDropReason.COALESCED);
+			return false;
+		}
+
+		if(!discoveryRequestSource.takeToken(now, this.mRateLimitRequestsPerSecond, this.mRateLimitBurst)) {
+			this.mRateLimitedDiscoveryRequestCount.incrementAndGet();
+			this.onDiscoveryRequestDropped(pDiscoveryRequest, DiscoveryRequestDropReason.RATE_LIMITED);
+			return false;
+		}
+
+		discoveryRequestSource.mLastServedPort = port;
+		discoveryRequestSource.mLastServedTimestamp = now;
+		return true;
+	}
+
+	private void expireDiscoveryRequestSources(final long pNow) {
+		if(pNow - this.mDiscoveryRequestSourcesExpiredTimestamp < DISCOVERYREQUESTSOURCE_EXPIRY) {
+			return;
+		}
+		this.mDiscoveryRequestSourcesExpiredTimestamp = pNow;
+
+		final Iterator<DiscoveryRequestSource> iterator = this.mDiscoveryRequestSources.values().iterator();
+		while(iterator.hasNext()) {
+			if(pNow - iterator.next().mLastRequestTimestamp > DISCOVERYREQUESTSOURCE_EXPIRY) {
+				iterator.remove();
+			}
+		}
+	}
+
+	protected void onDiscoveryRequestDropped(final DatagramPacket pDiscoveryRequest, final DiscoveryRequestDropReason pDiscoveryRequestDropReason) {
+		this.mSocketServerDiscoveryServerListener.onDiscoveryRequestDropped(this, pDiscoveryRequest.getAddress(), pDiscoveryRequest.getPort(), pDiscoveryRequestDropReason);
+	}
+
 	protected void onDiscovered(final DatagramPacket pDiscoveryRequest) throws IOException {
 		this.mSocketServerDiscoveryServerListener.onDiscovered(this, pDiscoveryRequest.getAddress(), pDiscoveryRequest.getPort());
 	}
 
+	/**
+	 * From the next discovery request on, the response is created and encoded again, see {@link #onCreateDiscoveryResponse()}.
+	 * Call it whenever the discovery data changed, i.e. the amount of players. Can be called from any thread.
+	 */
+	public void setDiscoveryResponseDirty() {
+		this.mDiscoveryResponseDirty.set(true);
+	}
+
 	protected void sendDiscoveryResponse(final DatagramPacket pDatagramPacket) throws IOException {
-		final byte[] discoveryResponseData = DiscoveryDataFactory.write(this.onCreateDiscoveryResponse());
+		final DatagramPacket discoveryResponseDatagramPacket = this.mDiscoveryResponseDatagramPacket;
+		if(this.mDiscoveryResponseDirty.getAndSet(false)) {
+			try {
+				final byte[] discoveryResponseData = DiscoveryDataFactory.write(this.onCreateDiscoveryResponse());
+				discoveryResponseDatagramPacket.setData(discoveryResponseData);
+			} catch (final IOException e) {
+				this.mDiscoveryResponseDirty.set(true);
+				throw e;
+			} catch (final RuntimeException e) {
+				this.mDiscoveryResponseDirty.set(true);
+				throw e;
+			}
+		}
 
-		this.mDatagramSocket.send(new DatagramPacket(discoveryResponseData, discoveryResponseData.length, pDatagramPacket.getAddress(), pDatagramPacket.getPort()));
+		discoveryResponseDatagramPacket.setAddress(pDatagramPacket.getAddress());
+		discoveryResponseDatagramPacket.setPort(pDatagramPacket.getPort());
+		this.mDatagramSocket.send(discoveryResponseDatagramPacket);
 	}
 
-	protected void onStart() throws SocketException {
-		this.mDatagramSocket = new DatagramSocket(this.mDiscoveryPort);
+	protected void onStart() throws IOException {
+		if(this.mMulticastGroupInetAddress == null) {
+			this.mDatagramSocket = new DatagramSocket(this.mDiscoveryPort);
+		} else {
+			final MulticastSocket multicastSocket = new MulticastSocket(this.mDiscoveryPort);
+			this.mDatagramSocket = multicastSocket;
+			/* A null NetworkInterface joins on the default one. */
+			multicastSocket.joinGroup(new InetSocketAddress(this.mMulticastGroupInetAddress, this.mDiscoveryPort), this.mMulticastNetworkInterface);
+		}
 
 		this.mSocketServerDiscoveryServerListener.onStarted(this);
 	}
@@ -215,6 +446,82 @@ public abstract class SocketServerDiscoveryServer<T extends IDiscoveryData> exte
 	// Inner and Anonymous Classes
 	// ===========================================================
 
+	public static enum DiscoveryRequestDropReason {
+		// ===========================================================
+		// Elements
+		// ===========================================================
+
+		/**
+		 * The sender exceeded the rate limit, see {@link SocketServerDiscoveryServer#setRateLimit(float, int)}.
+		 */
+		RATE_LIMITED,
+		/**
+		 * The sender was answered within the coalesce window already, see {@link SocketServerDiscoveryServer#setCoalesceWindow(int)}.
+		 */
+		COALESCED;
+	}
+
+	private static class DiscoveryRequestSource {
+		// ===========================================================
+		// Constants
+		// ===========================================================
+
+		// ===========================================================
+		// Fields
+		// ===========================================================
+
+		private float mTokens;
+		private long mTokensTimestamp;
+
+		private long mLastRequestTimestamp;
+
+		private int mLastServedPort = -1;
+		private long mLastServedTimestamp;
+
+		// ===========================================================
+		// Constructors
+		// ===========================================================
+
+		public DiscoveryRequestSource(final int pTokens, final long pTimestamp) {
+			this.mTokens = pTokens;
+			this.mTokensTimestamp = pTimestamp;
+		}
+
+		// ===========================================================
+		// Getter & Setter
+		// ===========================================================
+
+		// ===========================================================
+		// Methods for/from SuperClass/Interfaces
+		// ===========================================================
+
+		// ===========================================================
+		// Methods
+		// ===========================================================
+
+		/**
+		 * Refills the bucket for the time that passed, up to the burst, then takes a token out of it.
+		 * @return <code>false</code> when the bucket was empty.
+		 */
+		public boolean takeToken(final long pNow, final float pTokensPerSecond, final int pTokensMaximum) {
+			final long elapsed = pNow - this.mTokensTimestamp;
+			if(elapsed > 0) {
+				this.mTokens = Math.min(pTokensMaximum, this.mTokens + elapsed * pTokensPerSecond / 1000);
+				this.mTokensTimestamp = pNow;
+			}
+
+			if(this.mTokens < 1) {
+				return false;
+			}
+			this.mTokens--;
+			return true;
+		}
+
+		// ===========================================================
+		// Inner and Anonymous Classes
+		// ===========================================================
+	}
+
 	public interface ISocketServerDiscoveryServerListener<T extends IDiscoveryData> {
 		// ===========================================================
 		// Final Fields
@@ -226,6 +533,10 @@ public abstract class SocketServerDiscoveryServer<T extends IDiscoveryData> exte
 
 		public void onStarted(final SocketServerDiscoveryServer<T> pSocketServerDiscoveryServer);
 		public void onDiscovered(final SocketServerDiscoveryServer<T> pSocketServerDiscoveryServer, final InetAddress pInetAddress, final int pPort);
+		/**
+		 * See {@link SocketServerDiscoveryServer#getDroppedDiscoveryRequestCount()} and {@link SocketServerDiscoveryServer#getServedDiscoveryRequestCount()} for the totals.
+		 */
+		public void onDiscoveryRequestDropped(final SocketServerDiscoveryServer<T> pSocketServerDiscoveryServer, final InetAddress pInetAddress, final int pPort, final DiscoveryRequestDropReason pDiscoveryRequestDropReason);
 		public void onTerminated(final SocketServerDiscoveryServer<T> pSocketServerDiscoveryServer);
 		public void onException(final SocketServerDiscoveryServer<T> pSocketServerDiscoveryServer, final Throwable pThrowable);
 
@@ -269,6 +580,11 @@ public abstract class SocketServerDiscoveryServer<T extends IDiscoveryData> exte
 				Debug.d("SocketServerDiscoveryServer discovered by: " + pInetAddress.getHostAddress() + ":" + pPort);
 			}
 
+			@Override
+			public void onDiscoveryRequestDropped(final SocketServerDiscoveryServer<T> pSocketServerDiscoveryServer, final InetAddress pInetAddress, final int pPort, final DiscoveryRequestDropReason pDiscoveryRequestDropReason) {
+				/* Not logged, as a flooding client would flood the log too. */
+			}
+
 			@Override
 			public void onException(final SocketServerDiscoveryServer<T> pSocketServerDiscoveryServer, final Throwable pThrowable) {
 				Debug.e(pThrowable);
@@ -1,8 +1,11 @@
 package org.anddev.andengine.extension.multiplayer.protocol.server.connector;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.anddev.andengine.extension.multiplayer.protocol.adt.message.client.IClientMessage;
 import org.anddev.andengine.extension.multiplayer.protocol.adt.message.server.IServerMessage;
@@ -11,6 +14,11 @@ import org.anddev.andengine.extension.multiplayer.protocol.server.IClientMessage
 import org.anddev.andengine.extension.multiplayer.protocol.server.IClientMessageReader.ClientMessageReader;
 import org.anddev.andengine.extension.multiplayer.protocol.shared.Connection;
 import org.anddev.andengine.extension.multiplayer.protocol.shared.Connector;
+import org.anddev.andengine.extension.multiplayer.protocol.shared.OutboundQueue;
+import org.anddev.andengine.extension.multiplayer.protocol.shared.OutboundQueue.OverflowPolicy;
+import org.anddev.andengine.extension.multiplayer.protocol.util.IMessageFactory;
+import org.anddev.andengine.extension.multiplayer.protocol.util.MessageBatch;
+import org.anddev.andengine.util.Debug;
 import org.anddev.andengine.util.ParameterCallable;
 import org.anddev.andengine.util.SmartList;
 
@@ -31,6 +39,9 @@ public class ClientConnector<C extends Connection> extends Connector<C> {
 	// ===========================================================
 
 	private final IClientMessageReader<C> mClientMessageReader;
+	private final Queue<IClientMessage> mPendingClientMessages = new ConcurrentLinkedQueue<IClientMessage>();
+
+	private OutboundQueue mOutboundQueue;
 
 	private final ParameterCallable<IClientConnectorListener<C>> mOnStartedParameterCallable = new ParameterCallable<ClientConnector.IClientConnectorListener<C>>() {
 		@Override
@@ -68,6 +79,22 @@ public class ClientConnector<C extends Connection> extends Connector<C> {
 		return this.mClientMessageReader;
 	}
 
+	public boolean hasOutboundQueue() {
+		return this.mOutboundQueue != null;
+	}
+
+	public OutboundQueue getOutboundQueue() {
+		return this.mOutboundQueue;
+	}
+
+	/**
+	 * @return the amount of messages waiting in the {@link OutboundQueue}, <code>0</code> when there is no {@link OutboundQueue}.
+	 */
+	public int getOutboundQueueDepth() {
+		final OutboundQueue outboundQueue = this.mOutboundQueue;
+		return (outboundQueue == null) ? 0 : outboundQueue.getDepth();
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
 	public SmartList<IClientConnectorListener<C>> getConnectorListeners() {
@@ -93,20 +120,162 @@ public class ClientConnector<C extends Connection> extends Connector<C> {
 
 	@Override
 	public void onTerminated(final Connection pConnection) {
+		if(this.mOutboundQueue != null) {
+			this.mOutboundQueue.terminate();
+		}
+		this.terminateDatagramConnection();
 		this.getConnectorListeners().call(this.mOnTerminatedParameterCallable);
 	}
 
+	/**
+	 * Like {@link #terminate()}, but a batch that is still open is committed and everything sent so far is written first:
+	 * the messages waiting in the {@link OutboundQueue}, see {@link OutboundQueue#drain()}, or else whatever the {@link Connection} still buffers, see {@link Connection#drain()}.
+	 * Never blocks: a blocking {@link Connection} without an {@link OutboundQueue} is flushed on a {@link Thread} of its own, see {@link Connection#isBlocking()},
+	 * which only gets unstuck by {@link #terminate()} when the other side stopped reading.
+	 */
+	public void drainAndTerminate() {
+		final OutboundQueue outboundQueue = this.mOutboundQueue;
+		if((outboundQueue == null || !outboundQueue.isAlive()) && this.mConnection.isBlocking()) {
+			new Thread() {
+				@Override
+				public void run() {
+					ClientConnector.this.flushAndDrain();
+				}
+			}.start();
+		} else {
+			this.flushAndDrain();
+		}
+	}
+
+	private void flushAndDrain() {
+		try {
+			synchronized(this) {
+				if(this.isBatching()) {
+					this.commitBatch();
+				}
+				/* Also flushes the DatagramConnection. */
+				this.flush();
+			}
+		} catch (final IOException e) {
+			Debug.e(e);
+		}
+
+		final OutboundQueue outboundQueue = this.mOutboundQueue;
+		if(outboundQueue != null && outboundQueue.isAlive()) {
+			outboundQueue.drain();
+		} else {
+			this.mConnection.drain();
+		}
+	}
+
+	/**
+	 * The whole batch is enqueued into the {@link OutboundQueue} at once, when there is one.
+	 */
+	@Override
+	protected void writeBatch(final MessageBatch pMessageBatch, final int pLength) throws IOException {
+		if(this.mOutboundQueue != null) {
+			this.enqueue(pMessageBatch.encode(pLength));
+		} else {
+			super.writeBatch(pMessageBatch, pLength);
+		}
+	}
+
+	/**
+	 * When there is an {@link OutboundQueue}, it flushes on its own whenever it ran empty.
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		if(this.mOutboundQueue == null) {
+			super.flush();
+		}
+	}
+
+	/**
+	 * A batch is unpacked right away, its {@link IClientMessage}s are handled one after another, just like they were sent on their own.
+	 */
 	@Override
 	public void read(final DataInputStream pDataInputStream) throws IOException {
-		final IClientMessage clientMessage = this.mClientMessageReader.readMessage(pDataInputStream);
-		this.mClientMessageReader.handleMessage(this, clientMessage);
-		this.mClientMessageReader.recycleMessage(clientMessage);
+		final short flag = pDataInputStream.readShort();
+		if(flag == MessageBatch.FLAG_BATCH) {
+			final DataInputStream batchDataInputStream = this.mClientMessageReader.readBatch(pDataInputStream);
+			try {
+				while(batchDataInputStream.available() > 0) {
+					this.onClientMessageRead(this.readClientMessage(batchDataInputStream.readShort(), batchDataInputStream));
+				}
+			} catch (final EOFException e) {
+				/* The batch was read completely, so it must not be read again as if it was incomplete. */
+				throw new StreamCorruptedException("Message is longer than the rest of its batch.");
+			}
+		} else {
+			this.onClientMessageRead(this.readClientMessage(flag, pDataInputStream));
+		}
 	}
 
 	// ===========================================================
 	// Methods
 	// ===========================================================
 
+	private IClientMessage readClientMessage(final short pFlag, final DataInputStream pDataInputStream) throws IOException {
+		if(this.mFramed) {
+			return this.mClientMessageReader.readFramedMessage(pFlag, pDataInputStream);
+		} else {
+			return this.mClientMessageReader.readMessage(pFlag, pDataInputStream);
+		}
+	}
+
+	/**
+	 * @param pClientMessage <code>null</code> when it was skipped.
+	 */
+	private void onClientMessageRead(final IClientMessage pClientMessage) throws IOException {
+		if(pClientMessage == null) {
+			return;
+		}
+
+		if(this.mDispatchPolicy == DispatchPolicy.QUEUED) {
+			this.mPendingClientMessages.offer(pClientMessage);
+		} else {
+			this.mClientMessageReader.handleMessage(this, pClientMessage);
+			this.mClientMessageReader.recycleMessage(pClientMessage);
+		}
+	}
+
+	/**
+	 * Handles all {@link IClientMessage}s that were queued because of {@link DispatchPolicy#QUEUED}, on the calling thread. Each one is recycled afterwards.
+	 * @return the amount of handled {@link IClientMessage}s.
+	 */
+	public int processPendingMessages() throws IOException {
+		return this.processPendingMessages(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param pMaximum the maximum amount of {@link IClientMessage}s to handle, the rest stays queued.
+	 * @return the amount of handled {@link IClientMessage}s.
+	 */
+	public int processPendingMessages(final int pMaximum) throws IOException {
+		final Queue<IClientMessage> pendingClientMessages = this.mPendingClientMessages;
+		final IClientMessageReader<C> clientMessageReader = this.mClientMessageReader;
+
+		int processedCount = 0;
+		while(processedCount < pMaximum) {
+			final IClientMessage clientMessage = pendingClientMessages.poll();
+			if(clientMessage == null) {
+				break;
+			}
+			processedCount++;
+
+			try {
+				clientMessageReader.handleMessage(this, clientMessage);
+			} finally {
+				clientMessageReader.recycleMessage(clientMessage);
+			}
+		}
+		return processedCount;
+	}
+
+	public boolean hasPendingMessages() {
+		return !this.mPendingClientMessages.isEmpty();
+	}
+
 	public void registerClientMessage(final short pFlag, final Class<? extends IClientMessage> pClientMessageClass) {
 		this.mClientMessageReader.registerMessage(pFlag, pClientMessageClass);
 	}
@@ -115,14 +284,96 @@ public class ClientConnector<C extends Connection> extends Connector<C> {
 		this.mClientMessageReader.registerMessage(pFlag, pClientMessageClass, pClientMessageHandler);
 	}
 
+	public void registerClientMessage(final short pFlag, final IMessageFactory<? extends IClientMessage> pClientMessageFactory) {
+		this.mClientMessageReader.registerMessage(pFlag, pClientMessageFactory);
+	}
+
+	public void registerClientMessage(final short pFlag, final IMessageFactory<? extends IClientMessage> pClientMessageFactory, final IClientMessageHandler<C> pClientMessageHandler) {
+		this.mClientMessageReader.registerMessage(pFlag, pClientMessageFactory, pClientMessageHandler);
+	}
+
+	public void registerClientMessage(final short pFlag, final IMessageFactory<? extends IClientMessage> pClientMessageFactory, final int pInitialPoolSize) {
+		this.mClientMessageReader.registerMessage(pFlag, pClientMessageFactory, pInitialPoolSize);
+	}
+
 	public void registerClientMessageHandler(final short pFlag, final IClientMessageHandler<C> pClientMessageHandler) {
 		this.mClientMessageReader.registerMessageHandler(pFlag, pClientMessageHandler);
 	}
 
+	/**
+	 * From now on all {@link IServerMessage}s are encoded and enqueued into an {@link OutboundQueue}, so sending them returns immediately.
+	 * The {@link OutboundQueue} is drained by its own writer thread. Not needed for non-blocking {@link Connection}s, like the {@link org.anddev.andengine.extension.multiplayer.protocol.shared.NioSocketConnection},
+	 * which bounds its pending output with the same {@link OverflowPolicy}s, see {@link org.anddev.andengine.extension.multiplayer.protocol.shared.NioSocketConnection#setPendingOutputLimit(int, OverflowPolicy)}.
+	 */
+	public synchronized void enableOutboundQueue(final int pCapacity, final OverflowPolicy pOverflowPolicy) {
+		if(this.mOutboundQueue != null) {
+			throw new IllegalStateException(OutboundQueue.class.getSimpleName() + " was already enabled.");
+		}
+
+		this.mOutboundQueue = new OutboundQueue(this.mConnection, pCapacity, pOverflowPolicy);
+		this.mOutboundQueue.start();
+	}
+
+	/**
+	 * {@link IServerMessage}s sent as datagrams bypass the {@link OutboundQueue}, as sending a datagram doesn't block.
+	 * While batching, the {@link IServerMessage} is only enqueued along with the whole batch, see {@link #commitBatch()}.
+	 * When the {@link OutboundQueue} is full, its {@link OverflowPolicy} might drop the {@link IServerMessage} without an {@link IOException}, see {@link OutboundQueue#getDroppedCount()}.
+	 * @throws IOException also when the {@link OutboundQueue} was terminated, i.e. by {@link OverflowPolicy#DISCONNECT}, or is draining.
+	 */
 	public synchronized void sendServerMessage(final IServerMessage pServerMessage) throws IOException {
-		final DataOutputStream dataOutputStream = this.mConnection.getDataOutputStream();
-		pServerMessage.write(dataOutputStream);
-		dataOutputStream.flush();
+		if(this.mOutboundQueue != null && !this.isBatching() && !this.isSentAsDatagram(pServerMessage.getFlag())) {
+			this.enqueue(this.encode(pServerMessage));
+		} else {
+			this.write(pServerMessage);
+		}
+	}
+
+	/**
+	 * Sends an {@link IServerMessage} that was already encoded, i.e. once for many {@link ClientConnector}s.
+	 * Dropped like in {@link #sendServerMessage(IServerMessage)} when the {@link OutboundQueue} is full.
+	 * @param pEncodedServerMessage must match {@link #isFramed()} and must not be modified afterwards.
+	 * @throws IOException also when the {@link OutboundQueue} was terminated, i.e. by {@link OverflowPolicy#DISCONNECT}, or is draining.
+	 */
+	public synchronized void sendEncodedServerMessage(final byte[] pEncodedServerMessage) throws IOException {
+		if(this.isBatching()) {
+			final MessageBatch messageBatch = this.getMessageBatch();
+			final int batchSize = messageBatch.size();
+			messageBatch.append(pEncodedServerMessage);
+			this.limitBatch(batchSize);
+			return;
+		}
+
+		if(this.mOutboundQueue != null) {
+			this.enqueue(pEncodedServerMessage);
+			return;
+		}
+
+		this.mConnection.writeEncodedData(pEncodedServerMessage);
+		if(this.mFlushPolicy == FlushPolicy.PER_MESSAGE) {
+			this.mConnection.getDataOutputStream().flush();
+		}
+	}
+
+	/**
+	 * Like {@link #sendEncodedServerMessage(byte[])}, but sent as a datagram when the flag was registered with {@link #registerDatagramFlag(short)}.
+	 */
+	public synchronized void sendEncodedServerMessage(final short pFlag, final byte[] pEncodedServerMessage) throws IOException {
+		if(this.isSentAsDatagram(pFlag)) {
+			this.writeEncodedDatagram(pFlag, pEncodedServerMessage);
+		} else {
+			this.sendEncodedServerMessage(pEncodedServerMessage);
+		}
+	}
+
+	/**
+	 * A message the {@link OverflowPolicy} dropped from the full {@link OutboundQueue} is only counted, just like by the {@link org.anddev.andengine.extension.multiplayer.protocol.shared.NioSocketConnection}.
+	 * @throws IOException when the {@link OutboundQueue} doesn't take any messages anymore.
+	 */
+	private void enqueue(final byte[] pEncodedData) throws IOException {
+		final OutboundQueue outboundQueue = this.mOutboundQueue;
+		if(!outboundQueue.enqueue(pEncodedData) && (outboundQueue.isTerminated() || outboundQueue.isDraining())) {
+			throw new IOException(OutboundQueue.class.getSimpleName() + " to: '" + this.mConnection.getRemoteSocketAddress() + "' doesn't take any messages anymore.");
+		}
 	}
 
 	// ===========================================================
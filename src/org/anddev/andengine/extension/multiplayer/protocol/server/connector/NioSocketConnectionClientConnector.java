@@ -0,0 +1,68 @@
+package org.anddev.andengine.extension.multiplayer.protocol.server.connector;
+
+import java.io.IOException;
+
+import org.anddev.andengine.extension.multiplayer.protocol.server.IClientMessageReader;
+import org.anddev.andengine.extension.multiplayer.protocol.shared.NioSocketConnection;
+import org.anddev.andengine.util.Debug;
+
+/**
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 12:02:48 - 04.07.2011
+ */
+public class NioSocketConnectionClientConnector extends ClientConnector<NioSocketConnection> {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public NioSocketConnectionClientConnector(final NioSocketConnection pNioSocketConnection) throws IOException {
+		super(pNioSocketConnection);
+	}
+
+	public NioSocketConnectionClientConnector(final NioSocketConnection pNioSocketConnection, final IClientMessageReader<NioSocketConnection> pClientMessageReader) throws IOException {
+		super(pNioSocketConnection, pClientMessageReader);
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	public static interface INioSocketConnectionClientConnectorListener extends IClientConnectorListener<NioSocketConnection> {
+
+	}
+
+	public static class DefaultNioSocketConnectionClientConnectorListener implements INioSocketConnectionClientConnectorListener {
+		@Override
+		public void onStarted(ClientConnector<NioSocketConnection> pClientConnector) {
+			Debug.d("Accepted Client-Connection from: '" + pClientConnector.getConnection().getInetAddress().getHostAddress());
+		}
+
+		@Override
+		public void onTerminated(ClientConnector<NioSocketConnection> pClientConnector) {
+			Debug.d("Closed Client-Connection from: '" + pClientConnector.getConnection().getInetAddress().getHostAddress());
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package org.anddev.andengine.extension.multiplayer.protocol.shared;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -44,7 +46,14 @@ public class BluetoothSocketConnection extends Connection {
 	}
 
 	public BluetoothSocketConnection(final BluetoothSocket pBluetoothSocket) throws IOException, BluetoothException {
-		super(new DataInputStream(pBluetoothSocket.getInputStream()), new DataOutputStream(pBluetoothSocket.getOutputStream()));
+		this(pBluetoothSocket, BUFFERSIZE_DEFAULT);
+	}
+
+	/**
+	 * @param pBufferSize the size of the buffers in front of the streams of the {@link BluetoothSocket}. Written data only reaches the {@link BluetoothSocket} when the buffer is full or flushed.
+	 */
+	public BluetoothSocketConnection(final BluetoothSocket pBluetoothSocket, final int pBufferSize) throws IOException, BluetoothException {
+		super(new DataInputStream(new BufferedInputStream(pBluetoothSocket.getInputStream(), pBufferSize)), new DataOutputStream(new BufferedOutputStream(pBluetoothSocket.getOutputStream(), pBufferSize)));
 
 		this.mBluetoothSocket = pBluetoothSocket;
 		
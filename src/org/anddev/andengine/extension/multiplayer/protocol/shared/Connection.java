@@ -4,8 +4,10 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.anddev.andengine.util.Debug;
 
@@ -21,10 +23,19 @@ public abstract class Connection extends Thread {
 	// Constants
 	// ===========================================================
 
+	/**
+	 * Size of the buffers in front of the input- and output-streams of stream based {@link Connection}s.
+	 */
+	public static final int BUFFERSIZE_DEFAULT = 8192;
+
+	private static final AtomicInteger CONNECTION_ID_SEQUENCE = new AtomicInteger(0);
+
 	// ===========================================================
 	// Fields
 	// ===========================================================
 
+	private final int mConnectionID = Connection.CONNECTION_ID_SEQUENCE.incrementAndGet();
+
 	protected final DataInputStream mDataInputStream;
 	protected final DataOutputStream mDataOutputStream;
 
@@ -45,6 +56,21 @@ public abstract class Connection extends Thread {
 	// Getter & Setter
 	// ===========================================================
 
+	/**
+	 * @return an id that is unique among all {@link Connection}s of this process.
+	 */
+	public int getConnectionID() {
+		return this.mConnectionID;
+	}
+
+	public boolean isRunning() {
+		return this.mRunning.get();
+	}
+
+	public boolean isTerminated() {
+		return this.mTerminated.get();
+	}
+
 	public DataOutputStream getDataOutputStream() {
 		return this.mDataOutputStream;
 	}
@@ -65,6 +91,13 @@ public abstract class Connection extends Thread {
 		this.mConnectionListener = pConnectionListener;
 	}
 
+	/**
+	 * @return the {@link SocketAddress} of the other side, or <code>null</code> when this {@link Connection} isn't IP based.
+	 */
+	public SocketAddress getRemoteSocketAddress() {
+		return null;
+	}
+
 	// ===========================================================
 	// Methods for/from SuperClass/Interfaces
 	// ===========================================================
@@ -106,6 +139,46 @@ public abstract class Connection extends Thread {
 	// Methods
 	// ===========================================================
 
+	/**
+	 * Writes data that was already encoded, i.e. by a {@link org.anddev.andengine.extension.multiplayer.protocol.util.MessageEncoder}.
+	 * The data might be shared with other {@link Connection}s and written asynchronously, so it must not be modified afterwards.
+	 * Callers need to synchronize with other writes to this {@link Connection}.
+	 */
+	public void writeEncodedData(final byte[] pEncodedData) throws IOException {
+		this.mDataOutputStream.write(pEncodedData);
+	}
+
+	/**
+	 * @return <code>true</code> when writing blocks while the other side doesn't read, so does {@link #drain()} then.
+	 */
+	public boolean isBlocking() {
+		return true;
+	}
+
+	/**
+	 * Terminates this {@link Connection} once everything written so far was sent. Never blocks on a non-blocking {@link Connection}, a blocking one is flushed and terminated right away.
+	 */
+	public void drain() {
+		try {
+			this.mDataOutputStream.flush();
+		} catch (final IOException e) {
+			Debug.e(e);
+		}
+		this.terminate();
+	}
+
+	/**
+	 * Waits until this {@link Connection} terminated, but no longer than the timeout.
+	 * @param pTimeoutMilliseconds <code>0</code> to not wait at all.
+	 * @return <code>true</code> when this {@link Connection} terminated in time.
+	 */
+	public boolean awaitTermination(final long pTimeoutMilliseconds) throws InterruptedException {
+		if(pTimeoutMilliseconds > 0) {
+			this.join(pTimeoutMilliseconds);
+		}
+		return !this.isAlive();
+	}
+
 	public void terminate() {
 		if(!this.mTerminated.getAndSet(true)) {
 			this.mRunning.set(false);
@@ -1,8 +1,19 @@
 package org.anddev.andengine.extension.multiplayer.protocol.shared;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.anddev.andengine.extension.multiplayer.protocol.adt.message.IMessage;
 import org.anddev.andengine.extension.multiplayer.protocol.shared.Connection.IConnectionListener;
+import org.anddev.andengine.extension.multiplayer.protocol.shared.DatagramConnection.Reliability;
+import org.anddev.andengine.extension.multiplayer.protocol.util.MessageBatch;
+import org.anddev.andengine.extension.multiplayer.protocol.util.MessageEncoder;
 import org.anddev.andengine.util.SmartList;
 
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
 /**
  * (c) 2010 Nicolas Gramlich 
  * (c) 2011 Zynga Inc.
@@ -20,6 +31,15 @@ public abstract class Connector<C extends Connection> implements IConnectionList
 	// ===========================================================
 
 	protected final C mConnection;
+	protected FlushPolicy mFlushPolicy = FlushPolicy.PER_MESSAGE;
+	protected DispatchPolicy mDispatchPolicy = DispatchPolicy.IMMEDIATE;
+	protected boolean mFramed;
+	private MessageEncoder mMessageEncoder;
+	private MessageBatch mMessageBatch;
+	private boolean mBatching;
+	private volatile DatagramConnection mDatagramConnection;
+	private final SparseArray<Reliability> mDatagramFlagReliabilities = new SparseArray<Reliability>();
+	private final SparseIntArray mDatagramFlagChannels = new SparseIntArray();
 	protected SmartList<IConnectorListener<? extends Connector<C>>> mConnectorListeners = new SmartList<IConnectorListener<? extends Connector<C>>>();
 
 	// ===========================================================
@@ -39,6 +59,117 @@ public abstract class Connector<C extends Connection> implements IConnectionList
 		return this.mConnection;
 	}
 
+	public FlushPolicy getFlushPolicy() {
+		return this.mFlushPolicy;
+	}
+
+	public void setFlushPolicy(final FlushPolicy pFlushPolicy) {
+		this.mFlushPolicy = pFlushPolicy;
+	}
+
+	public DispatchPolicy getDispatchPolicy() {
+		return this.mDispatchPolicy;
+	}
+
+	public void setDispatchPolicy(final DispatchPolicy pDispatchPolicy) {
+		this.mDispatchPolicy = pDispatchPolicy;
+	}
+
+	public boolean isFramed() {
+		return this.mFramed;
+	}
+
+	/**
+	 * When framed, every message is sent and expected as flag + varint payload length + payload, which allows to skip unknown messages.
+	 * Both sides of the {@link Connection} need to agree on this before the {@link Connection} is started.
+	 */
+	public void setFramed(final boolean pFramed) {
+		this.mFramed = pFramed;
+	}
+
+	/**
+	 * @see #beginBatch()
+	 */
+	public boolean isBatching() {
+		return this.mBatching;
+	}
+
+	public boolean hasDatagramConnection() {
+		return this.mDatagramConnection != null;
+	}
+
+	public DatagramConnection getDatagramConnection() {
+		return this.mDatagramConnection;
+	}
+
+	/**
+	 * Messages with a flag registered with {@link #registerDatagramFlag(short)} are sent over the {@link DatagramConnection}, all others keep using the {@link Connection}.
+	 * Received datagrams are read and handled just like messages from the {@link Connection}, on the thread that received them.
+	 * When set before {@link #start()}, the {@link DatagramConnection} is started along with this {@link Connector}, otherwise the caller needs to start it.
+	 */
+	public synchronized void setDatagramConnection(final DatagramConnection pDatagramConnection) {
+		pDatagramConnection.setConnectionListener(new IConnectionListener() {
+			@Override
+			public void onStarted(final Connection pConnection) {
+				/* Nothing, the Connector starts with its Connection. */
+			}
+
+			@Override
+			public void onTerminated(final Connection pConnection) {
+				Connector.this.onDatagramConnectionTerminated(pDatagramConnection);
+			}
+
+			@Override
+			public void read(final DataInputStream pDataInputStream) throws IOException {
+				Connector.this.read(pDataInputStream);
+			}
+		});
+		this.mDatagramConnection = pDatagramConnection;
+	}
+
+	/**
+	 * Messages with this flag are sent over the {@link DatagramConnection}, as long as there is one. Delivery is neither guaranteed nor ordered, so this suits frequent state updates that are superseded by the next one anyway.
+	 */
+	public void registerDatagramFlag(final short pFlag) {
+		this.registerDatagramFlag(pFlag, Reliability.UNRELIABLE, 0);
+	}
+
+	/**
+	 * Messages with this flag are sent over the {@link DatagramConnection} on the channel, as long as there is one.
+	 * Reliable messages are resent until they were received, a lost message only holds back the {@link Reliability#RELIABLE_ORDERED} messages on its own channel.
+	 * Messages sent over the {@link Connection} and the {@link DatagramConnection} are not ordered relative to each other.
+	 * @param pChannel between <code>0</code> and {@link DatagramConnection#CHANNEL_COUNT_MAXIMUM}<code> - 1</code>, ignored for {@link Reliability#UNRELIABLE}.
+	 * @throws IllegalArgumentException when the channel is already used with a different {@link Reliability}.
+	 */
+	public void registerDatagramFlag(final short pFlag, final Reliability pReliability, final int pChannel) {
+		if(pChannel < 0 || pChannel >= DatagramConnection.CHANNEL_COUNT_MAXIMUM) {
+			throw new IllegalArgumentException("Channel: '" + pChannel + "' is out of range, maximum channel count: '" + DatagramConnection.CHANNEL_COUNT_MAXIMUM + "'.");
+		}
+		if(pReliability != Reliability.UNRELIABLE) {
+			final SparseArray<Reliability> datagramFlagReliabilities = this.mDatagramFlagReliabilities;
+			for(int i = datagramFlagReliabilities.size() - 1; i >= 0; i--) {
+				final Reliability reliability = datagramFlagReliabilities.valueAt(i);
+				if(reliability != Reliability.UNRELIABLE && reliability != pReliability && this.mDatagramFlagChannels.get(datagramFlagReliabilities.keyAt(i)) == pChannel) {
+					throw new IllegalArgumentException("Channel: '" + pChannel + "' is already used for " + reliability + " messages.");
+				}
+			}
+		}
+
+		this.mDatagramFlagReliabilities.put(pFlag, pReliability);
+		this.mDatagramFlagChannels.put(pFlag, pChannel);
+	}
+
+	public boolean isDatagramFlag(final short pFlag) {
+		return this.mDatagramFlagReliabilities.get(pFlag) != null;
+	}
+
+	/**
+	 * @return the {@link Reliability} messages with this flag are sent with over the {@link DatagramConnection}, or <code>null</code> when they are not sent over the {@link DatagramConnection}.
+	 */
+	public Reliability getDatagramFlagReliability(final short pFlag) {
+		return this.mDatagramFlagReliabilities.get(pFlag);
+	}
+
 	public boolean hasConnectorListener() {
 		return this.mConnectorListeners != null;
 	}
@@ -68,13 +199,180 @@ public abstract class Connector<C extends Connection> implements IConnectionList
 	// ===========================================================
 	// Methods
 	// ===========================================================
+
+	protected MessageEncoder getMessageEncoder() {
+		if(this.mMessageEncoder == null) {
+			this.mMessageEncoder = new MessageEncoder();
+		}
+		return this.mMessageEncoder;
+	}
+
+	/**
+	 * Encodes the {@link IMessage} the way this {@link Connector} sends it, see {@link #isFramed()}. Callers need to synchronize on this {@link Connector}.
+	 */
+	protected byte[] encode(final IMessage pMessage) throws IOException {
+		if(this.mFramed) {
+			return this.getMessageEncoder().encodeFramed(pMessage);
+		} else {
+			return this.getMessageEncoder().encode(pMessage);
+		}
+	}
+
+	protected MessageBatch getMessageBatch() {
+		if(this.mMessageBatch == null) {
+			this.mMessageBatch = new MessageBatch();
+		}
+		return this.mMessageBatch;
+	}
+
+	/**
+	 * From now on, all messages sent over the {@link Connection} are collected, until {@link #commitBatch()} sends them all at once, as a single batch.
+	 * Saves the per-message overhead when many small messages are sent at once, i.e. once per tick. Messages sent over the {@link DatagramConnection} are not batched.
+	 */
+	public synchronized void beginBatch() {
+		if(this.mBatching) {
+			throw new IllegalStateException("A batch was already begun.");
+		}
+		this.mBatching = true;
+	}
+
+	/**
+	 * Sends all messages since {@link #beginBatch()} as a single batch, which the other side unpacks and handles message by message, in order.
+	 * The batch is flushed according to the {@link FlushPolicy}, just like a single message.
+	 */
+	public synchronized void commitBatch() throws IOException {
+		if(!this.mBatching) {
+			throw new IllegalStateException("No batch was begun.");
+		}
+		this.mBatching = false;
+
+		final MessageBatch messageBatch = this.getMessageBatch();
+		if(!messageBatch.isEmpty()) {
+			try {
+				this.writeBatch(messageBatch, messageBatch.size());
+			} finally {
+				messageBatch.reset();
+			}
+		}
+	}
+
+	/**
+	 * Writes the first pLength bytes of the {@link MessageBatch} as a single batch. Callers need to synchronize on this {@link Connector}.
+	 */
+	protected void writeBatch(final MessageBatch pMessageBatch, final int pLength) throws IOException {
+		final DataOutputStream dataOutputStream = this.mConnection.getDataOutputStream();
+		pMessageBatch.writeTo(dataOutputStream, pLength);
+		if(this.mFlushPolicy == FlushPolicy.PER_MESSAGE) {
+			dataOutputStream.flush();
+		}
+	}
+
+	/**
+	 * Keeps the batch within {@link MessageBatch#SIZE_MAXIMUM} after a message was appended to it: when it grew too large, all messages before that one are sent as a batch of their own.
+	 * Callers need to synchronize on this {@link Connector}.
+	 * @param pBatchSize the size of the batch before the message was appended.
+	 * @throws IOException when the message alone is larger than {@link MessageBatch#SIZE_MAXIMUM}, it is removed from the batch again.
+	 */
+	protected void limitBatch(final int pBatchSize) throws IOException {
+		final MessageBatch messageBatch = this.getMessageBatch();
+		final int batchSize = messageBatch.size();
+		if(batchSize > MessageBatch.SIZE_MAXIMUM) {
+			final int messageSize = batchSize - pBatchSize;
+			if(messageSize > MessageBatch.SIZE_MAXIMUM) {
+				messageBatch.truncate(pBatchSize);
+				throw new IOException("Message of size: '" + messageSize + "' doesn't fit into a batch, maximum size: '" + MessageBatch.SIZE_MAXIMUM + "'.");
+			}
+
+			try {
+				this.writeBatch(messageBatch, pBatchSize);
+			} finally {
+				messageBatch.remove(pBatchSize);
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> when a message with that flag is sent over the {@link DatagramConnection}, see {@link #registerDatagramFlag(short)}.
+	 */
+	protected boolean isSentAsDatagram(final short pFlag) {
+		return this.mDatagramConnection != null && this.mDatagramFlagReliabilities.get(pFlag) != null;
+	}
+
+	/**
+	 * Writes the {@link IMessage} the way this {@link Connector} sends it, see {@link #isFramed()}, {@link #registerDatagramFlag(short)} and {@link #beginBatch()}. Callers need to synchronize on this {@link Connector}.
+	 */
+	protected void write(final IMessage pMessage) throws IOException {
+		if(this.isSentAsDatagram(pMessage.getFlag())) {
+			this.writeEncodedDatagram(pMessage.getFlag(), this.encode(pMessage));
+			return;
+		}
+
+		final DataOutputStream dataOutputStream = (this.mBatching) ? this.getMessageBatch().getDataOutputStream() : this.mConnection.getDataOutputStream();
+		final int batchSize = (this.mBatching) ? this.getMessageBatch().size() : 0;
+		if(this.mFramed) {
+			this.getMessageEncoder().writeFramed(pMessage, dataOutputStream);
+		} else {
+			pMessage.write(dataOutputStream);
+		}
+		if(this.mBatching) {
+			this.limitBatch(batchSize);
+		} else if(this.mFlushPolicy == FlushPolicy.PER_MESSAGE) {
+			dataOutputStream.flush();
+		}
+	}
+	
+	/**
+	 * Writes an encoded message over the {@link DatagramConnection}, with the {@link Reliability} and on the channel registered for its flag. Callers need to synchronize on this {@link Connector}.
+	 */
+	protected void writeEncodedDatagram(final short pFlag, final byte[] pEncodedMessage) throws IOException {
+		final DatagramConnection datagramConnection = this.mDatagramConnection;
+		datagramConnection.writeEncodedData(pEncodedMessage, this.mDatagramFlagReliabilities.get(pFlag), this.mDatagramFlagChannels.get(pFlag));
+		if(this.mFlushPolicy == FlushPolicy.PER_MESSAGE) {
+			datagramConnection.getDataOutputStream().flush();
+		}
+	}
 	
 	public void start() {
 		this.getConnection().start();
+
+		final DatagramConnection datagramConnection = this.mDatagramConnection;
+		if(datagramConnection != null) {
+			datagramConnection.start();
+		}
 	}
 	
 	public void terminate() {
 		this.getConnection().terminate();
+
+		this.terminateDatagramConnection();
+	}
+
+	protected void terminateDatagramConnection() {
+		final DatagramConnection datagramConnection = this.mDatagramConnection;
+		if(datagramConnection != null) {
+			datagramConnection.terminate();
+		}
+	}
+
+	/**
+	 * From then on, all messages are sent over the {@link Connection} again.
+	 */
+	protected synchronized void onDatagramConnectionTerminated(final DatagramConnection pDatagramConnection) {
+		if(this.mDatagramConnection == pDatagramConnection) {
+			this.mDatagramConnection = null;
+		}
+	}
+
+	/**
+	 * Writes out all data buffered by the {@link Connection} and the {@link DatagramConnection}. Only needs to be called explicitly when the {@link FlushPolicy} is {@link FlushPolicy#MANUAL}.
+	 */
+	public synchronized void flush() throws IOException {
+		this.mConnection.getDataOutputStream().flush();
+
+		final DatagramConnection datagramConnection = this.mDatagramConnection;
+		if(datagramConnection != null) {
+			datagramConnection.getDataOutputStream().flush();
+		}
 	}
 
 	// ===========================================================
@@ -93,4 +391,35 @@ public abstract class Connector<C extends Connection> implements IConnectionList
 		public void onStarted(final C pConnector);
 		public void onTerminated(final C pConnector);
 	}
+
+	public static enum FlushPolicy {
+		// ===========================================================
+		// Elements
+		// ===========================================================
+
+		/**
+		 * Every message is flushed right after it was written.
+		 */
+		PER_MESSAGE,
+		/**
+		 * Messages are only buffered, {@link Connector#flush()} needs to be called explicitly, i.e. after a batch of messages or once per tick.
+		 */
+		MANUAL;
+	}
+
+	public static enum DispatchPolicy {
+		// ===========================================================
+		// Elements
+		// ===========================================================
+
+		/**
+		 * Every message is handled right away on the thread that read it.
+		 */
+		IMMEDIATE,
+		/**
+		 * Messages are queued by the thread that read them and only handled when <code>processPendingMessages()</code> is called, i.e. once per tick on the update thread.
+		 * This way the message handlers don't need to synchronize with the update thread.
+		 */
+		QUEUED;
+	}
 }
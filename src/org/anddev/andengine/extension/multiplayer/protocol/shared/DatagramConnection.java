@@ -0,0 +1,964 @@
+package org.anddev.andengine.extension.multiplayer.protocol.shared;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.PortUnreachableException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+
+import org.anddev.andengine.extension.multiplayer.protocol.util.ByteBufferInputStream;
+import org.anddev.andengine.extension.multiplayer.protocol.util.VarIntUtils;
+import org.anddev.andengine.util.Debug;
+
+import android.os.SystemClock;
+
+/**
+ * A {@link Connection} to a single remote {@link SocketAddress}, sending and receiving datagrams over a {@link DatagramChannel}.
+ * Every datagram contains one or more complete messages, so a lost datagram never holds back the ones behind it.
+ * Each message is sent with a {@link Reliability} on one of {@link #CHANNEL_COUNT_MAXIMUM} channels. Reliable messages are resent until the datagram carrying them was acknowledged,
+ * and every channel orders its messages on its own, so a lost message only holds back the messages on the same channel.
+ * Meant to be used next to a stream based {@link Connection}, see {@link Connector#setDatagramConnection(DatagramConnection)}.
+ * 
+ * A datagram starts with a header: flags (byte), sequence number (short), the latest sequence number received from the other side (short) and a bitfield of the 32 sequence numbers before that (int).
+ * It is followed by the messages, each as: {@link Reliability} and channel (byte), sequence number of the message on its channel (short, only when reliable), varint length, message.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 14:37:08 - 12.07.2011
+ */
+public class DatagramConnection extends Connection {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	/**
+	 * Fits into a single Ethernet frame, along with the IP and UDP headers.
+	 */
+	public static final int DATAGRAM_SIZE_MAXIMUM = 1400;
+	private static final int DATAGRAM_HEADER_SIZE = 1 + 2 + 2 + 4;
+	private static final int MESSAGE_HEADER_SIZE_MAXIMUM = 1 + 2 + 2;
+	public static final int MESSAGE_SIZE_MAXIMUM = DATAGRAM_SIZE_MAXIMUM - DATAGRAM_HEADER_SIZE - MESSAGE_HEADER_SIZE_MAXIMUM;
+
+	public static final int CHANNEL_COUNT_MAXIMUM = 64;
+	/**
+	 * How many reliable messages per channel may be sent ahead of the oldest unacknowledged one. The receiving side buffers as many out-of-order messages per channel.
+	 */
+	public static final int CHANNEL_WINDOW_SIZE = 256;
+	/**
+	 * How many reliable messages per channel may wait for their acknowledgement, including the ones held back until the window moves on.
+	 */
+	public static final int CHANNEL_BACKLOG_SIZE_MAXIMUM = 16 * CHANNEL_WINDOW_SIZE;
+
+	/**
+	 * In milliseconds, how often {@link #onTick()} is called by the thread receiving the datagrams.
+	 */
+	public static final long TICK_INTERVAL = 20;
+	/**
+	 * In milliseconds, how often a datagram without messages announces this {@link DatagramConnection} until the first datagram from the other side arrived.
+	 */
+	private static final long ANNOUNCEMENT_INTERVAL = 5 * TICK_INTERVAL;
+
+	private static final int DATAGRAM_FLAG_ACKNOWLEDGEMENT = 0x01;
+	private static final int ACKNOWLEDGEMENT_BITS = 32;
+	private static final int SENT_DATAGRAM_BUFFER_SIZE = 256;
+
+	private static final int MESSAGE_RELIABILITY_SHIFT = 6;
+	private static final int MESSAGE_CHANNEL_MASK = CHANNEL_COUNT_MAXIMUM - 1;
+	private static final Reliability[] RELIABILITIES = Reliability.values();
+
+	private static final long ROUND_TRIP_TIME_INITIAL = 100;
+	private static final long RESEND_TIMEOUT_MINIMUM = 2 * TICK_INTERVAL;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final DatagramChannel mDatagramChannel;
+	private final SocketAddress mRemoteSocketAddress;
+	private final boolean mShared;
+
+	private final ByteBufferInputStream mByteBufferInputStream;
+	private final DatagramOutputStream mDatagramOutputStream;
+
+	/* Guarded by mDatagramOutputStream, as the acknowledgements go out with every datagram. */
+	private short mNextDatagramSequence;
+	private final SentDatagram[] mSentDatagrams = new SentDatagram[SENT_DATAGRAM_BUFFER_SIZE];
+	private final ArrayList<ReliableMessage> mPendingReliableMessages = new ArrayList<ReliableMessage>();
+	private final ArrayList<ReliableMessage> mUnacknowledgedReliableMessages = new ArrayList<ReliableMessage>();
+	private final Reliability[] mChannelReliabilities = new Reliability[CHANNEL_COUNT_MAXIMUM];
+	private final short[] mChannelNextMessageSequences = new short[CHANNEL_COUNT_MAXIMUM];
+	private final short[] mChannelOldestUnacknowledgedMessageSequences = new short[CHANNEL_COUNT_MAXIMUM];
+	private long mRoundTripTime = ROUND_TRIP_TIME_INITIAL;
+	private boolean mRemoteDatagramSequenceValid;
+	private short mRemoteDatagramSequence;
+	private int mRemoteAcknowledgementBits;
+	private boolean mAcknowledgementPending;
+	/**
+	 * The oldest received datagram with reliable messages that weren't acknowledged yet. Only valid while {@link #mAcknowledgementPending}.
+	 */
+	private short mAcknowledgementPendingDatagramSequence;
+	private long mAnnouncementTime;
+
+	/* Only used by the thread receiving the datagrams. */
+	private final ReceiveChannel[] mReceiveChannels = new ReceiveChannel[CHANNEL_COUNT_MAXIMUM];
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * Sends and receives datagrams on the same local port as the {@link Socket}, so the server can tell which stream based {@link Connection} a datagram belongs to.
+	 * This only works when there is no NAT in between, i.e. on a local network.
+	 */
+	public static DatagramConnection create(final Socket pSocket) throws IOException {
+		return DatagramConnection.create(pSocket.getLocalSocketAddress(), pSocket.getRemoteSocketAddress());
+	}
+
+	public static DatagramConnection create(final SocketAddress pLocalSocketAddress, final SocketAddress pRemoteSocketAddress) throws IOException {
+		final DatagramChannel datagramChannel = DatagramChannel.open();
+		try {
+			datagramChannel.socket().bind(pLocalSocketAddress);
+			datagramChannel.connect(pRemoteSocketAddress);
+		} catch (final IOException e) {
+			datagramChannel.close();
+			throw e;
+		}
+		return new DatagramConnection(datagramChannel, pRemoteSocketAddress, false);
+	}
+
+	/**
+	 * @param pShared <code>true</code> when the {@link DatagramChannel} is shared with other {@link DatagramConnection}s, i.e. by an {@link org.anddev.andengine.extension.multiplayer.protocol.server.DatagramServer}.
+	 * A shared {@link DatagramConnection} does not run its own {@link Thread} and does not close the {@link DatagramChannel},
+	 * but gets its datagrams passed to {@link #onReceive(ByteBuffer)} and needs {@link #onTick()} to be called regularly.
+	 */
+	public DatagramConnection(final DatagramChannel pDatagramChannel, final SocketAddress pRemoteSocketAddress, final boolean pShared) throws IOException {
+		this(pDatagramChannel, pRemoteSocketAddress, pShared, new ByteBufferInputStream(0), new DatagramOutputStream());
+	}
+
+	private DatagramConnection(final DatagramChannel pDatagramChannel, final SocketAddress pRemoteSocketAddress, final boolean pShared, final ByteBufferInputStream pByteBufferInputStream, final DatagramOutputStream pDatagramOutputStream) throws IOException {
+		super(new DataInputStream(pByteBufferInputStream), new DataOutputStream(pDatagramOutputStream));
+
+		this.mDatagramChannel = pDatagramChannel;
+		this.mRemoteSocketAddress = pRemoteSocketAddress;
+		this.mShared = pShared;
+		this.mByteBufferInputStream = pByteBufferInputStream;
+		this.mDatagramOutputStream = pDatagramOutputStream;
+
+		pDatagramOutputStream.mDatagramConnection = this;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public DatagramChannel getDatagramChannel() {
+		return this.mDatagramChannel;
+	}
+
+	public boolean isShared() {
+		return this.mShared;
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return this.mRemoteSocketAddress;
+	}
+
+	/**
+	 * @return the smoothed round trip time in milliseconds, measured from the acknowledgements of datagrams carrying reliable messages.
+	 */
+	public long getRoundTripTime() {
+		synchronized(this.mDatagramOutputStream) {
+			return this.mRoundTripTime;
+		}
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	/**
+	 * A shared {@link DatagramConnection} does not start a new {@link Thread}, as its datagrams are received by the owner of the {@link DatagramChannel}.
+	 */
+	@Override
+	public synchronized void start() {
+		if(this.mShared) {
+			this.onStart();
+
+			this.mRunning.set(true);
+		} else {
+			super.start();
+		}
+	}
+
+	/**
+	 * Datagrams are sent right away, whether the other side receives them or not.
+	 */
+	@Override
+	public boolean isBlocking() {
+		return false;
+	}
+
+	@Override
+	public void run() {
+		this.onStart();
+
+		this.mRunning.set(true);
+
+		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_MORE_FAVORABLE);  // TODO What ThreadPriority makes sense here?
+
+		final ByteBuffer datagramBuffer = ByteBuffer.allocate(DATAGRAM_SIZE_MAXIMUM);
+		Selector selector = null;
+		try {
+			/* So the other side knows about this DatagramConnection right away. */
+			synchronized(this.mDatagramOutputStream) {
+				this.announce(SystemClock.uptimeMillis());
+			}
+
+			this.mDatagramChannel.configureBlocking(false);
+			selector = Selector.open();
+			this.mDatagramChannel.register(selector, SelectionKey.OP_READ);
+
+			long lastTickTime = SystemClock.uptimeMillis();
+			while (!Thread.interrupted() && this.mRunning.get() && !this.mTerminated.get()) {
+				/* Wakes up at least once per tick, to resend and acknowledge in time. */
+				selector.select(TICK_INTERVAL);
+				selector.selectedKeys().clear();
+
+				while(this.receive(datagramBuffer)) {
+					this.onReceive(datagramBuffer);
+				}
+
+				final long now = SystemClock.uptimeMillis();
+				if(now - lastTickTime >= TICK_INTERVAL) {
+					lastTickTime = now;
+					this.onTick();
+				}
+			}
+		} catch (final ClosedChannelException cce) {
+			/* Terminated. */
+		} catch (final Throwable pThrowable) {
+			Debug.e(pThrowable);
+		} finally {
+			if(selector != null) {
+				try {
+					selector.close();
+				} catch (final IOException e) {
+					Debug.e(e);
+				}
+			}
+			this.terminate();
+		}
+	}
+
+	/**
+	 * Sends the encoded message {@link Reliability#UNRELIABLE}.
+	 * @see #writeEncodedData(byte[], Reliability, int)
+	 */
+	@Override
+	public void writeEncodedData(final byte[] pEncodedData) throws IOException {
+		this.writeEncodedData(pEncodedData, Reliability.UNRELIABLE, 0);
+	}
+
+	@Override
+	protected void onTerminate() {
+		if(!this.mShared) {
+			/* Ensure DatagramChannel is really closed. */
+			try {
+				this.mDatagramChannel.close();
+			} catch (final IOException e) {
+				Debug.e(e);
+			}
+		}
+		super.onTerminate();
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Appends the encoded message to the pending datagram. Messages are never split across datagrams,
+	 * so the pending datagram is sent first when the message doesn't fit into it anymore.
+	 * @param pChannel between <code>0</code> and {@link #CHANNEL_COUNT_MAXIMUM}<code> - 1</code>. All reliable messages on a channel need to have the same {@link Reliability}.
+	 * A reliable message that is {@link #CHANNEL_WINDOW_SIZE} or more messages ahead of the oldest unacknowledged one on its channel is held back, and sent by {@link #onTick()} once the window moved on.
+	 * @throws IOException when the message is bigger than {@link #MESSAGE_SIZE_MAXIMUM}, or when the oldest unacknowledged reliable message on the channel is {@link #CHANNEL_BACKLOG_SIZE_MAXIMUM} messages behind.
+	 */
+	public void writeEncodedData(final byte[] pEncodedData, final Reliability pReliability, final int pChannel) throws IOException {
+		if(pEncodedData.length > MESSAGE_SIZE_MAXIMUM) {
+			throw new IOException("Message of size: '" + pEncodedData.length + "' doesn't fit into a datagram, maximum size: '" + MESSAGE_SIZE_MAXIMUM + "'.");
+		}
+		if(pChannel < 0 || pChannel >= CHANNEL_COUNT_MAXIMUM) {
+			throw new IllegalArgumentException("Channel: '" + pChannel + "' is out of range, maximum channel count: '" + CHANNEL_COUNT_MAXIMUM + "'.");
+		}
+
+		synchronized(this.mDatagramOutputStream) {
+			if(pReliability == Reliability.UNRELIABLE) {
+				this.appendMessage(pReliability, pChannel, (short)0, pEncodedData);
+			} else {
+				final Reliability channelReliability = this.mChannelReliabilities[pChannel];
+				if(channelReliability == null) {
+					this.mChannelReliabilities[pChannel] = pReliability;
+				} else if(channelReliability != pReliability) {
+					throw new IllegalArgumentException("Channel: '" + pChannel + "' is already used for " + channelReliability + " messages.");
+				}
+
+				if(((this.mChannelNextMessageSequences[pChannel] - this.mChannelOldestUnacknowledgedMessageSequences[pChannel]) & 0xFFFF) >= CHANNEL_BACKLOG_SIZE_MAXIMUM) {
+					/* The pending datagram might hold back the acknowledgements the channel is waiting for. */
+					this.sendDatagram();
+					throw new IOException("Too many unacknowledged messages on channel: '" + pChannel + "'.");
+				}
+
+				final ReliableMessage reliableMessage = new ReliableMessage(pReliability, pChannel, this.mChannelNextMessageSequences[pChannel]++, pEncodedData);
+				this.mUnacknowledgedReliableMessages.add(reliableMessage);
+
+				if(this.isInWindow(reliableMessage)) {
+					this.appendReliableMessage(reliableMessage);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Resends the reliable messages that weren't acknowledged in time, sends the ones that were held back until the window moved on
+	 * and acknowledges the received reliable messages, if no other datagram did that already.
+	 * Until the first datagram from the other side arrived, it also announces this {@link DatagramConnection} again, as the first announcement might have been lost or arrived too early.
+	 * Called about every {@link #TICK_INTERVAL} milliseconds by the thread receiving the datagrams.
+	 */
+	public void onTick() {
+		final long now = SystemClock.uptimeMillis();
+
+		final DatagramOutputStream datagramOutputStream = this.mDatagramOutputStream;
+		synchronized(datagramOutputStream) {
+			try {
+				final long resendTimeout = Math.max(RESEND_TIMEOUT_MINIMUM, 2 * this.mRoundTripTime);
+
+				boolean resent = false;
+				final ArrayList<ReliableMessage> unacknowledgedReliableMessages = this.mUnacknowledgedReliableMessages;
+				final int unacknowledgedReliableMessageCount = unacknowledgedReliableMessages.size();
+				for(int i = 0; i < unacknowledgedReliableMessageCount; i++) {
+					final ReliableMessage reliableMessage = unacknowledgedReliableMessages.get(i);
+					/* A message that was held back has never been sent, so its sent time is long ago. */
+					if(!reliableMessage.mPending && now - reliableMessage.mSentTime >= resendTimeout && this.isInWindow(reliableMessage)) {
+						this.appendReliableMessage(reliableMessage);
+						resent = true;
+					}
+				}
+
+				if(resent || this.mAcknowledgementPending) {
+					this.sendAcknowledgement();
+				}
+
+				if(!this.mRemoteDatagramSequenceValid && now - this.mAnnouncementTime >= ANNOUNCEMENT_INTERVAL) {
+					this.announce(now);
+				}
+			} catch (final IOException e) {
+				Debug.e(e);
+			}
+		}
+	}
+
+	/**
+	 * Reads all messages of a received datagram. Reading stops at the first malformed message, the rest of that datagram is dropped.
+	 * A message that can't be read or handled is dropped on its own.
+	 */
+	public void onReceive(final ByteBuffer pDatagram) {
+		if(pDatagram.remaining() < DATAGRAM_HEADER_SIZE) {
+			/* Too short to even hold the header. */
+			return;
+		}
+
+		final int flags = pDatagram.get();
+		final short datagramSequence = pDatagram.getShort();
+		final short acknowledgedDatagramSequence = pDatagram.getShort();
+		final int acknowledgementBits = pDatagram.getInt();
+
+		synchronized(this.mDatagramOutputStream) {
+			if((flags & DATAGRAM_FLAG_ACKNOWLEDGEMENT) != 0) {
+				this.onAcknowledgement(acknowledgedDatagramSequence, acknowledgementBits);
+			}
+			final boolean first = !this.mRemoteDatagramSequenceValid;
+			if(!this.onDatagramSequence(datagramSequence)) {
+				/* Duplicate, or too old to be acknowledged. */
+				return;
+			}
+			if(first) {
+				/* The other side keeps announcing itself until a datagram from this side arrives. */
+				try {
+					this.sendAcknowledgement();
+				} catch (final IOException e) {
+					Debug.e(e);
+				}
+			}
+		}
+
+		boolean reliable = false;
+		try {
+			while(pDatagram.hasRemaining() && this.mRunning.get() && !this.mTerminated.get()) {
+				final int messageHeader = pDatagram.get() & 0xFF;
+				final int reliabilityOrdinal = messageHeader >> MESSAGE_RELIABILITY_SHIFT;
+				if(reliabilityOrdinal >= RELIABILITIES.length) {
+					throw new StreamCorruptedException("Unknown reliability: '" + reliabilityOrdinal + "'.");
+				}
+				final Reliability reliability = RELIABILITIES[reliabilityOrdinal];
+				final int channel = messageHeader & MESSAGE_CHANNEL_MASK;
+				final short messageSequence = (reliability == Reliability.UNRELIABLE) ? 0 : pDatagram.getShort();
+				final int messageLength = VarIntUtils.readVarInt(pDatagram);
+				if(messageLength < 0 || messageLength > pDatagram.remaining()) {
+					throw new StreamCorruptedException("Message length: '" + messageLength + "' exceeds the datagram.");
+				}
+
+				final int datagramLimit = pDatagram.limit();
+				final int messageEnd = pDatagram.position() + messageLength;
+				pDatagram.limit(messageEnd);
+				if(reliability == Reliability.UNRELIABLE) {
+					this.deliver(pDatagram);
+				} else {
+					reliable = true;
+					this.onReliableMessage(reliability, channel, messageSequence, pDatagram);
+				}
+				pDatagram.limit(datagramLimit);
+				pDatagram.position(messageEnd);
+			}
+		} catch (final Throwable pThrowable) {
+			Debug.e("Dropped the rest of a datagram from: '" + this.mRemoteSocketAddress + "'.", pThrowable);
+		} finally {
+			synchronized(this.mDatagramOutputStream) {
+				if(reliable) {
+					if(!this.mAcknowledgementPending || ((datagramSequence - this.mAcknowledgementPendingDatagramSequence) & 0xFFFF) >= 0x8000) {
+						this.mAcknowledgementPendingDatagramSequence = datagramSequence;
+					}
+					this.mAcknowledgementPending = true;
+				}
+
+				/* The other side might send a lot faster than this side does, so acknowledge before the datagram moves out of the acknowledgement bits. */
+				if(this.mAcknowledgementPending && ((this.mRemoteDatagramSequence - this.mAcknowledgementPendingDatagramSequence) & 0xFFFF) >= ACKNOWLEDGEMENT_BITS / 2) {
+					try {
+						this.sendAcknowledgement();
+					} catch (final IOException e) {
+						Debug.e(e);
+					}
+				}
+			}
+		}
+	}
+
+	private void onReliableMessage(final Reliability pReliability, final int pChannel, final short pMessageSequence, final ByteBuffer pMessage) throws IOException {
+		ReceiveChannel receiveChannel = this.mReceiveChannels[pChannel];
+		if(receiveChannel == null) {
+			receiveChannel = new ReceiveChannel(pReliability);
+			this.mReceiveChannels[pChannel] = receiveChannel;
+		} else if(receiveChannel.mReliability != pReliability) {
+			throw new StreamCorruptedException("Channel: '" + pChannel + "' is already used for " + receiveChannel.mReliability + " messages.");
+		}
+
+		final int offset = (pMessageSequence - receiveChannel.mNextMessageSequence) & 0xFFFF;
+		if(offset >= CHANNEL_WINDOW_SIZE) {
+			/* Already received before. */
+			return;
+		}
+
+		final byte[][] receivedMessages = receiveChannel.mReceivedMessages;
+		final int index = pMessageSequence & (CHANNEL_WINDOW_SIZE - 1);
+		if(receivedMessages[index] != null) {
+			/* Already received before. */
+			return;
+		}
+
+		if(pReliability == Reliability.RELIABLE_ORDERED && offset != 0) {
+			/* Has to wait for the messages before it. */
+			final byte[] message = new byte[pMessage.remaining()];
+			pMessage.get(message);
+			receivedMessages[index] = message;
+			return;
+		}
+
+		this.deliver(pMessage);
+		receivedMessages[index] = ReceiveChannel.DELIVERED;
+
+		/* Catch up with the messages that were received ahead. */
+		int nextIndex = receiveChannel.mNextMessageSequence & (CHANNEL_WINDOW_SIZE - 1);
+		while(receivedMessages[nextIndex] != null) {
+			final byte[] receivedMessage = receivedMessages[nextIndex];
+			receivedMessages[nextIndex] = null;
+			receiveChannel.mNextMessageSequence++;
+			nextIndex = receiveChannel.mNextMessageSequence & (CHANNEL_WINDOW_SIZE - 1);
+
+			if(receivedMessage != ReceiveChannel.DELIVERED) {
+				this.deliver(ByteBuffer.wrap(receivedMessage));
+			}
+		}
+	}
+
+	private void deliver(final ByteBuffer pMessage) {
+		this.mByteBufferInputStream.setByteBuffer(pMessage);
+		try {
+			this.mConnectionListener.read(this.mDataInputStream);
+		} catch (final Throwable pThrowable) {
+			Debug.e("Dropped a message from: '" + this.mRemoteSocketAddress + "'.", pThrowable);
+		}
+	}
+
+	/**
+	 * Callers need to synchronize on {@link #mDatagramOutputStream}.
+	 * @return <code>false</code> when the datagram was received before, or is too old to be acknowledged.
+	 */
+	private boolean onDatagramSequence(final short pDatagramSequence) {
+		if(!this.mRemoteDatagramSequenceValid) {
+			this.mRemoteDatagramSequenceValid = true;
+			this.mRemoteDatagramSequence = pDatagramSequence;
+			this.mRemoteAcknowledgementBits = 0;
+			return true;
+		}
+
+		final int offset = (pDatagramSequence - this.mRemoteDatagramSequence) & 0xFFFF;
+		if(offset == 0) {
+			return false;
+		} else if(offset < 0x8000) {
+			/* Newer, the previous latest one moves into the bitfield. */
+			if(offset > ACKNOWLEDGEMENT_BITS) {
+				this.mRemoteAcknowledgementBits = 0;
+			} else if(offset == ACKNOWLEDGEMENT_BITS) {
+				this.mRemoteAcknowledgementBits = 1 << (ACKNOWLEDGEMENT_BITS - 1);
+			} else {
+				this.mRemoteAcknowledgementBits = (this.mRemoteAcknowledgementBits << offset) | (1 << (offset - 1));
+			}
+			this.mRemoteDatagramSequence = pDatagramSequence;
+			return true;
+		} else {
+			final int age = 0x10000 - offset;
+			if(age > ACKNOWLEDGEMENT_BITS) {
+				/* Its reliable messages get resent anyway. */
+				return false;
+			}
+			final int bit = 1 << (age - 1);
+			if((this.mRemoteAcknowledgementBits & bit) != 0) {
+				return false;
+			}
+			this.mRemoteAcknowledgementBits |= bit;
+			return true;
+		}
+	}
+
+	/**
+	 * Callers need to synchronize on {@link #mDatagramOutputStream}.
+	 */
+	private void onAcknowledgement(final short pAcknowledgedDatagramSequence, final int pAcknowledgementBits) {
+		final long now = SystemClock.uptimeMillis();
+
+		boolean acknowledged = this.acknowledge(pAcknowledgedDatagramSequence, now, true);
+		for(int i = 0; i < ACKNOWLEDGEMENT_BITS; i++) {
+			if((pAcknowledgementBits & (1 << i)) != 0) {
+				acknowledged |= this.acknowledge((short)(pAcknowledgedDatagramSequence - 1 - i), now, false);
+			}
+		}
+
+		if(acknowledged) {
+			final ArrayList<ReliableMessage> unacknowledgedReliableMessages = this.mUnacknowledgedReliableMessages;
+			final int unacknowledgedReliableMessageCount = unacknowledgedReliableMessages.size();
+			int remaining = 0;
+			for(int i = 0; i < unacknowledgedReliableMessageCount; i++) {
+				final ReliableMessage reliableMessage = unacknowledgedReliableMessages.get(i);
+				if(!reliableMessage.mAcknowledged) {
+					unacknowledgedReliableMessages.set(remaining++, reliableMessage);
+				}
+			}
+			for(int i = unacknowledgedReliableMessageCount - 1; i >= remaining; i--) {
+				unacknowledgedReliableMessages.remove(i);
+			}
+
+			/* The unacknowledged messages are in the order they were sent, so the first one per channel is the oldest one. */
+			System.arraycopy(this.mChannelNextMessageSequences, 0, this.mChannelOldestUnacknowledgedMessageSequences, 0, CHANNEL_COUNT_MAXIMUM);
+			for(int i = remaining - 1; i >= 0; i--) {
+				final ReliableMessage reliableMessage = unacknowledgedReliableMessages.get(i);
+				this.mChannelOldestUnacknowledgedMessageSequences[reliableMessage.mChannel] = reliableMessage.mMessageSequence;
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> when reliable messages might have been acknowledged.
+	 */
+	private boolean acknowledge(final short pDatagramSequence, final long pNow, final boolean pMeasureRoundTripTime) {
+		final SentDatagram sentDatagram = this.mSentDatagrams[pDatagramSequence & (SENT_DATAGRAM_BUFFER_SIZE - 1)];
+		if(sentDatagram == null || sentDatagram.mDatagramSequence != pDatagramSequence || sentDatagram.mAcknowledged) {
+			return false;
+		}
+		sentDatagram.mAcknowledged = true;
+
+		final ArrayList<ReliableMessage> reliableMessages = sentDatagram.mReliableMessages;
+		if(reliableMessages.isEmpty()) {
+			return false;
+		}
+
+		if(pMeasureRoundTripTime) {
+			this.mRoundTripTime += (pNow - sentDatagram.mSentTime - this.mRoundTripTime) / 8;
+		}
+
+		for(int i = reliableMessages.size() - 1; i >= 0; i--) {
+			reliableMessages.get(i).mAcknowledged = true;
+		}
+		reliableMessages.clear();
+		return true;
+	}
+
+	/**
+	 * Callers need to synchronize on {@link #mDatagramOutputStream}.
+	 * @return <code>true</code> when the receiving side has room to buffer the message, i.e. it is less than {@link #CHANNEL_WINDOW_SIZE} messages ahead of the oldest unacknowledged one on its channel.
+	 */
+	private boolean isInWindow(final ReliableMessage pReliableMessage) {
+		return ((pReliableMessage.mMessageSequence - this.mChannelOldestUnacknowledgedMessageSequences[pReliableMessage.mChannel]) & 0xFFFF) < CHANNEL_WINDOW_SIZE;
+	}
+
+	/**
+	 * Callers need to synchronize on {@link #mDatagramOutputStream}.
+	 */
+	private void appendReliableMessage(final ReliableMessage pReliableMessage) throws IOException {
+		this.appendMessage(pReliableMessage.mReliability, pReliableMessage.mChannel, pReliableMessage.mMessageSequence, pReliableMessage.mEncodedData);
+
+		pReliableMessage.mPending = true;
+		this.mPendingReliableMessages.add(pReliableMessage);
+	}
+
+	/**
+	 * Callers need to synchronize on {@link #mDatagramOutputStream}.
+	 */
+	private void appendMessage(final Reliability pReliability, final int pChannel, final short pMessageSequence, final byte[] pEncodedData) throws IOException {
+		final boolean reliable = pReliability != Reliability.UNRELIABLE;
+		final int messageSize = 1 + (reliable ? 2 : 0) + VarIntUtils.getVarIntSize(pEncodedData.length) + pEncodedData.length;
+
+		final DatagramOutputStream datagramOutputStream = this.mDatagramOutputStream;
+		if(datagramOutputStream.size() + messageSize > DATAGRAM_SIZE_MAXIMUM) {
+			this.sendDatagram();
+		}
+		if(datagramOutputStream.size() == 0) {
+			datagramOutputStream.beginDatagram();
+		}
+
+		final DataOutputStream dataOutputStream = this.mDataOutputStream;
+		dataOutputStream.writeByte((pReliability.ordinal() << MESSAGE_RELIABILITY_SHIFT) | pChannel);
+		if(reliable) {
+			dataOutputStream.writeShort(pMessageSequence);
+		}
+		VarIntUtils.writeVarInt(dataOutputStream, pEncodedData.length);
+		dataOutputStream.write(pEncodedData, 0, pEncodedData.length);
+	}
+
+	/**
+	 * Sends the pending datagram, or an empty one that only carries the acknowledgements of the datagrams received so far.
+	 * Callers need to synchronize on {@link #mDatagramOutputStream}.
+	 */
+	private void sendAcknowledgement() throws IOException {
+		final DatagramOutputStream datagramOutputStream = this.mDatagramOutputStream;
+		if(datagramOutputStream.size() == 0) {
+			datagramOutputStream.beginDatagram();
+		}
+		this.sendDatagram();
+	}
+
+	/**
+	 * Sends the pending datagram, along with the acknowledgements of the datagrams received so far.
+	 * Callers need to synchronize on {@link #mDatagramOutputStream}.
+	 */
+	private void sendDatagram() throws IOException {
+		final DatagramOutputStream datagramOutputStream = this.mDatagramOutputStream;
+		if(datagramOutputStream.size() == 0) {
+			return;
+		}
+
+		final long now = SystemClock.uptimeMillis();
+		final short datagramSequence = this.mNextDatagramSequence++;
+		final int flags = this.mRemoteDatagramSequenceValid ? DATAGRAM_FLAG_ACKNOWLEDGEMENT : 0;
+		datagramOutputStream.putHeader(flags, datagramSequence, this.mRemoteDatagramSequence, this.mRemoteAcknowledgementBits);
+
+		final int index = datagramSequence & (SENT_DATAGRAM_BUFFER_SIZE - 1);
+		SentDatagram sentDatagram = this.mSentDatagrams[index];
+		if(sentDatagram == null) {
+			sentDatagram = new SentDatagram();
+			this.mSentDatagrams[index] = sentDatagram;
+		}
+		sentDatagram.mDatagramSequence = datagramSequence;
+		sentDatagram.mSentTime = now;
+		sentDatagram.mAcknowledged = false;
+
+		final ArrayList<ReliableMessage> sentReliableMessages = sentDatagram.mReliableMessages;
+		sentReliableMessages.clear();
+		final ArrayList<ReliableMessage> pendingReliableMessages = this.mPendingReliableMessages;
+		final int pendingReliableMessageCount = pendingReliableMessages.size();
+		for(int i = 0; i < pendingReliableMessageCount; i++) {
+			final ReliableMessage reliableMessage = pendingReliableMessages.get(i);
+			reliableMessage.mPending = false;
+			reliableMessage.mSentTime = now;
+			sentReliableMessages.add(reliableMessage);
+		}
+		pendingReliableMessages.clear();
+
+		this.mAcknowledgementPending = false;
+
+		try {
+			this.send(datagramOutputStream.toByteBuffer());
+		} finally {
+			datagramOutputStream.reset();
+		}
+	}
+
+	/**
+	 * Sends a datagram without messages, so the other side knows about this {@link DatagramConnection}.
+	 * Callers need to synchronize on {@link #mDatagramOutputStream}.
+	 */
+	private void announce(final long pNow) throws IOException {
+		this.mAnnouncementTime = pNow;
+		this.sendAcknowledgement();
+	}
+
+	/**
+	 * @return <code>true</code> when a datagram was received into the {@link ByteBuffer}.
+	 */
+	private boolean receive(final ByteBuffer pDatagramBuffer) throws IOException {
+		pDatagramBuffer.clear();
+		try {
+			if(this.mDatagramChannel.receive(pDatagramBuffer) == null) {
+				return false;
+			}
+		} catch (final PortUnreachableException pue) {
+			/* The other side isn't receiving datagrams (yet). */
+			return false;
+		}
+		pDatagramBuffer.flip();
+		return true;
+	}
+
+	private void send(final ByteBuffer pDatagram) throws IOException {
+		/* Only one thread at a time may send over a DatagramChannel. */
+		synchronized(this.mDatagramChannel) {
+			this.mDatagramChannel.send(pDatagram, this.mRemoteSocketAddress);
+		}
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	public static enum Reliability {
+		// ===========================================================
+		// Elements
+		// ===========================================================
+
+		/**
+		 * Sent once, might get lost or arrive out of order. Suits frequent state updates that are superseded by the next one anyway.
+		 */
+		UNRELIABLE,
+		/**
+		 * Resent until acknowledged and delivered exactly once, as soon as it arrives.
+		 */
+		RELIABLE,
+		/**
+		 * Resent until acknowledged and delivered exactly once, in the order it was sent on its channel.
+		 */
+		RELIABLE_ORDERED;
+	}
+
+	private static class DatagramOutputStream extends ByteArrayOutputStream {
+		// ===========================================================
+		// Constants
+		// ===========================================================
+
+		// ===========================================================
+		// Fields
+		// ===========================================================
+
+		private DatagramConnection mDatagramConnection;
+
+		// ===========================================================
+		// Constructors
+		// ===========================================================
+
+		public DatagramOutputStream() {
+			super(DATAGRAM_SIZE_MAXIMUM);
+		}
+
+		// ===========================================================
+		// Getter & Setter
+		// ===========================================================
+
+		// ===========================================================
+		// Methods for/from SuperClass/Interfaces
+		// ===========================================================
+
+		/**
+		 * Sends everything written since the last flush as a single datagram.
+		 */
+		@Override
+		public synchronized void flush() throws IOException {
+			this.mDatagramConnection.sendDatagram();
+		}
+
+		// ===========================================================
+		// Methods
+		// ===========================================================
+
+		/**
+		 * Leaves room for the header, which is only known right before the datagram is sent.
+		 */
+		void beginDatagram() {
+			this.count = DATAGRAM_HEADER_SIZE;
+		}
+
+		void putHeader(final int pFlags, final short pDatagramSequence, final short pAcknowledgedDatagramSequence, final int pAcknowledgementBits) {
+			ByteBuffer.wrap(this.buf, 0, DATAGRAM_HEADER_SIZE)
+				.put((byte)pFlags)
+				.putShort(pDatagramSequence)
+				.putShort(pAcknowledgedDatagramSequence)
+				.putInt(pAcknowledgementBits);
+		}
+
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(this.buf, 0, this.count);
+		}
+
+		// ===========================================================
+		// Inner and Anonymous Classes
+		// ===========================================================
+	}
+
+	private static class ReliableMessage {
+		// ===========================================================
+		// Constants
+		// ===========================================================
+
+		// ===========================================================
+		// Fields
+		// ===========================================================
+
+		private final Reliability mReliability;
+		private final int mChannel;
+		private final short mMessageSequence;
+		private final byte[] mEncodedData;
+
+		private boolean mPending;
+		private long mSentTime;
+		private boolean mAcknowledged;
+
+		// ===========================================================
+		// Constructors
+		// ===========================================================
+
+		public ReliableMessage(final Reliability pReliability, final int pChannel, final short pMessageSequence, final byte[] pEncodedData) {
+			this.mReliability = pReliability;
+			this.mChannel = pChannel;
+			this.mMessageSequence = pMessageSequence;
+			this.mEncodedData = pEncodedData;
+		}
+
+		// ===========================================================
+		// Getter & Setter
+		// ===========================================================
+
+		// ===========================================================
+		// Methods for/from SuperClass/Interfaces
+		// ===========================================================
+
+		// ===========================================================
+		// Methods
+		// ===========================================================
+
+		// ===========================================================
+		// Inner and Anonymous Classes
+		// ===========================================================
+	}
+
+	private static class SentDatagram {
+		// ===========================================================
+		// Constants
+		// ===========================================================
+
+		// ===========================================================
+		// Fields
+		// ===========================================================
+
+		private short mDatagramSequence;
+		private long mSentTime;
+		private boolean mAcknowledged;
+		private final ArrayList<ReliableMessage> mReliableMessages = new ArrayList<ReliableMessage>();
+
+		// ===========================================================
+		// Constructors
+		// ===========================================================
+
+		// ===========================================================
+		// Getter & Setter
+		// ===========================================================
+
+		// ===========================================================
+		// Methods for/from SuperClass/Interfaces
+		// ===========================================================
+
+		// ===========================================================
+		// Methods
+		// ===========================================================
+
+		// ===========================================================
+		// Inner and Anonymous Classes
+		// ===========================================================
+	}
+
+	private static class ReceiveChannel {
+		// ===========================================================
+		// Constants
+		// ===========================================================
+
+		/**
+		 * Marks a message that was delivered ahead of the next sequence number.
+		 */
+		private static final byte[] DELIVERED = new byte[0];
+
+		// ===========================================================
+		// Fields
+		// ===========================================================
+
+		private final Reliability mReliability;
+		/**
+		 * All messages before it were delivered.
+		 */
+		private short mNextMessageSequence;
+		/**
+		 * Indexed by the message sequence number, holds the messages that arrived ahead of the next sequence number.
+		 */
+		private final byte[][] mReceivedMessages = new byte[CHANNEL_WINDOW_SIZE][];
+
+		// ===========================================================
+		// Constructors
+		// ===========================================================
+
+		public ReceiveChannel(final Reliability pReliability) {
+			this.mReliability = pReliability;
+		}
+
+		// ===========================================================
+		// Getter & Setter
+		// ===========================================================
+
+		// ===========================================================
+		// Methods for/from SuperClass/Interfaces
+		// ===========================================================
+
+		// ===========================================================
+		// Methods
+		// ===========================================================
+
+		// ===========================================================
+		// Inner and Anonymous Classes
+		// ===========================================================
+	}
+}
@@ -5,6 +5,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.anddev.andengine.extension.multiplayer.protocol.util.IPUtils;
 
 import org.anddev.andengine.util.StreamUtils;
 
@@ -84,6 +89,9 @@ public interface IDiscoveryData {
 		// ===========================================================
 	}
 
+	/**
+	 * The server IP can be an IPv4 or an IPv6 address.
+	 */
 	public class DefaultDiscoveryData implements IDiscoveryData {
 		// ===========================================================
 		// Constants
@@ -105,7 +113,13 @@ public interface IDiscoveryData {
 
 		}
 
+		/**
+		 * @param pServerIP an IPv4 or IPv6 address, {@link IPUtils#IPV4_LENGTH} or {@link IPUtils#IPV6_LENGTH} bytes long.
+		 */
 		public DefaultDiscoveryData(final byte[] pServerIP, final int pServerPort) {
+			if(pServerIP.length != IPUtils.IPV4_LENGTH && pServerIP.length != IPUtils.IPV6_LENGTH) {
+				throw new IllegalArgumentException("Illegal server IP length: '" + pServerIP.length + "'.");
+			}
 			this.mServerIP = pServerIP;
 			this.mServerPort = pServerPort;
 		}
@@ -122,6 +136,10 @@ public interface IDiscoveryData {
 			return this.mServerPort;
 		}
 
+		public InetAddress getServerInetAddress() throws UnknownHostException {
+			return InetAddress.getByAddress(this.mServerIP);
+		}
+
 		// ===========================================================
 		// Methods for/from SuperClass/Interfaces
 		// ===========================================================
@@ -129,11 +147,12 @@ public interface IDiscoveryData {
 		@Override
 		public void read(final DataInputStream pDataInputStream) throws IOException {
 			final byte serverIPLength = pDataInputStream.readByte();
-			this.mServerIP = new byte[serverIPLength];
-			for(int i = 0; i < this.mServerIP.length; i++) {
-				this.mServerIP[i] = pDataInputStream.readByte();
+			if(serverIPLength != IPUtils.IPV4_LENGTH && serverIPLength != IPUtils.IPV6_LENGTH) {
+				throw new StreamCorruptedException("Illegal server IP length: '" + serverIPLength + "'.");
 			}
-			this.mServerPort = pDataInputStream.readShort();
+			this.mServerIP = new byte[serverIPLength];
+			pDataInputStream.readFully(this.mServerIP);
+			this.mServerPort = pDataInputStream.readUnsignedShort();
 		}
 
 		@Override
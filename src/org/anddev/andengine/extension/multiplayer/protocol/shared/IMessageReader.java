@@ -4,6 +4,7 @@ import java.io.DataInputStream;
 import java.io.IOException;
 
 import org.anddev.andengine.extension.multiplayer.protocol.adt.message.IMessage;
+import org.anddev.andengine.extension.multiplayer.protocol.util.IMessageFactory;
 
 /**
  * (c) 2010 Nicolas Gramlich 
@@ -24,8 +25,42 @@ public interface IMessageReader<C extends Connection, CC extends Connector<C>, M
 	public void registerMessage(final short pFlag, final Class<? extends M> pMessageClass);
 	public void registerMessageHandler(final short pFlag, final IMessageHandler<C, CC, M> pMessageHandler);
 	public void registerMessage(final short pFlag, final Class<? extends M> pMessageClass, final IMessageHandler<C, CC, M> pMessageHandler);
+	public void registerMessage(final short pFlag, final IMessageFactory<? extends M> pMessageFactory);
+	public void registerMessage(final short pFlag, final IMessageFactory<? extends M> pMessageFactory, final IMessageHandler<C, CC, M> pMessageHandler);
+	/**
+	 * @param pInitialPoolSize the amount of messages that are allocated right away, so the first burst of messages doesn't allocate.
+	 */
+	public void registerMessage(final short pFlag, final IMessageFactory<? extends M> pMessageFactory, final int pInitialPoolSize);
+
+	/**
+	 * Resolves the pool and the {@link IMessageHandler} of a flag with a single array index from now on, instead of a binary search.
+	 * Nothing can be registered afterwards. Flags should be densely packed, starting at <code>0</code>.
+	 * Should be called before any {@link IMessage} is read.
+	 */
+	public void freeze();
+	public boolean isFrozen();
 
 	public M readMessage(final DataInputStream pDataInputStream) throws IOException;
+	/**
+	 * Reads the payload, the flag was already read.
+	 */
+	public M readMessage(final short pFlag, final DataInputStream pDataInputStream) throws IOException;
+	/**
+	 * Reads a whole frame (flag + varint payload length + payload), as written by {@link org.anddev.andengine.extension.multiplayer.protocol.util.MessageEncoder#encodeFramed(IMessage)}.
+	 * @return <code>null</code> if no message is registered for the flag of the frame. The frame is skipped then.
+	 */
+	public M readFramedMessage(final DataInputStream pDataInputStream) throws IOException;
+	/**
+	 * Reads the rest of the frame, the flag was already read.
+	 * @return <code>null</code> if no message is registered for the flag. The frame is skipped then.
+	 */
+	public M readFramedMessage(final short pFlag, final DataInputStream pDataInputStream) throws IOException;
+	/**
+	 * Reads a whole batch, as written by a {@link org.anddev.andengine.extension.multiplayer.protocol.util.MessageBatch}, the {@link org.anddev.andengine.extension.multiplayer.protocol.util.MessageBatch#FLAG_BATCH} was already read.
+	 * @return a {@link DataInputStream} over the messages of the batch, to be read one after another until {@link DataInputStream#available()} returns <code>0</code>.
+	 * Only valid until the next batch is read on the same thread.
+	 */
+	public DataInputStream readBatch(final DataInputStream pDataInputStream) throws IOException;
 
 	public void handleMessage(final CC pConnector, final M pMessage) throws IOException;
 
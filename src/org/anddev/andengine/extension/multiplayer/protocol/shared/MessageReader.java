@@ -1,10 +1,20 @@
 package org.anddev.andengine.extension.multiplayer.protocol.shared;
 
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
+import org.anddev.andengine.extension.multiplayer.protocol.adt.message.IBufferMessage;
 import org.anddev.andengine.extension.multiplayer.protocol.adt.message.IMessage;
+import org.anddev.andengine.extension.multiplayer.protocol.util.ByteBufferInputStream;
+import org.anddev.andengine.extension.multiplayer.protocol.util.IMessageFactory;
+import org.anddev.andengine.extension.multiplayer.protocol.util.MessageBatch;
 import org.anddev.andengine.extension.multiplayer.protocol.util.MessagePool;
+import org.anddev.andengine.extension.multiplayer.protocol.util.SparseArrayUtils;
+import org.anddev.andengine.extension.multiplayer.protocol.util.VarIntUtils;
 
 import android.util.SparseArray;
 
@@ -20,21 +30,57 @@ public abstract class MessageReader<C extends Connection, CC extends Connector<C
 	// Constants
 	// ===========================================================
 
+	public static final int FRAME_LENGTH_MAXIMUM = 1 << 20;
+
 	// ===========================================================
 	// Fields
 	// ===========================================================
 
-	private final MessagePool<M> mMessagePool = new MessagePool<M>();
+	private final MessagePool<M> mMessagePool;
+
+	/* The same MessageReader might be used by many Connections, each reading on its own thread. */
+	private final ThreadLocal<FrameBuffer> mFrameBuffer = new ThreadLocal<FrameBuffer>() {
+		@Override
+		protected FrameBuffer initialValue() {
+			return new FrameBuffer();
+		}
+	};
+	/* Separate from mFrameBuffer, as the framed messages of a batch are read while the batch itself is still buffered. */
+	private final ThreadLocal<FrameBuffer> mBatchBuffer = new ThreadLocal<FrameBuffer>() {
+		@Override
+		protected FrameBuffer initialValue() {
+			return new FrameBuffer();
+		}
+	};
 	private final SparseArray<IMessageHandler<C, CC, M>> mMessageHandlers = new SparseArray<IMessageHandler<C, CC, M>>();
+	/* Only set once frozen. Until then, lookups go through mMessageHandlers, which stays valid afterwards. */
+	/* Volatile, so connection threads see the elements of the table as soon as they see the table. */
+	private volatile IMessageHandler<C, CC, M>[] mMessageHandlerTable;
 
 	// ===========================================================
 	// Constructors
 	// ===========================================================
 
+	public MessageReader() {
+		this(new MessagePool<M>());
+	}
+
+	/**
+	 * @param pMessagePool i.e. a concurrent {@link MessagePool}, when messages are recycled on another thread than the one reading them.
+	 */
+	public MessageReader(final MessagePool<M> pMessagePool) {
+		this.mMessagePool = pMessagePool;
+	}
+
 	// ===========================================================
 	// Getter & Setter
 	// ===========================================================
 
+	@Override
+	public boolean isFrozen() {
+		return this.mMessageHandlerTable != null;
+	}
+
 	// ===========================================================
 	// Methods for/from SuperClass/Interfaces
 	// ===========================================================
@@ -50,6 +96,12 @@ public abstract class MessageReader<C extends Connection, CC extends Connector<C
 
 	@Override
 	public void registerMessageHandler(final short pFlag, final IMessageHandler<C, CC, M> pMessageHandler) {
+		if(this.isFrozen()) {
+			throw new IllegalStateException("No " + IMessageHandler.class.getSimpleName() + "s can be registered after " + this.getClass().getSimpleName() + " was frozen.");
+		}
+		if(pFlag == MessageBatch.FLAG_BATCH) {
+			throw new IllegalArgumentException("pFlag='" + pFlag + "' is reserved for batches.");
+		}
 		this.mMessageHandlers.put(pFlag, pMessageHandler);
 	}
 
@@ -59,15 +111,95 @@ public abstract class MessageReader<C extends Connection, CC extends Connector<C
 		this.registerMessageHandler(pFlag, pMessageHandler);
 	}
 
+	@Override
+	public void registerMessage(final short pFlag, final IMessageFactory<? extends M> pMessageFactory) {
+		this.mMessagePool.registerMessage(pFlag, pMessageFactory);
+	}
+
+	@Override
+	public void registerMessage(final short pFlag, final IMessageFactory<? extends M> pMessageFactory, final IMessageHandler<C, CC, M> pMessageHandler) {
+		this.registerMessage(pFlag, pMessageFactory);
+		this.registerMessageHandler(pFlag, pMessageHandler);
+	}
+
+	@Override
+	public void registerMessage(final short pFlag, final IMessageFactory<? extends M> pMessageFactory, final int pInitialPoolSize) {
+		this.mMessagePool.registerMessage(pFlag, pMessageFactory, pInitialPoolSize);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void freeze() {
+		if(!this.isFrozen()) {
+			this.mMessagePool.freeze();
+			final IMessageHandler<C, CC, M>[] emptyMessageHandlerTable = (IMessageHandler<C, CC, M>[]) new IMessageHandler<?, ?, ?>[0];
+			this.mMessageHandlerTable = SparseArrayUtils.toIndexedArray(this.mMessageHandlers, emptyMessageHandlerTable);
+		}
+	}
+
 	@Override
 	public M readMessage(final DataInputStream pDataInputStream) throws IOException {
-		final short flag = pDataInputStream.readShort();
-		return this.mMessagePool.obtainMessage(flag, pDataInputStream);
+		return this.readMessage(pDataInputStream.readShort(), pDataInputStream);
+	}
+
+	@Override
+	public M readMessage(final short pFlag, final DataInputStream pDataInputStream) throws IOException {
+		return this.mMessagePool.obtainMessage(pFlag, pDataInputStream);
+	}
+
+	@Override
+	public M readFramedMessage(final DataInputStream pDataInputStream) throws IOException {
+		return this.readFramedMessage(pDataInputStream.readShort(), pDataInputStream);
+	}
+
+	@Override
+	public M readFramedMessage(final short pFlag, final DataInputStream pDataInputStream) throws IOException {
+		final int length = VarIntUtils.readVarInt(pDataInputStream);
+		if(length < 0 || length > FRAME_LENGTH_MAXIMUM) {
+			throw new StreamCorruptedException("Illegal frame length: '" + length + "' for pFlag='" + pFlag + "'.");
+		}
+
+		final FrameBuffer frameBuffer = this.mFrameBuffer.get();
+		frameBuffer.readFrom(pDataInputStream, length);
+
+		final M message = this.mMessagePool.obtainMessage(pFlag);
+		if(message == null) {
+			/* Unknown message, the frame was skipped. */
+			return null;
+		} else {
+			try {
+				if(message instanceof IBufferMessage) {
+					/* Decode straight from the frame, without going through the DataInputStream. */
+					((IBufferMessage) message).read(frameBuffer.getByteBuffer());
+				} else {
+					message.read(frameBuffer.getDataInputStream());
+				}
+			} catch (final EOFException e) {
+				this.mMessagePool.recycleMessage(message);
+				throw new StreamCorruptedException("Message for pFlag='" + pFlag + "' is longer than its frame of length: '" + length + "'.");
+			} catch (final BufferUnderflowException e) {
+				this.mMessagePool.recycleMessage(message);
+				throw new StreamCorruptedException("Message for pFlag='" + pFlag + "' is longer than its frame of length: '" + length + "'.");
+			}
+			return message;
+		}
+	}
+
+	@Override
+	public DataInputStream readBatch(final DataInputStream pDataInputStream) throws IOException {
+		final int length = VarIntUtils.readVarInt(pDataInputStream);
+		if(length < 0 || length > FRAME_LENGTH_MAXIMUM) {
+			throw new StreamCorruptedException("Illegal batch length: '" + length + "'.");
+		}
+
+		final FrameBuffer batchBuffer = this.mBatchBuffer.get();
+		batchBuffer.readFrom(pDataInputStream, length);
+		return batchBuffer.getDataInputStream();
 	}
 
 	@Override
 	public void handleMessage(final CC pConnector, final M pMessage) throws IOException {
-		final IMessageHandler<C, CC, M> messageHandler = this.mMessageHandlers.get(pMessage.getFlag());
+		final IMessageHandler<C, CC, M> messageHandler = this.getMessageHandler(pMessage.getFlag());
 		if(messageHandler != null) {
 			messageHandler.onHandleMessage(pConnector, pMessage);
 		}
@@ -78,7 +210,77 @@ public abstract class MessageReader<C extends Connection, CC extends Connector<C
 		this.mMessagePool.recycleMessage(pMessage);
 	}
 
+	private IMessageHandler<C, CC, M> getMessageHandler(final short pFlag) {
+		final IMessageHandler<C, CC, M>[] messageHandlerTable = this.mMessageHandlerTable;
+		if(messageHandlerTable != null) {
+			if(pFlag >= 0 && pFlag < messageHandlerTable.length) {
+				return messageHandlerTable[pFlag];
+			} else {
+				return null;
+			}
+		} else {
+			return this.mMessageHandlers.get(pFlag);
+		}
+	}
+
 	// ===========================================================
 	// Inner and Anonymous Classes
 	// ===========================================================
+
+	private static class FrameBuffer {
+		// ===========================================================
+		// Constants
+		// ===========================================================
+
+		private static final int CAPACITY_INITIAL = 256;
+
+		// ===========================================================
+		// Fields
+		// ===========================================================
+
+		private byte[] mBuffer = new byte[CAPACITY_INITIAL];
+		private final ByteBufferInputStream mByteBufferInputStream = new ByteBufferInputStream(ByteBuffer.wrap(this.mBuffer));
+		private final DataInputStream mDataInputStream = new DataInputStream(this.mByteBufferInputStream);
+
+		// ===========================================================
+		// Constructors
+		// ===========================================================
+
+		// ===========================================================
+		// Getter & Setter
+		// ===========================================================
+
+		public DataInputStream getDataInputStream() {
+			return this.mDataInputStream;
+		}
+
+		public ByteBuffer getByteBuffer() {
+			return this.mByteBufferInputStream.getByteBuffer();
+		}
+
+		// ===========================================================
+		// Methods for/from SuperClass/Interfaces
+		// ===========================================================
+
+		// ===========================================================
+		// Methods
+		// ===========================================================
+
+		public void readFrom(final DataInputStream pDataInputStream, final int pLength) throws IOException {
+			if(pLength > this.mBuffer.length) {
+				this.mBuffer = new byte[Math.max(pLength, this.mBuffer.length * 2)];
+				this.mByteBufferInputStream.setByteBuffer(ByteBuffer.wrap(this.mBuffer));
+			}
+
+			pDataInputStream.readFully(this.mBuffer, 0, pLength);
+
+			final ByteBuffer byteBuffer = this.mByteBufferInputStream.getByteBuffer();
+			byteBuffer.clear();
+			byteBuffer.limit(pLength);
+		}
+
+		// ===========================================================
+		// Inner and Anonymous Classes
+		// ===========================================================
+	}
 }
@@ -0,0 +1,213 @@
+package org.anddev.andengine.extension.multiplayer.protocol.shared;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.anddev.andengine.util.Debug;
+
+/**
+ * Multiplexes any number of {@link NioSocketConnection}s on a single {@link Selector}.
+ * All reads, writes and interest changes of the registered connections happen on this thread.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 11:12:40 - 04.07.2011
+ */
+public class NioSelectorThread extends Thread {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final Selector mSelector;
+
+	private final Queue<NioSocketConnection> mPendingRegistrations = new ConcurrentLinkedQueue<NioSocketConnection>();
+	private final Queue<NioSocketConnection> mPendingWriteRequests = new ConcurrentLinkedQueue<NioSocketConnection>();
+
+	protected AtomicBoolean mRunning = new AtomicBoolean(false);
+	protected AtomicBoolean mTerminated = new AtomicBoolean(false);
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public NioSelectorThread() throws IOException {
+		this.mSelector = Selector.open();
+
+		this.initName();
+	}
+
+	private void initName() {
+		this.setName(this.getClass().getName());
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public boolean isRunning() {
+		return this.mRunning.get();
+	}
+
+	public boolean isTerminated() {
+		return this.mTerminated.get();
+	}
+
+	/**
+	 * @return the amount of {@link NioSocketConnection}s currently registered with this {@link NioSelectorThread}.
+	 */
+	public int getConnectionCount() {
+		return this.mSelector.keys().size();
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public void run() {
+		this.mRunning.set(true);
+
+		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_MORE_FAVORABLE);  // TODO What ThreadPriority makes sense here?
+
+		try {
+			while(!Thread.interrupted() && this.mRunning.get() && !this.mTerminated.get()) {
+				try {
+					this.mSelector.select();
+
+					this.processPendingRegistrations();
+					this.processPendingWriteRequests();
+					this.processSelectedKeys();
+				} catch (final Throwable pThrowable) {
+					Debug.e(pThrowable);
+				}
+			}
+		} catch (final Throwable pThrowable) {
+			Debug.e(pThrowable);
+		} finally {
+			this.terminate();
+			this.closeSelector();
+		}
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		this.terminate();
+		super.finalize();
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Can be called from any thread. The {@link NioSocketConnection} will be registered on this {@link NioSelectorThread}.
+	 */
+	void register(final NioSocketConnection pNioSocketConnection) {
+		this.mPendingRegistrations.add(pNioSocketConnection);
+		this.mSelector.wakeup();
+	}
+
+	/**
+	 * Can be called from any thread. The {@link NioSocketConnection} will be flushed on this {@link NioSelectorThread}.
+	 */
+	void requestWrite(final NioSocketConnection pNioSocketConnection) {
+		this.mPendingWriteRequests.add(pNioSocketConnection);
+		this.mSelector.wakeup();
+	}
+
+	private void processPendingRegistrations() {
+		NioSocketConnection nioSocketConnection;
+		while((nioSocketConnection = this.mPendingRegistrations.poll()) != null) {
+			try {
+				nioSocketConnection.onRegister(this.mSelector);
+			} catch (final Throwable pThrowable) {
+				Debug.e(pThrowable);
+				nioSocketConnection.terminate();
+			}
+		}
+	}
+
+	private void processPendingWriteRequests() {
+		NioSocketConnection nioSocketConnection;
+		while((nioSocketConnection = this.mPendingWriteRequests.poll()) != null) {
+			try {
+				nioSocketConnection.onWritable();
+			} catch (final Throwable pThrowable) {
+				Debug.e(pThrowable);
+				nioSocketConnection.terminate();
+			}
+		}
+	}
+
+	private void processSelectedKeys() {
+		final Set<SelectionKey> selectedKeys = this.mSelector.selectedKeys();
+		final Iterator<SelectionKey> selectedKeyIterator = selectedKeys.iterator();
+		while(selectedKeyIterator.hasNext()) {
+			final SelectionKey selectionKey = selectedKeyIterator.next();
+			selectedKeyIterator.remove();
+
+			final NioSocketConnection nioSocketConnection = (NioSocketConnection) selectionKey.attachment();
+			try {
+				if(selectionKey.isValid() && selectionKey.isReadable()) {
+					nioSocketConnection.onReadable();
+				}
+				if(selectionKey.isValid() && selectionKey.isWritable()) {
+					nioSocketConnection.onWritable();
+				}
+			} catch (final Throwable pThrowable) {
+				Debug.e(pThrowable);
+				nioSocketConnection.terminate();
+			}
+		}
+	}
+
+	public void terminate() {
+		if(!this.mTerminated.getAndSet(true)) {
+			this.mRunning.set(false);
+
+			this.interrupt();
+
+			this.onTerminate();
+		}
+	}
+
+	protected void onTerminate() {
+		/* The actual cleanup happens on this thread, see closeSelector(). */
+		this.mSelector.wakeup();
+	}
+
+	private void closeSelector() {
+		/* Terminate all Connections that are still registered. */
+		final SelectionKey[] selectionKeys = this.mSelector.keys().toArray(new SelectionKey[0]);
+		for(int i = 0; i < selectionKeys.length; i++) {
+			((NioSocketConnection) selectionKeys[i].attachment()).terminate();
+		}
+
+		NioSocketConnection nioSocketConnection;
+		while((nioSocketConnection = this.mPendingRegistrations.poll()) != null) {
+			nioSocketConnection.terminate();
+		}
+
+		try {
+			this.mSelector.close();
+		} catch (final IOException e) {
+			Debug.e(e);
+		}
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+}
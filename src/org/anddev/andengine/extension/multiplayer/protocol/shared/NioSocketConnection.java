@@ -0,0 +1,469 @@
+package org.anddev.andengine.extension.multiplayer.protocol.shared;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.anddev.andengine.extension.multiplayer.protocol.shared.OutboundQueue.OverflowPolicy;
+import org.anddev.andengine.extension.multiplayer.protocol.util.ByteBufferInputStream;
+import org.anddev.andengine.extension.multiplayer.protocol.util.VarIntUtils;
+import org.anddev.andengine.util.Debug;
+
+/**
+ * A non-blocking {@link Connection} that does not run its own thread, but is driven by a {@link NioSelectorThread} shared with many other {@link NioSocketConnection}s.
+ * Incoming bytes are collected until a complete message could be read by the {@link IConnectionListener}, outgoing bytes are written whenever the {@link SocketChannel} is writable.
+ * The outgoing bytes waiting to be written are bounded like an {@link OutboundQueue}, see {@link #setPendingOutputLimit(int, OverflowPolicy)}.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 11:20:17 - 04.07.2011
+ */
+public class NioSocketConnection extends Connection {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	public static final int INPUTBUFFER_CAPACITY_DEFAULT = 8192;
+	/**
+	 * Fits the largest frame, along with its flag and length. A message that doesn't fit, i.e. because of a corrupted length, terminates the {@link NioSocketConnection}.
+	 */
+	public static final int INPUTBUFFER_CAPACITY_MAXIMUM = 2 + VarIntUtils.VARINT_SIZE_MAXIMUM + MessageReader.FRAME_LENGTH_MAXIMUM;
+	public static final int PENDINGOUTPUT_BYTECAPACITY_DEFAULT = 1 << 20;
+
+	private static final int GATHERINGWRITE_BUFFERCOUNT_MAXIMUM = 16;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final SocketChannel mSocketChannel;
+	private final InetAddress mInetAddress;
+	private final SocketAddress mRemoteSocketAddress;
+	private final NioSelectorThread mNioSelectorThread;
+	private SelectionKey mSelectionKey;
+
+	private final ByteBufferInputStream mByteBufferInputStream;
+	/* Guarded by itself, as overflowing drops from it while the NioSelectorThread writes from it. */
+	private final ArrayDeque<ByteBuffer> mPendingOutputBuffers = new ArrayDeque<ByteBuffer>();
+	private final ByteBuffer[] mGatheringWriteBuffers = new ByteBuffer[GATHERINGWRITE_BUFFERCOUNT_MAXIMUM];
+
+	private int mPendingOutputByteCount;
+	private int mPendingOutputByteCapacity = PENDINGOUTPUT_BYTECAPACITY_DEFAULT;
+	private OverflowPolicy mPendingOutputOverflowPolicy = OverflowPolicy.DROP_OLDEST;
+	private final AtomicInteger mDroppedCount = new AtomicInteger(0);
+
+	private final AtomicBoolean mDraining = new AtomicBoolean(false);
+	/* Notified once this NioSocketConnection terminated. */
+	private final Object mTerminationLock = new Object();
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public NioSocketConnection(final SocketChannel pSocketChannel, final NioSelectorThread pNioSelectorThread) throws IOException {
+		this(pSocketChannel, pNioSelectorThread, INPUTBUFFER_CAPACITY_DEFAULT);
+	}
+
+	public NioSocketConnection(final SocketChannel pSocketChannel, final NioSelectorThread pNioSelectorThread, final int pInputBufferCapacity) throws IOException {
+		this(pSocketChannel, pNioSelectorThread, new ByteBufferInputStream(pInputBufferCapacity), new NioOutputStream());
+	}
+
+	private NioSocketConnection(final SocketChannel pSocketChannel, final NioSelectorThread pNioSelectorThread, final ByteBufferInputStream pByteBufferInputStream, final NioOutputStream pNioOutputStream) throws IOException {
+		super(new DataInputStream(pByteBufferInputStream), new DataOutputStream(pNioOutputStream));
+
+		this.mSocketChannel = pSocketChannel;
+		this.mInetAddress = pSocketChannel.socket().getInetAddress();
+		this.mRemoteSocketAddress = pSocketChannel.socket().getRemoteSocketAddress();
+		this.mNioSelectorThread = pNioSelectorThread;
+		this.mByteBufferInputStream = pByteBufferInputStream;
+
+		pNioOutputStream.mNioSocketConnection = this;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public SocketChannel getSocketChannel() {
+		return this.mSocketChannel;
+	}
+
+	/**
+	 * @return the remote {@link InetAddress}, which stays available after this {@link NioSocketConnection} was terminated.
+	 */
+	public InetAddress getInetAddress() {
+		return this.mInetAddress;
+	}
+
+	/**
+	 * @return the remote {@link SocketAddress}, which stays available after this {@link NioSocketConnection} was terminated.
+	 */
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return this.mRemoteSocketAddress;
+	}
+
+	public NioSelectorThread getNioSelectorThread() {
+		return this.mNioSelectorThread;
+	}
+
+	public int getPendingOutputByteCapacity() {
+		return this.mPendingOutputByteCapacity;
+	}
+
+	public OverflowPolicy getPendingOutputOverflowPolicy() {
+		return this.mPendingOutputOverflowPolicy;
+	}
+
+	/**
+	 * @param pByteCapacity how many outgoing bytes may wait to be written before the {@link OverflowPolicy} applies, like for an {@link OutboundQueue}.
+	 * The {@link OverflowPolicy} drops whole flushed chunks, usually one per message or batch. A single chunk is always accepted when nothing else is waiting.
+	 */
+	public void setPendingOutputLimit(final int pByteCapacity, final OverflowPolicy pOverflowPolicy) {
+		if(pByteCapacity < 1) {
+			throw new IllegalArgumentException("pByteCapacity must be positive: " + pByteCapacity);
+		}
+		synchronized(this.mPendingOutputBuffers) {
+			this.mPendingOutputByteCapacity = pByteCapacity;
+			this.mPendingOutputOverflowPolicy = pOverflowPolicy;
+		}
+	}
+
+	/**
+	 * @return the amount of outgoing bytes waiting to be written, including partially written chunks.
+	 */
+	public int getPendingOutputByteCount() {
+		synchronized(this.mPendingOutputBuffers) {
+			return this.mPendingOutputByteCount;
+		}
+	}
+
+	/**
+	 * @return the amount of flushed chunks of outgoing bytes that were dropped because too many bytes were waiting to be written.
+	 */
+	public int getDroppedCount() {
+		return this.mDroppedCount.get();
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	/**
+	 * Does not start a new {@link Thread}, but registers this {@link NioSocketConnection} with its {@link NioSelectorThread}.
+	 */
+	@Override
+	public synchronized void start() {
+		this.mNioSelectorThread.register(this);
+	}
+
+	/**
+	 * Enqueues the shared data without copying it. Anything written to the {@link DataOutputStream} before is flushed first, to preserve the order.
+	 */
+	@Override
+	public void writeEncodedData(final byte[] pEncodedData) throws IOException {
+		this.mDataOutputStream.flush();
+		this.enqueueOutputBuffer(ByteBuffer.wrap(pEncodedData));
+	}
+
+	/**
+	 * The output is written by the {@link NioSelectorThread} whenever the other side reads.
+	 */
+	@Override
+	public boolean isBlocking() {
+		return false;
+	}
+
+	/**
+	 * From now on the {@link NioSocketConnection} terminates as soon as all pending output was written. Never blocks.
+	 */
+	@Override
+	public void drain() {
+		try {
+			this.mDataOutputStream.flush();
+		} catch (final IOException e) {
+			Debug.e(e);
+		}
+		if(!this.mTerminated.get() && !this.mDraining.getAndSet(true)) {
+			/* Terminates right away on the NioSelectorThread, when nothing is pending. */
+			this.mNioSelectorThread.requestWrite(this);
+		}
+	}
+
+	/**
+	 * There is no {@link Thread} to join, so this waits until {@link #terminate()} was called.
+	 * Doesn't wait when called on the {@link NioSelectorThread}, which would have to write the pending output meanwhile.
+	 */
+	@Override
+	public boolean awaitTermination(final long pTimeoutMilliseconds) throws InterruptedException {
+		if(Thread.currentThread() == this.mNioSelectorThread) {
+			return this.mTerminated.get();
+		}
+
+		final long deadline = System.currentTimeMillis() + pTimeoutMilliseconds;
+		synchronized(this.mTerminationLock) {
+			while(!this.mTerminated.get()) {
+				final long remainingMilliseconds = deadline - System.currentTimeMillis();
+				if(remainingMilliseconds <= 0) {
+					return false;
+				}
+				this.mTerminationLock.wait(remainingMilliseconds);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	protected void onTerminate() {
+		/* Ensure SocketChannel is really closed. */
+		try {
+			this.mSocketChannel.close();
+		} catch (final IOException e) {
+			Debug.e(e);
+		}
+		super.onTerminate();
+
+		synchronized(this.mTerminationLock) {
+			this.mTerminationLock.notifyAll();
+		}
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Called on the {@link NioSelectorThread}.
+	 */
+	void onRegister(final Selector pSelector) throws IOException {
+		this.mSocketChannel.configureBlocking(false);
+		this.mSelectionKey = this.mSocketChannel.register(pSelector, SelectionKey.OP_READ, this);
+
+		this.onStart();
+
+		this.mRunning.set(true);
+
+		/* Flush whatever was sent before the registration. */
+		this.onWritable();
+	}
+
+	/**
+	 * Called on the {@link NioSelectorThread}.
+	 */
+	void onReadable() throws IOException {
+		ByteBuffer inputBuffer = this.mByteBufferInputStream.getByteBuffer();
+		if(!inputBuffer.hasRemaining()) {
+			/* A single message is bigger than the buffer. */
+			if(inputBuffer.capacity() >= INPUTBUFFER_CAPACITY_MAXIMUM) {
+				throw new StreamCorruptedException("Message from: '" + this.mRemoteSocketAddress + "' is bigger than: '" + INPUTBUFFER_CAPACITY_MAXIMUM + "' bytes.");
+			}
+			final ByteBuffer grownInputBuffer = ByteBuffer.allocate(Math.min(inputBuffer.capacity() * 2, INPUTBUFFER_CAPACITY_MAXIMUM));
+			inputBuffer.flip();
+			grownInputBuffer.put(inputBuffer);
+			this.mByteBufferInputStream.setByteBuffer(grownInputBuffer);
+			inputBuffer = grownInputBuffer;
+		}
+
+		final int read = this.mSocketChannel.read(inputBuffer);
+		if(read < 0) {
+			this.terminate();
+			return;
+		}
+
+		inputBuffer.flip();
+		try {
+			while(inputBuffer.hasRemaining() && this.mRunning.get() && !this.mTerminated.get()) {
+				final int position = inputBuffer.position();
+				try {
+					this.mConnectionListener.read(this.mDataInputStream);
+				} catch (final EOFException eof) {
+					/* The message is not complete yet, so it will be read again once more data arrived. */
+					inputBuffer.position(position);
+					break;
+				} catch (final SocketException se) {
+					this.terminate();
+				} catch (final Throwable pThrowable) {
+					Debug.e(pThrowable);
+					if(inputBuffer.position() == position) {
+						break;
+					}
+				}
+			}
+		} finally {
+			inputBuffer.compact();
+		}
+	}
+
+	/**
+	 * Called on the {@link NioSelectorThread}.
+	 */
+	void onWritable() throws IOException {
+		final SelectionKey selectionKey = this.mSelectionKey;
+		if(selectionKey == null || !selectionKey.isValid()) {
+			return;
+		}
+
+		final ArrayDeque<ByteBuffer> pendingOutputBuffers = this.mPendingOutputBuffers;
+		final ByteBuffer[] gatheringWriteBuffers = this.mGatheringWriteBuffers;
+		final boolean drained;
+		/* The SocketChannel is non-blocking, so writing while holding the lock is quick. */
+		synchronized(pendingOutputBuffers) {
+			while(!pendingOutputBuffers.isEmpty()) {
+				/* Gather as many pending buffers as possible into a single write. */
+				int gatheringWriteBufferCount = 0;
+				for(final ByteBuffer pendingOutputBuffer : pendingOutputBuffers) {
+					gatheringWriteBuffers[gatheringWriteBufferCount++] = pendingOutputBuffer;
+					if(gatheringWriteBufferCount == gatheringWriteBuffers.length) {
+						break;
+					}
+				}
+
+				this.mSocketChannel.write(gatheringWriteBuffers, 0, gatheringWriteBufferCount);
+
+				for(int i = 0; i < gatheringWriteBufferCount; i++) {
+					final ByteBuffer gatheringWriteBuffer = gatheringWriteBuffers[i];
+					gatheringWriteBuffers[i] = null;
+					if(gatheringWriteBuffer.hasRemaining()) {
+						for(int j = i + 1; j < gatheringWriteBufferCount; j++) {
+							gatheringWriteBuffers[j] = null;
+						}
+						/* The socket buffer is full, continue as soon as the SocketChannel is writable again. */
+						selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					} else {
+						pendingOutputBuffers.poll();
+						this.mPendingOutputByteCount -= gatheringWriteBuffer.limit();
+					}
+				}
+			}
+			/* Checked while holding the lock, as everything enqueued before draining was begun is written by now. */
+			drained = this.mDraining.get();
+		}
+		selectionKey.interestOps(SelectionKey.OP_READ);
+
+		if(drained) {
+			/* Outside of the lock, as it calls the listeners. */
+			this.terminate();
+		}
+	}
+
+	private void enqueueOutputBuffer(final ByteBuffer pOutputBuffer) {
+		final ArrayDeque<ByteBuffer> pendingOutputBuffers = this.mPendingOutputBuffers;
+		boolean overflowed = false;
+		synchronized(pendingOutputBuffers) {
+			final int outputByteCount = pOutputBuffer.remaining();
+			if(!pendingOutputBuffers.isEmpty() && this.mPendingOutputByteCount + outputByteCount > this.mPendingOutputByteCapacity) {
+				switch(this.mPendingOutputOverflowPolicy) {
+					case DROP_OLDEST:
+						while(!pendingOutputBuffers.isEmpty() && this.mPendingOutputByteCount + outputByteCount > this.mPendingOutputByteCapacity) {
+							if(!this.dropOldestPendingOutputBuffer()) {
+								/* Nothing but partially written buffers waiting, which can't be dropped without corrupting the stream. */
+								this.mDroppedCount.incrementAndGet();
+								return;
+							}
+						}
+						break;
+					case DROP_NEWEST:
+						this.mDroppedCount.incrementAndGet();
+						return;
+					case DISCONNECT:
+						this.mDroppedCount.incrementAndGet();
+						overflowed = true;
+						break;
+					default:
+						throw new IllegalArgumentException("Unexpected " + OverflowPolicy.class.getSimpleName() + ": '" + this.mPendingOutputOverflowPolicy + "'.");
+				}
+			}
+			if(!overflowed) {
+				pendingOutputBuffers.add(pOutputBuffer);
+				this.mPendingOutputByteCount += outputByteCount;
+			}
+		}
+
+		if(overflowed) {
+			/* Outside of the lock, as it calls the listeners. */
+			this.terminate();
+		} else {
+			this.mNioSelectorThread.requestWrite(this);
+		}
+	}
+
+	/**
+	 * Has to be called while holding the lock of the pending output buffers.
+	 * @return <code>false</code> when there was no buffer that wasn't partially written yet.
+	 */
+	private boolean dropOldestPendingOutputBuffer() {
+		final Iterator<ByteBuffer> iterator = this.mPendingOutputBuffers.iterator();
+		while(iterator.hasNext()) {
+			final ByteBuffer pendingOutputBuffer = iterator.next();
+			if(pendingOutputBuffer.position() == 0) {
+				iterator.remove();
+				this.mPendingOutputByteCount -= pendingOutputBuffer.limit();
+				this.mDroppedCount.incrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	private static class NioOutputStream extends ByteArrayOutputStream {
+		// ===========================================================
+		// Constants
+		// ===========================================================
+
+		// ===========================================================
+		// Fields
+		// ===========================================================
+
+		private NioSocketConnection mNioSocketConnection;
+
+		// ===========================================================
+		// Constructors
+		// ===========================================================
+
+		// ===========================================================
+		// Getter & Setter
+		// ===========================================================
+
+		// ===========================================================
+		// Methods for/from SuperClass/Interfaces
+		// ===========================================================
+
+		@Override
+		public synchronized void flush() {
+			if(this.count > 0) {
+				final ByteBuffer outputBuffer = ByteBuffer.wrap(this.toByteArray());
+				this.reset();
+				this.mNioSocketConnection.enqueueOutputBuffer(outputBuffer);
+			}
+		}
+
+		// ===========================================================
+		// Methods
+		// ===========================================================
+
+		// ===========================================================
+		// Inner and Anonymous Classes
+		// ===========================================================
+	}
+}
@@ -0,0 +1,238 @@
+package org.anddev.andengine.extension.multiplayer.protocol.shared;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.anddev.andengine.util.Debug;
+
+/**
+ * A bounded queue of encoded messages that is drained into a {@link Connection} by its own writer thread,
+ * so that enqueuing never blocks on a slow or congested {@link Connection}.
+ * The {@link Connection} is flushed whenever the queue ran empty.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 10:52:26 - 07.07.2011
+ */
+public class OutboundQueue extends Thread {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	public static final int CAPACITY_DEFAULT = 256;
+
+	/* Wakes up the writer thread when it is waiting on an empty queue while draining. Never written. */
+	private static final byte[] DRAIN_MARKER = new byte[0];
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final Connection mConnection;
+	private final BlockingQueue<byte[]> mQueue;
+	private final int mCapacity;
+	private final OverflowPolicy mOverflowPolicy;
+
+	private final AtomicInteger mDroppedCount = new AtomicInteger(0);
+
+	protected AtomicBoolean mRunning = new AtomicBoolean(false);
+	protected AtomicBoolean mTerminated = new AtomicBoolean(false);
+	private final AtomicBoolean mDraining = new AtomicBoolean(false);
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public OutboundQueue(final Connection pConnection) {
+		this(pConnection, CAPACITY_DEFAULT, OverflowPolicy.DROP_OLDEST);
+	}
+
+	public OutboundQueue(final Connection pConnection, final int pCapacity, final OverflowPolicy pOverflowPolicy) {
+		this.mConnection = pConnection;
+		this.mCapacity = pCapacity;
+		this.mQueue = new ArrayBlockingQueue<byte[]>(pCapacity);
+		this.mOverflowPolicy = pOverflowPolicy;
+
+		this.initName();
+	}
+
+	private void initName() {
+		this.setName(this.getClass().getName());
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public boolean isRunning() {
+		return this.mRunning.get();
+	}
+
+	public boolean isTerminated() {
+		return this.mTerminated.get();
+	}
+
+	public boolean isDraining() {
+		return this.mDraining.get();
+	}
+
+	public int getCapacity() {
+		return this.mCapacity;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return this.mOverflowPolicy;
+	}
+
+	/**
+	 * @return the amount of encoded messages waiting to be written.
+	 */
+	public int getDepth() {
+		return this.mQueue.size();
+	}
+
+	/**
+	 * @return the amount of encoded messages that were dropped because the queue was full.
+	 */
+	public int getDroppedCount() {
+		return this.mDroppedCount.get();
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public void run() {
+		this.mRunning.set(true);
+
+		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_DEFAULT);  // TODO What ThreadPriority makes sense here?
+
+		final BlockingQueue<byte[]> queue = this.mQueue;
+		final Connection connection = this.mConnection;
+		try {
+			while(!Thread.interrupted() && this.mRunning.get() && !this.mTerminated.get()) {
+				final byte[] encodedData = (this.mDraining.get()) ? queue.poll() : queue.take();
+				if(encodedData == null) {
+					/* Drained, everything was written and flushed. */
+					connection.terminate();
+					break;
+				}
+
+				if(encodedData != DRAIN_MARKER) {
+					connection.writeEncodedData(encodedData);
+				}
+
+				if(queue.isEmpty()) {
+					connection.getDataOutputStream().flush();
+				}
+			}
+		} catch (final InterruptedException e) {
+			/* Terminated. */
+		} catch (final IOException e) {
+			/* The Connection is broken. */
+			connection.terminate();
+		} catch (final Throwable pThrowable) {
+			Debug.e(pThrowable);
+		} finally {
+			this.terminate();
+		}
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		this.terminate();
+		super.finalize();
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Never blocks.
+	 * @param pEncodedData must not be modified afterwards.
+	 * @return <code>true</code> if pEncodedData was enqueued, <code>false</code> if it was dropped.
+	 */
+	public boolean enqueue(final byte[] pEncodedData) {
+		if(this.mTerminated.get() || this.mDraining.get()) {
+			return false;
+		}
+
+		if(this.mQueue.offer(pEncodedData)) {
+			return true;
+		}
+
+		switch(this.mOverflowPolicy) {
+			case DROP_OLDEST:
+				while(!this.mQueue.offer(pEncodedData)) {
+					if(this.mQueue.poll() != null) {
+						this.mDroppedCount.incrementAndGet();
+					}
+				}
+				return true;
+			case DROP_NEWEST:
+				this.mDroppedCount.incrementAndGet();
+				return false;
+			case DISCONNECT:
+				this.mDroppedCount.incrementAndGet();
+				this.mConnection.terminate();
+				return false;
+			default:
+				throw new IllegalArgumentException("Unexpected " + OverflowPolicy.class.getSimpleName() + ": '" + this.mOverflowPolicy + "'.");
+		}
+	}
+
+	/**
+	 * From now on nothing is enqueued anymore. The writer thread writes and flushes all encoded messages still waiting
+	 * and then terminates the {@link Connection}. Never blocks.
+	 */
+	public void drain() {
+		if(!this.mTerminated.get() && !this.mDraining.getAndSet(true)) {
+			/* When the queue is full, the writer thread isn't waiting anyway. */
+			this.mQueue.offer(DRAIN_MARKER);
+		}
+	}
+
+	public void terminate() {
+		if(!this.mTerminated.getAndSet(true)) {
+			this.mRunning.set(false);
+
+			this.interrupt();
+
+			this.onTerminate();
+		}
+	}
+
+	protected void onTerminate() {
+		this.mQueue.clear();
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	public static enum OverflowPolicy {
+		// ===========================================================
+		// Elements
+		// ===========================================================
+
+		/**
+		 * The oldest waiting message is dropped to make room for the new one.
+		 */
+		DROP_OLDEST,
+		/**
+		 * The new message is dropped.
+		 */
+		DROP_NEWEST,
+		/**
+		 * The {@link Connection} is terminated, as the other side can't keep up.
+		 */
+		DISCONNECT;
+	}
+}
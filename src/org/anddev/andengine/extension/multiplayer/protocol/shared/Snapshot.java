@@ -0,0 +1,325 @@
+package org.anddev.andengine.extension.multiplayer.protocol.shared;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+import org.anddev.andengine.extension.multiplayer.protocol.util.VarIntUtils;
+
+import android.util.SparseArray;
+
+/**
+ * The state of all replicated entities at one point in time. Each entity is identified by an int id and consists of up to {@link #FIELD_COUNT_MAXIMUM} int fields,
+ * i.e. floats quantized with {@link org.anddev.andengine.extension.multiplayer.protocol.util.BitUtils#quantize(float, float, float, int)}.
+ * 
+ * A {@link Snapshot} is sent as a delta against a baseline {@link Snapshot} the receiver already has, see {@link #writeDelta(Snapshot, DataOutput)}:
+ * unchanged entities are skipped entirely, changed entities only carry their changed fields, each as a zig-zag {@link VarIntUtils varint} of the difference.
+ * Not thread-safe.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 15:04:33 - 13.07.2011
+ */
+public class Snapshot {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	public static final int SEQUENCE_NONE = 0;
+
+	/**
+	 * The default amount of {@link Snapshot}s kept by both sides, to be used as baselines.
+	 */
+	public static final int HISTORY_SIZE_DEFAULT = 32;
+
+	public static final int FIELD_COUNT_MAXIMUM = 32;
+
+	private static final int RECORD_END = 0;
+	private static final int RECORD_CREATE = 1;
+	private static final int RECORD_UPDATE = 2;
+	private static final int RECORD_REMOVE = 3;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private int mSequence = SEQUENCE_NONE;
+
+	/* Sorted by entity id, so two Snapshots can be compared in a single pass. */
+	private final SparseArray<int[]> mEntities = new SparseArray<int[]>();
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public Snapshot() {
+		/* Nothing to initialize. */
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public int getSequence() {
+		return this.mSequence;
+	}
+
+	public void setSequence(final int pSequence) {
+		this.mSequence = pSequence;
+	}
+
+	public int getEntityCount() {
+		return this.mEntities.size();
+	}
+
+	/**
+	 * @param pIndex in <code>[0, {@link #getEntityCount()})</code>, ordered by entity id.
+	 */
+	public int getEntityID(final int pIndex) {
+		return this.mEntities.keyAt(pIndex);
+	}
+
+	/**
+	 * @param pIndex in <code>[0, {@link #getEntityCount()})</code>, ordered by entity id.
+	 * @return the fields of the entity, must not be modified.
+	 */
+	public int[] getEntityFields(final int pIndex) {
+		return this.mEntities.valueAt(pIndex);
+	}
+
+	/**
+	 * @return the fields of the entity, must not be modified, or <code>null</code> when there is no such entity.
+	 */
+	public int[] getEntityFieldsByID(final int pEntityID) {
+		return this.mEntities.get(pEntityID);
+	}
+
+	public boolean hasEntity(final int pEntityID) {
+		return this.mEntities.get(pEntityID) != null;
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Adds or replaces the entity. The fields are copied.
+	 * @param pFields at most {@link #FIELD_COUNT_MAXIMUM}.
+	 */
+	public void putEntity(final int pEntityID, final int[] pFields) {
+		final int fieldCount = pFields.length;
+		if(fieldCount > FIELD_COUNT_MAXIMUM) {
+			throw new IllegalArgumentException("An entity must not have more than " + FIELD_COUNT_MAXIMUM + " fields: " + fieldCount);
+		}
+
+		final int[] fields = this.obtainEntityFields(pEntityID, fieldCount);
+		System.arraycopy(pFields, 0, fields, 0, fieldCount);
+	}
+
+	public void setEntityField(final int pEntityID, final int pFieldIndex, final int pValue) {
+		final int[] fields = this.mEntities.get(pEntityID);
+		if(fields == null) {
+			throw new IllegalArgumentException("Unknown entity: " + pEntityID);
+		}
+		fields[pFieldIndex] = pValue;
+	}
+
+	public void removeEntity(final int pEntityID) {
+		this.mEntities.delete(pEntityID);
+	}
+
+	public void clear() {
+		this.mEntities.clear();
+	}
+
+	/**
+	 * Makes this {@link Snapshot} a copy of the other one, including its sequence. Reuses the field arrays of entities that exist in both.
+	 */
+	public void set(final Snapshot pSnapshot) {
+		this.mSequence = pSnapshot.mSequence;
+
+		final SparseArray<int[]> entities = this.mEntities;
+		for(int i = entities.size() - 1; i >= 0; i--) {
+			if(!pSnapshot.hasEntity(entities.keyAt(i))) {
+				entities.delete(entities.keyAt(i));
+			}
+		}
+
+		final SparseArray<int[]> otherEntities = pSnapshot.mEntities;
+		final int otherEntityCount = otherEntities.size();
+		for(int i = 0; i < otherEntityCount; i++) {
+			this.putEntity(otherEntities.keyAt(i), otherEntities.valueAt(i));
+		}
+	}
+
+	/**
+	 * Writes the entities of this {@link Snapshot} as a delta against the baseline: one record per created, changed or removed entity, followed by an end marker.
+	 * @param pBaseline <code>null</code> to write all entities.
+	 */
+	public void writeDelta(final Snapshot pBaseline, final DataOutput pDataOutput) throws IOException {
+		final SparseArray<int[]> entities = this.mEntities;
+		final int entityCount = entities.size();
+		final SparseArray<int[]> baselineEntities = (pBaseline == null) ? null : pBaseline.mEntities;
+		final int baselineEntityCount = (pBaseline == null) ? 0 : baselineEntities.size();
+
+		int previousEntityID = 0;
+		int index = 0;
+		int baselineIndex = 0;
+		while(index < entityCount || baselineIndex < baselineEntityCount) {
+			if(index == entityCount || (baselineIndex < baselineEntityCount && baselineEntities.keyAt(baselineIndex) < entities.keyAt(index))) {
+				final int entityID = baselineEntities.keyAt(baselineIndex);
+				Snapshot.writeRecordHeader(pDataOutput, RECORD_REMOVE, entityID - previousEntityID);
+				previousEntityID = entityID;
+				baselineIndex++;
+			} else if(baselineIndex == baselineEntityCount || entities.keyAt(index) < baselineEntities.keyAt(baselineIndex)) {
+				final int entityID = entities.keyAt(index);
+				Snapshot.writeCreateRecord(pDataOutput, entityID - previousEntityID, entities.valueAt(index));
+				previousEntityID = entityID;
+				index++;
+			} else {
+				final int entityID = entities.keyAt(index);
+				final int[] fields = entities.valueAt(index);
+				final int[] baselineFields = baselineEntities.valueAt(baselineIndex);
+				if(fields.length != baselineFields.length) {
+					Snapshot.writeCreateRecord(pDataOutput, entityID - previousEntityID, fields);
+					previousEntityID = entityID;
+				} else {
+					int changedFieldMask = 0;
+					for(int i = 0; i < fields.length; i++) {
+						if(fields[i] != baselineFields[i]) {
+							changedFieldMask |= 1 << i;
+						}
+					}
+
+					if(changedFieldMask != 0) {
+						Snapshot.writeRecordHeader(pDataOutput, RECORD_UPDATE, entityID - previousEntityID);
+						VarIntUtils.writeVarInt(pDataOutput, changedFieldMask);
+						for(int i = 0; i < fields.length; i++) {
+							if((changedFieldMask & (1 << i)) != 0) {
+								VarIntUtils.writeSignedVarInt(pDataOutput, fields[i] - baselineFields[i]);
+							}
+						}
+						previousEntityID = entityID;
+					}
+				}
+				index++;
+				baselineIndex++;
+			}
+		}
+		pDataOutput.writeByte(RECORD_END);
+	}
+
+	/**
+	 * Makes this {@link Snapshot} the baseline with the delta written by {@link #writeDelta(Snapshot, DataOutput)} applied. The sequence is left to the caller.
+	 * @param pBaseline the same baseline the delta was written against, <code>null</code> when it was written against none.
+	 */
+	public void readDelta(final Snapshot pBaseline, final DataInput pDataInput) throws IOException {
+		if(pBaseline == null) {
+			this.mEntities.clear();
+		} else if(pBaseline != this) {
+			final int sequence = this.mSequence;
+			this.set(pBaseline);
+			this.mSequence = sequence;
+		}
+
+		int entityID = 0;
+		while(true) {
+			final int record = pDataInput.readUnsignedByte();
+			if(record == RECORD_END) {
+				return;
+			}
+			entityID += VarIntUtils.readSignedVarInt(pDataInput);
+
+			switch(record) {
+				case RECORD_CREATE:
+					final int fieldCount = VarIntUtils.readVarInt(pDataInput);
+					if(fieldCount < 0 || fieldCount > FIELD_COUNT_MAXIMUM) {
+						throw new StreamCorruptedException("Illegal field count: '" + fieldCount + "' for entity: '" + entityID + "'.");
+					}
+					final int[] createdFields = this.obtainEntityFields(entityID, fieldCount);
+					final int nonZeroFieldMask = Snapshot.readFieldMask(pDataInput, fieldCount, entityID);
+					for(int i = 0; i < fieldCount; i++) {
+						createdFields[i] = ((nonZeroFieldMask & (1 << i)) != 0) ? VarIntUtils.readSignedVarInt(pDataInput) : 0;
+					}
+					break;
+				case RECORD_UPDATE:
+					final int[] updatedFields = this.mEntities.get(entityID);
+					if(updatedFields == null) {
+						throw new StreamCorruptedException("Update of unknown entity: '" + entityID + "'.");
+					}
+					final int changedFieldMask = Snapshot.readFieldMask(pDataInput, updatedFields.length, entityID);
+					for(int i = 0; i < updatedFields.length; i++) {
+						if((changedFieldMask & (1 << i)) != 0) {
+							updatedFields[i] += VarIntUtils.readSignedVarInt(pDataInput);
+						}
+					}
+					break;
+				case RECORD_REMOVE:
+					this.mEntities.delete(entityID);
+					break;
+				default:
+					throw new StreamCorruptedException("Unknown record: '" + record + "'.");
+			}
+		}
+	}
+
+	/**
+	 * @return the fields of the entity with the given length, reused when possible. Their values are undefined.
+	 */
+	private int[] obtainEntityFields(final int pEntityID, final int pFieldCount) {
+		final int[] fields = this.mEntities.get(pEntityID);
+		if(fields != null && fields.length == pFieldCount) {
+			return fields;
+		} else {
+			final int[] newFields = new int[pFieldCount];
+			this.mEntities.put(pEntityID, newFields);
+			return newFields;
+		}
+	}
+
+	private static void writeRecordHeader(final DataOutput pDataOutput, final int pRecord, final int pEntityIDDelta) throws IOException {
+		pDataOutput.writeByte(pRecord);
+		VarIntUtils.writeSignedVarInt(pDataOutput, pEntityIDDelta);
+	}
+
+	/**
+	 * Fields that are zero are skipped.
+	 */
+	private static void writeCreateRecord(final DataOutput pDataOutput, final int pEntityIDDelta, final int[] pFields) throws IOException {
+		Snapshot.writeRecordHeader(pDataOutput, RECORD_CREATE, pEntityIDDelta);
+		VarIntUtils.writeVarInt(pDataOutput, pFields.length);
+
+		int nonZeroFieldMask = 0;
+		for(int i = 0; i < pFields.length; i++) {
+			if(pFields[i] != 0) {
+				nonZeroFieldMask |= 1 << i;
+			}
+		}
+		VarIntUtils.writeVarInt(pDataOutput, nonZeroFieldMask);
+
+		for(int i = 0; i < pFields.length; i++) {
+			if(pFields[i] != 0) {
+				VarIntUtils.writeSignedVarInt(pDataOutput, pFields[i]);
+			}
+		}
+	}
+
+	private static int readFieldMask(final DataInput pDataInput, final int pFieldCount, final int pEntityID) throws IOException {
+		final int fieldMask = VarIntUtils.readVarInt(pDataInput);
+		if(pFieldCount < FIELD_COUNT_MAXIMUM && (fieldMask >>> pFieldCount) != 0) {
+			throw new StreamCorruptedException("Field mask: '" + Integer.toBinaryString(fieldMask) + "' exceeds the " + pFieldCount + " fields of entity: '" + pEntityID + "'.");
+		}
+		return fieldMask;
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+}
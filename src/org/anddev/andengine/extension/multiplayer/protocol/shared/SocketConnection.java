@@ -1,5 +1,7 @@
 package org.anddev.andengine.extension.multiplayer.protocol.shared;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -37,13 +39,24 @@ public class SocketConnection extends Connection {
 	}
 
 	public static SocketConnection create(final SocketAddress pSocketAddress, final int pTimeoutMilliseconds) throws IOException {
+		return SocketConnection.create(pSocketAddress, pTimeoutMilliseconds, BUFFERSIZE_DEFAULT);
+	}
+
+	public static SocketConnection create(final SocketAddress pSocketAddress, final int pTimeoutMilliseconds, final int pBufferSize) throws IOException {
 		final Socket socket = new Socket();
 		socket.connect(pSocketAddress, pTimeoutMilliseconds);
-		return new SocketConnection(socket);
+		return new SocketConnection(socket, pBufferSize);
 	}
 
 	public SocketConnection(final Socket pSocket) throws IOException {
-		super(new DataInputStream(pSocket.getInputStream()), new DataOutputStream(pSocket.getOutputStream()));
+		this(pSocket, BUFFERSIZE_DEFAULT);
+	}
+
+	/**
+	 * @param pBufferSize the size of the buffers in front of the streams of the {@link Socket}. Written data only reaches the {@link Socket} when the buffer is full or flushed.
+	 */
+	public SocketConnection(final Socket pSocket, final int pBufferSize) throws IOException {
+		super(new DataInputStream(new BufferedInputStream(pSocket.getInputStream(), pBufferSize)), new DataOutputStream(new BufferedOutputStream(pSocket.getOutputStream(), pBufferSize)));
 
 		this.mSocket = pSocket;
 	}
@@ -56,6 +69,11 @@ public class SocketConnection extends Connection {
 		return this.mSocket;
 	}
 
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return this.mSocket.getRemoteSocketAddress();
+	}
+
 	// ===========================================================
 	// Methods for/from SuperClass/Interfaces
 	// ===========================================================
@@ -0,0 +1,126 @@
+package org.anddev.andengine.extension.multiplayer.protocol.util;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * Reads values written by a {@link BitWriter} from a {@link DataInput}, i.e. within {@link org.anddev.andengine.extension.multiplayer.protocol.adt.message.Message#onReadTransmissionData(java.io.DataInputStream)}.
+ * Bytes are only read as far as the bits are needed, so after the last value the {@link DataInput} is positioned right behind the padding written by {@link BitWriter#flush()}.
+ * Not thread-safe.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 14:16:52 - 13.07.2011
+ */
+public class BitReader {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private DataInput mDataInput;
+
+	/** Holds less than 8 bits between calls. */
+	private long mBitBuffer;
+	private int mBitBufferCount;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * Use {@link BitReader#setDataInput(DataInput)} before reading.
+	 */
+	public BitReader() {
+		/* Nothing to initialize. */
+	}
+
+	public BitReader(final DataInput pDataInput) {
+		this.mDataInput = pDataInput;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * Allows to reuse this {@link BitReader}, i.e. for every {@link org.anddev.andengine.extension.multiplayer.protocol.adt.message.Message} read. Discards any remaining bits.
+	 */
+	public void setDataInput(final DataInput pDataInput) {
+		this.mDataInput = pDataInput;
+		this.mBitBuffer = 0;
+		this.mBitBufferCount = 0;
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * @param pBitCount in <code>[0, 32]</code>.
+	 * @return the bits, not sign-extended.
+	 */
+	public int readBits(final int pBitCount) throws IOException {
+		if(pBitCount < 0 || pBitCount > BitUtils.BIT_COUNT_MAXIMUM) {
+			throw new IllegalArgumentException("pBitCount must be in [0, " + BitUtils.BIT_COUNT_MAXIMUM + "]: " + pBitCount);
+		}
+
+		while(this.mBitBufferCount < pBitCount) {
+			this.mBitBuffer |= (long)this.mDataInput.readUnsignedByte() << this.mBitBufferCount;
+			this.mBitBufferCount += Byte.SIZE;
+		}
+
+		final long mask = (1L << pBitCount) - 1;
+		final int value = (int)(this.mBitBuffer & mask);
+		this.mBitBuffer >>>= pBitCount;
+		this.mBitBufferCount -= pBitCount;
+		return value;
+	}
+
+	/**
+	 * @return the bits, sign-extended from bit <code>pBitCount - 1</code>.
+	 */
+	public int readSignedBits(final int pBitCount) throws IOException {
+		final int bits = this.readBits(pBitCount);
+		if(pBitCount == 0) {
+			return 0;
+		}
+		final int shift = BitUtils.BIT_COUNT_MAXIMUM - pBitCount;
+		return (bits << shift) >> shift;
+	}
+
+	public boolean readBoolean() throws IOException {
+		return this.readBits(1) != 0;
+	}
+
+	/**
+	 * @see BitWriter#writeIntInRange(int, int, int)
+	 */
+	public int readIntInRange(final int pMinimum, final int pMaximum) throws IOException {
+		return pMinimum + this.readBits(BitUtils.getBitCount(pMinimum, pMaximum));
+	}
+
+	/**
+	 * @see BitUtils#dequantize(int, float, float, int)
+	 */
+	public float readQuantizedFloat(final float pMinimum, final float pMaximum, final int pBitCount) throws IOException {
+		return BitUtils.dequantize(this.readBits(pBitCount), pMinimum, pMaximum, pBitCount);
+	}
+
+	public float readFloat() throws IOException {
+		return Float.intBitsToFloat(this.readBits(Float.SIZE));
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+}
@@ -0,0 +1,109 @@
+package org.anddev.andengine.extension.multiplayer.protocol.util;
+
+/**
+ * Helpers to quantize values into a fixed number of bits, to be written with a {@link BitWriter} and read back with a {@link BitReader}.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 13:41:09 - 13.07.2011
+ */
+public class BitUtils {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	public static final int BIT_COUNT_MAXIMUM = 32;
+
+	/**
+	 * A float only has 24 bits of precision, more bits do not quantize any finer.
+	 */
+	public static final int QUANTIZED_BIT_COUNT_MAXIMUM = 24;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * @return the number of bits needed to represent all values from <code>0</code> to <code>pMaximum</code>, i.e. <code>7</code> for <code>100</code>.
+	 */
+	public static int getBitCount(final int pMaximum) {
+		if(pMaximum < 0) {
+			throw new IllegalArgumentException("pMaximum must not be negative: " + pMaximum);
+		}
+		return BIT_COUNT_MAXIMUM - Integer.numberOfLeadingZeros(pMaximum);
+	}
+
+	/**
+	 * @return the number of bits needed to represent all values from <code>pMinimum</code> to <code>pMaximum</code>.
+	 */
+	public static int getBitCount(final int pMinimum, final int pMaximum) {
+		if(pMaximum < pMinimum) {
+			throw new IllegalArgumentException("pMaximum must not be less than pMinimum: " + pMaximum + " < " + pMinimum);
+		}
+		final long range = (long)pMaximum - pMinimum;
+		return Long.SIZE - Long.numberOfLeadingZeros(range);
+	}
+
+	/**
+	 * @param pValue is clamped to <code>[pMinimum, pMaximum]</code>.
+	 * @return the step closest to <code>pValue</code>, from <code>0</code> for <code>pMinimum</code> to <code>2^pBitCount - 1</code> for <code>pMaximum</code>.
+	 */
+	public static int quantize(final float pValue, final float pMinimum, final float pMaximum, final int pBitCount) {
+		final int stepCount = BitUtils.getQuantizedStepCount(pMinimum, pMaximum, pBitCount);
+
+		if(pValue <= pMinimum) {
+			return 0;
+		} else if(pValue >= pMaximum) {
+			return stepCount;
+		} else {
+			return Math.round((pValue - pMinimum) / (pMaximum - pMinimum) * stepCount);
+		}
+	}
+
+	/**
+	 * Inverse of {@link BitUtils#quantize(float, float, float, int)}, off by at most half a step, that is <code>(pMaximum - pMinimum) / (2^pBitCount - 1) / 2</code>.
+	 */
+	public static float dequantize(final int pQuantizedValue, final float pMinimum, final float pMaximum, final int pBitCount) {
+		final int stepCount = BitUtils.getQuantizedStepCount(pMinimum, pMaximum, pBitCount);
+
+		if(pQuantizedValue <= 0) {
+			return pMinimum;
+		} else if(pQuantizedValue >= stepCount) {
+			return pMaximum;
+		} else {
+			return pMinimum + (pMaximum - pMinimum) * pQuantizedValue / stepCount;
+		}
+	}
+
+	private static int getQuantizedStepCount(final float pMinimum, final float pMaximum, final int pBitCount) {
+		if(pBitCount < 1 || pBitCount > QUANTIZED_BIT_COUNT_MAXIMUM) {
+			throw new IllegalArgumentException("pBitCount must be in [1, " + QUANTIZED_BIT_COUNT_MAXIMUM + "]: " + pBitCount);
+		}
+		if(!(pMaximum > pMinimum)) {
+			throw new IllegalArgumentException("pMaximum must be greater than pMinimum: " + pMaximum + " <= " + pMinimum);
+		}
+		return (1 << pBitCount) - 1;
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+}
@@ -0,0 +1,149 @@
+package org.anddev.andengine.extension.multiplayer.protocol.util;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes values with an arbitrary number of bits each, least significant bit first, to a {@link DataOutput}, i.e. within {@link org.anddev.andengine.extension.multiplayer.protocol.adt.message.Message#onWriteTransmissionData(java.io.DataOutputStream)}.
+ * Complete bytes are written right away, {@link #flush()} writes the remaining bits, padded to a full byte, and has to be called after the last value.
+ * Read back with a {@link BitReader}, reading the same values in the same order.
+ * 
+ * Example of an entity update in 6 bytes instead of 21:
+ * <pre>
+ * bitWriter.writeIntInRange(entityID, 0, 1023);
+ * bitWriter.writeQuantizedFloat(x, 0, 800, 11);
+ * bitWriter.writeQuantizedFloat(y, 0, 480, 11);
+ * bitWriter.writeQuantizedFloat(rotation, 0, 360, 8);
+ * bitWriter.writeIntInRange(health, 0, 100);
+ * bitWriter.writeBoolean(alive);
+ * bitWriter.flush();
+ * </pre>
+ * Not thread-safe.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 13:58:24 - 13.07.2011
+ */
+public class BitWriter {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private DataOutput mDataOutput;
+
+	/** Holds less than 8 bits between calls. */
+	private long mBitBuffer;
+	private int mBitBufferCount;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * Use {@link BitWriter#setDataOutput(DataOutput)} before writing.
+	 */
+	public BitWriter() {
+		/* Nothing to initialize. */
+	}
+
+	public BitWriter(final DataOutput pDataOutput) {
+		this.mDataOutput = pDataOutput;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * Allows to reuse this {@link BitWriter}, i.e. for every {@link org.anddev.andengine.extension.multiplayer.protocol.adt.message.Message} written. Discards any bits not yet flushed.
+	 */
+	public void setDataOutput(final DataOutput pDataOutput) {
+		this.mDataOutput = pDataOutput;
+		this.mBitBuffer = 0;
+		this.mBitBufferCount = 0;
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * @param pValue only the lowest <code>pBitCount</code> bits are written.
+	 * @param pBitCount in <code>[0, 32]</code>.
+	 */
+	public void writeBits(final int pValue, final int pBitCount) throws IOException {
+		if(pBitCount < 0 || pBitCount > BitUtils.BIT_COUNT_MAXIMUM) {
+			throw new IllegalArgumentException("pBitCount must be in [0, " + BitUtils.BIT_COUNT_MAXIMUM + "]: " + pBitCount);
+		}
+
+		final long mask = (1L << pBitCount) - 1;
+		this.mBitBuffer |= (pValue & mask) << this.mBitBufferCount;
+		this.mBitBufferCount += pBitCount;
+
+		while(this.mBitBufferCount >= Byte.SIZE) {
+			this.mDataOutput.writeByte((int)this.mBitBuffer);
+			this.mBitBuffer >>>= Byte.SIZE;
+			this.mBitBufferCount -= Byte.SIZE;
+		}
+	}
+
+	/**
+	 * @param pValue has to fit into <code>pBitCount</code> bits as a two's complement number, i.e. <code>[-128, 127]</code> for <code>8</code> bits.
+	 */
+	public void writeSignedBits(final int pValue, final int pBitCount) throws IOException {
+		this.writeBits(pValue, pBitCount);
+	}
+
+	public void writeBoolean(final boolean pValue) throws IOException {
+		this.writeBits(pValue ? 1 : 0, 1);
+	}
+
+	/**
+	 * Writes <code>pValue - pMinimum</code> with {@link BitUtils#getBitCount(int, int)} bits.
+	 */
+	public void writeIntInRange(final int pValue, final int pMinimum, final int pMaximum) throws IOException {
+		if(pValue < pMinimum || pValue > pMaximum) {
+			throw new IllegalArgumentException("pValue must be in [" + pMinimum + ", " + pMaximum + "]: " + pValue);
+		}
+		this.writeBits(pValue - pMinimum, BitUtils.getBitCount(pMinimum, pMaximum));
+	}
+
+	/**
+	 * @see BitUtils#quantize(float, float, float, int)
+	 */
+	public void writeQuantizedFloat(final float pValue, final float pMinimum, final float pMaximum, final int pBitCount) throws IOException {
+		this.writeBits(BitUtils.quantize(pValue, pMinimum, pMaximum, pBitCount), pBitCount);
+	}
+
+	/**
+	 * Writes all 32 bits of the float, without any loss.
+	 */
+	public void writeFloat(final float pValue) throws IOException {
+		this.writeBits(Float.floatToRawIntBits(pValue), Float.SIZE);
+	}
+
+	/**
+	 * Writes the remaining bits, padded with zeros to a full byte.
+	 */
+	public void flush() throws IOException {
+		if(this.mBitBufferCount > 0) {
+			this.mDataOutput.writeByte((int)this.mBitBuffer);
+			this.mBitBuffer = 0;
+			this.mBitBufferCount = 0;
+		}
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+}
@@ -0,0 +1,99 @@
+package org.anddev.andengine.extension.multiplayer.protocol.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link InputStream} reading from the remaining bytes of a {@link ByteBuffer}.
+ * Reaching the limit of the {@link ByteBuffer} is reported as the end of the stream.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 11:34:02 - 04.07.2011
+ */
+public class ByteBufferInputStream extends InputStream {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private ByteBuffer mByteBuffer;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public ByteBufferInputStream(final int pCapacity) {
+		this(ByteBuffer.allocate(pCapacity));
+	}
+
+	public ByteBufferInputStream(final ByteBuffer pByteBuffer) {
+		this.mByteBuffer = pByteBuffer;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public ByteBuffer getByteBuffer() {
+		return this.mByteBuffer;
+	}
+
+	public void setByteBuffer(final ByteBuffer pByteBuffer) {
+		this.mByteBuffer = pByteBuffer;
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public int read() {
+		if(this.mByteBuffer.hasRemaining()) {
+			return this.mByteBuffer.get() & 0xFF;
+		} else {
+			return -1;
+		}
+	}
+
+	@Override
+	public int read(final byte[] pBuffer, final int pOffset, final int pLength) {
+		if(pLength == 0) {
+			return 0;
+		}
+
+		final int remaining = this.mByteBuffer.remaining();
+		if(remaining == 0) {
+			return -1;
+		}
+
+		final int length = Math.min(remaining, pLength);
+		this.mByteBuffer.get(pBuffer, pOffset, length);
+		return length;
+	}
+
+	@Override
+	public long skip(final long pCount) {
+		final int count = (int) Math.max(0, Math.min(this.mByteBuffer.remaining(), pCount));
+		this.mByteBuffer.position(this.mByteBuffer.position() + count);
+		return count;
+	}
+
+	@Override
+	public int available() {
+		return this.mByteBuffer.remaining();
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+}
@@ -0,0 +1,131 @@
+package org.anddev.andengine.extension.multiplayer.protocol.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Counterparts of {@link DataInputStream}/{@link DataOutputStream} methods for {@link ByteBuffer}s, producing the exact same bytes.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 11:25:40 - 11.07.2011
+ */
+public class ByteBufferUtils {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final int UTF_LENGTH_MAXIMUM = 0xFFFF;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Same format as {@link DataOutputStream#writeUTF(String)}: the length as an unsigned short, followed by the modified UTF-8 bytes.
+	 * @throws BufferOverflowException when the {@link ByteBuffer} has not enough space remaining.
+	 */
+	public static void putUTF(final ByteBuffer pByteBuffer, final String pString) throws UTFDataFormatException {
+		final int stringLength = pString.length();
+
+		int utfLength = 0;
+		for(int i = 0; i < stringLength; i++) {
+			final char c = pString.charAt(i);
+			if(c >= 0x0001 && c <= 0x007F) {
+				utfLength++;
+			} else if(c > 0x07FF) {
+				utfLength += 3;
+			} else {
+				utfLength += 2;
+			}
+		}
+
+		if(utfLength > UTF_LENGTH_MAXIMUM) {
+			throw new UTFDataFormatException("Encoded string too long: " + utfLength + " bytes.");
+		}
+		if(pByteBuffer.remaining() < 2 + utfLength) {
+			throw new BufferOverflowException();
+		}
+
+		pByteBuffer.putShort((short)utfLength);
+		for(int i = 0; i < stringLength; i++) {
+			final char c = pString.charAt(i);
+			if(c >= 0x0001 && c <= 0x007F) {
+				pByteBuffer.put((byte)c);
+			} else if(c > 0x07FF) {
+				pByteBuffer.put((byte)(0xE0 | ((c >> 12) & 0x0F)));
+				pByteBuffer.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+				pByteBuffer.put((byte)(0x80 | (c & 0x3F)));
+			} else {
+				pByteBuffer.put((byte)(0xC0 | ((c >> 6) & 0x1F)));
+				pByteBuffer.put((byte)(0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	/**
+	 * Same format as {@link DataInputStream#readUTF()}.
+	 * @throws BufferUnderflowException when the {@link ByteBuffer} has not enough bytes remaining.
+	 */
+	public static String getUTF(final ByteBuffer pByteBuffer) throws UTFDataFormatException {
+		final int utfLength = pByteBuffer.getShort() & 0xFFFF;
+		if(pByteBuffer.remaining() < utfLength) {
+			throw new BufferUnderflowException();
+		}
+
+		final char[] chars = new char[utfLength];
+		int charCount = 0;
+		final int end = pByteBuffer.position() + utfLength;
+		while(pByteBuffer.position() < end) {
+			final int b = pByteBuffer.get() & 0xFF;
+			switch(b >> 4) {
+				case 0: case 1: case 2: case 3: case 4: case 5: case 6: case 7:
+					chars[charCount++] = (char)b;
+					break;
+				case 12: case 13:
+					if(pByteBuffer.position() + 1 > end) {
+						throw new UTFDataFormatException("Malformed input: partial character at end.");
+					}
+					chars[charCount++] = (char)(((b & 0x1F) << 6) | (pByteBuffer.get() & 0x3F));
+					break;
+				case 14:
+					if(pByteBuffer.position() + 2 > end) {
+						throw new UTFDataFormatException("Malformed input: partial character at end.");
+					}
+					final int b2 = pByteBuffer.get() & 0xFF;
+					final int b3 = pByteBuffer.get() & 0xFF;
+					chars[charCount++] = (char)(((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F));
+					break;
+				default:
+					throw new UTFDataFormatException("Malformed input around byte " + pByteBuffer.position() + ".");
+			}
+		}
+		return new String(chars, 0, charCount);
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+}
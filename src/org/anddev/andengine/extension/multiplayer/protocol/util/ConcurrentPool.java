@@ -0,0 +1,235 @@
+package org.anddev.andengine.extension.multiplayer.protocol.util;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.anddev.andengine.util.pool.GenericPool;
+
+/**
+ * A pool that can be used from many threads at once without locking, i.e. when items are obtained on a reading thread and recycled on the update thread.
+ * Every thread obtains from and recycles into its own cache. When a cache runs full, a batch of items is moved to a lock-free stack shared by all threads,
+ * from where a thread with an empty cache takes a whole batch at once.
+ * Only extends {@link GenericPool} so it can be used wherever a {@link GenericPool} is expected, none of its synchronized state is used.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 10:14:52 - 12.07.2011
+ */
+public abstract class ConcurrentPool<T> extends GenericPool<T> {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	public static final int BATCH_SIZE_DEFAULT = 32;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final int mBatchSize;
+
+	private final AtomicReference<Batch> mSharedBatches = new AtomicReference<Batch>();
+
+	private final ThreadLocal<Cache> mCache = new ThreadLocal<Cache>() {
+		@Override
+		protected Cache initialValue() {
+			return new Cache(2 * ConcurrentPool.this.mBatchSize);
+		}
+	};
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public ConcurrentPool() {
+		this(BATCH_SIZE_DEFAULT);
+	}
+
+	/**
+	 * @param pBatchSize the amount of items moved between a thread's cache and the shared stack at once. Each thread caches up to twice as many items.
+	 */
+	public ConcurrentPool(final int pBatchSize) {
+		if(pBatchSize <= 0) {
+			throw new IllegalArgumentException("pBatchSize must be greater than 0.");
+		}
+		this.mBatchSize = pBatchSize;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public int getBatchSize() {
+		return this.mBatchSize;
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	/**
+	 * The allocated items are put onto the shared stack, so they can be obtained by any thread.
+	 */
+	@Override
+	public void batchAllocatePoolItems(final int pCount) {
+		final int batchSize = this.mBatchSize;
+		for(int allocatedCount = 0; allocatedCount < pCount; allocatedCount += batchSize) {
+			final Object[] items = new Object[Math.min(batchSize, pCount - allocatedCount)];
+			for(int i = 0; i < items.length; i++) {
+				items[i] = this.onAllocatePoolItem();
+			}
+			this.pushBatch(new Batch(items));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public T obtainPoolItem() {
+		final Cache cache = this.mCache.get();
+		if(cache.mCount == 0) {
+			final Batch batch = this.popBatch();
+			if(batch == null) {
+				final T item = this.onAllocatePoolItem();
+				this.onHandleObtainItem(item);
+				return item;
+			}
+			final Object[] batchItems = batch.mItems;
+			System.arraycopy(batchItems, 0, cache.mItems, 0, batchItems.length);
+			cache.mCount = batchItems.length;
+		}
+
+		final T item = (T) cache.mItems[--cache.mCount];
+		cache.mItems[cache.mCount] = null;
+		this.onHandleObtainItem(item);
+		return item;
+	}
+
+	@Override
+	public void recyclePoolItem(final T pItem) {
+		if(pItem == null) {
+			throw new IllegalArgumentException("Cannot recycle null item!");
+		}
+
+		this.onHandleRecycleItem(pItem);
+
+		final Cache cache = this.mCache.get();
+		final Object[] cacheItems = cache.mItems;
+		if(cache.mCount == cacheItems.length) {
+			/* Move the most recently recycled batch to the shared stack, so other threads can obtain it. */
+			final int batchSize = this.mBatchSize;
+			final Object[] batchItems = new Object[batchSize];
+			cache.mCount -= batchSize;
+			System.arraycopy(cacheItems, cache.mCount, batchItems, 0, batchSize);
+			for(int i = cache.mCount; i < cacheItems.length; i++) {
+				cacheItems[i] = null;
+			}
+			this.pushBatch(new Batch(batchItems));
+		}
+		cacheItems[cache.mCount++] = pItem;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	private void pushBatch(final Batch pBatch) {
+		final AtomicReference<Batch> sharedBatches = this.mSharedBatches;
+		Batch head;
+		do {
+			head = sharedBatches.get();
+			pBatch.mNext = head;
+		} while(!sharedBatches.compareAndSet(head, pBatch));
+	}
+
+	/* Popped batches are never pushed again, so there is no ABA problem. */
+	private Batch popBatch() {
+		final AtomicReference<Batch> sharedBatches = this.mSharedBatches;
+		Batch head;
+		do {
+			head = sharedBatches.get();
+			if(head == null) {
+				return null;
+			}
+		} while(!sharedBatches.compareAndSet(head, head.mNext));
+		return head;
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	private static class Batch {
+		// ===========================================================
+		// Constants
+		// ===========================================================
+
+		// ===========================================================
+		// Fields
+		// ===========================================================
+
+		private final Object[] mItems;
+		private Batch mNext;
+
+		// ===========================================================
+		// Constructors
+		// ===========================================================
+
+		public Batch(final Object[] pItems) {
+			this.mItems = pItems;
+		}
+
+		// ===========================================================
+		// Getter & Setter
+		// ===========================================================
+
+		// ===========================================================
+		// Methods for/from SuperClass/Interfaces
+		// ===========================================================
+
+		// ===========================================================
+		// Methods
+		// ===========================================================
+
+		// ===========================================================
+		// Inner and Anonymous Classes
+		// ===========================================================
+	}
+
+	private static class Cache {
+		// ===========================================================
+		// Constants
+		// ===========================================================
+
+		// ===========================================================
+		// Fields
+		// ===========================================================
+
+		private final Object[] mItems;
+		private int mCount;
+
+		// ===========================================================
+		// Constructors
+		// ===========================================================
+
+		public Cache(final int pCapacity) {
+			this.mItems = new Object[pCapacity];
+		}
+
+		// ===========================================================
+		// Getter & Setter
+		// ===========================================================
+
+		// ===========================================================
+		// Methods for/from SuperClass/Interfaces
+		// ===========================================================
+
+		// ===========================================================
+		// Methods
+		// ===========================================================
+
+		// ===========================================================
+		// Inner and Anonymous Classes
+		// ===========================================================
+	}
+}
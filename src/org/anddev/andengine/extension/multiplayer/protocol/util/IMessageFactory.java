@@ -0,0 +1,27 @@
+package org.anddev.andengine.extension.multiplayer.protocol.util;
+
+import org.anddev.andengine.extension.multiplayer.protocol.adt.message.IMessage;
+
+/**
+ * Creates the instances of an {@link IMessage} class for a {@link MessagePool}, without going through reflection.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 15:12:47 - 11.07.2011
+ */
+public interface IMessageFactory<M extends IMessage> {
+	// ===========================================================
+	// Final Fields
+	// ===========================================================
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * @return a new instance, never <code>null</code>.
+	 */
+	public M newMessage();
+}
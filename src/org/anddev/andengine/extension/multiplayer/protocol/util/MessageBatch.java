@@ -0,0 +1,211 @@
+package org.anddev.andengine.extension.multiplayer.protocol.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.anddev.andengine.extension.multiplayer.protocol.shared.MessageReader;
+
+/**
+ * Collects encoded messages, to send them as a single batch: {@link #FLAG_BATCH} + {@link VarIntUtils varint} length + the messages.
+ * The messages are encoded just like they would be sent on their own, so the receiving side reads them one after another,
+ * see {@link org.anddev.andengine.extension.multiplayer.protocol.shared.IMessageReader#readBatch(java.io.DataInputStream)}.
+ * Not thread-safe.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 10:12:46 - 13.07.2011
+ */
+public class MessageBatch {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	/**
+	 * Reserved, must not be used as the flag of any message. Registering a message or an {@link org.anddev.andengine.extension.multiplayer.protocol.shared.IMessageHandler} for it throws an {@link IllegalArgumentException}.
+	 */
+	public static final short FLAG_BATCH = Short.MIN_VALUE;
+
+	/**
+	 * The receiving side rejects larger batches, see {@link MessageReader#FRAME_LENGTH_MAXIMUM}.
+	 */
+	public static final int SIZE_MAXIMUM = MessageReader.FRAME_LENGTH_MAXIMUM;
+
+	private static final int CAPACITY_DEFAULT = 1024;
+
+	private static final int FLAG_SIZE = 2;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final BatchOutputStream mBatchOutputStream;
+	private final DataOutputStream mDataOutputStream;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public MessageBatch() {
+		this(CAPACITY_DEFAULT);
+	}
+
+	public MessageBatch(final int pInitialCapacity) {
+		this.mBatchOutputStream = new BatchOutputStream(pInitialCapacity);
+		this.mDataOutputStream = new DataOutputStream(this.mBatchOutputStream);
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * Messages written to this {@link DataOutputStream} are appended to the batch.
+	 */
+	public DataOutputStream getDataOutputStream() {
+		return this.mDataOutputStream;
+	}
+
+	public boolean isEmpty() {
+		return this.mBatchOutputStream.size() == 0;
+	}
+
+	/**
+	 * @return the size of all messages in the batch, without the batch header.
+	 */
+	public int size() {
+		return this.mBatchOutputStream.size();
+	}
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Appends a message that was already encoded, i.e. by a {@link MessageEncoder}.
+	 */
+	public void append(final byte[] pEncodedMessage) {
+		this.mBatchOutputStream.write(pEncodedMessage, 0, pEncodedMessage.length);
+	}
+
+	public void reset() {
+		this.mBatchOutputStream.reset();
+	}
+
+	/**
+	 * Removes everything after the first pSize bytes, i.e. a message that didn't fit.
+	 */
+	public void truncate(final int pSize) {
+		this.mBatchOutputStream.truncate(pSize);
+	}
+
+	/**
+	 * Removes the first pLength bytes, i.e. messages that were already sent as a batch of their own, see {@link #writeTo(DataOutputStream, int)}.
+	 */
+	public void remove(final int pLength) {
+		this.mBatchOutputStream.remove(pLength);
+	}
+
+	/**
+	 * Writes the whole batch to the {@link DataOutputStream} without allocating.
+	 */
+	public void writeTo(final DataOutputStream pDataOutputStream) throws IOException {
+		this.writeTo(pDataOutputStream, this.mBatchOutputStream.size());
+	}
+
+	/**
+	 * Writes the first pLength bytes of the batch to the {@link DataOutputStream} without allocating.
+	 * @param pLength has to end at the end of a message.
+	 */
+	public void writeTo(final DataOutputStream pDataOutputStream, final int pLength) throws IOException {
+		pDataOutputStream.writeShort(FLAG_BATCH);
+		VarIntUtils.writeVarInt(pDataOutputStream, pLength);
+		pDataOutputStream.write(this.mBatchOutputStream.getBuffer(), 0, pLength);
+	}
+
+	/**
+	 * @return the whole batch, encoded into a new byte array, i.e. to be enqueued into an {@link org.anddev.andengine.extension.multiplayer.protocol.shared.OutboundQueue}.
+	 */
+	public byte[] encode() {
+		return this.encode(this.mBatchOutputStream.size());
+	}
+
+	/**
+	 * @param pLength has to end at the end of a message.
+	 * @return the first pLength bytes of the batch, encoded into a new byte array.
+	 */
+	public byte[] encode(final int pLength) {
+		final byte[] encodedBatch = new byte[FLAG_SIZE + VarIntUtils.getVarIntSize(pLength) + pLength];
+		encodedBatch[0] = (byte)(FLAG_BATCH >> 8);
+		encodedBatch[1] = (byte)FLAG_BATCH;
+		final int messagesOffset = VarIntUtils.writeVarInt(encodedBatch, FLAG_SIZE, pLength);
+		System.arraycopy(this.mBatchOutputStream.getBuffer(), 0, encodedBatch, messagesOffset, pLength);
+		return encodedBatch;
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	private static class BatchOutputStream extends ByteArrayOutputStream {
+		// ===========================================================
+		// Constants
+		// ===========================================================
+
+		// ===========================================================
+		// Fields
+		// ===========================================================
+
+		// ===========================================================
+		// Constructors
+		// ===========================================================
+
+		public BatchOutputStream(final int pInitialCapacity) {
+			super(pInitialCapacity);
+		}
+
+		// ===========================================================
+		// Getter & Setter
+		// ===========================================================
+
+		/**
+		 * @return the internal buffer, valid up to {@link #size()}.
+		 */
+		public byte[] getBuffer() {
+			return this.buf;
+		}
+
+		public void truncate(final int pSize) {
+			if(pSize < 0 || pSize > this.count) {
+				throw new IllegalArgumentException("pSize: '" + pSize + "' is out of range, size: '" + this.count + "'.");
+			}
+			this.count = pSize;
+		}
+
+		public void remove(final int pLength) {
+			if(pLength < 0 || pLength > this.count) {
+				throw new IllegalArgumentException("pLength: '" + pLength + "' is out of range, size: '" + this.count + "'.");
+			}
+			System.arraycopy(this.buf, pLength, this.buf, 0, this.count - pLength);
+			this.count -= pLength;
+		}
+
+		// ===========================================================
+		// Methods for/from SuperClass/Interfaces
+		// ===========================================================
+
+		// ===========================================================
+		// Methods
+		// ===========================================================
+
+		// ===========================================================
+		// Inner and Anonymous Classes
+		// ===========================================================
+	}
+}
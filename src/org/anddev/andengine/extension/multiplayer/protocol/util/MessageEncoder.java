@@ -0,0 +1,181 @@
+package org.anddev.andengine.extension.multiplayer.protocol.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import org.anddev.andengine.extension.multiplayer.protocol.adt.message.IBufferMessage;
+import org.anddev.andengine.extension.multiplayer.protocol.adt.message.IMessage;
+
+/**
+ * Encodes {@link IMessage}s into byte arrays, reusing the same internal buffer for every call.
+ * The returned byte arrays are never modified afterwards, so they can be shared by any amount of receivers.
+ * Messages can be encoded as they are (flag + payload) or framed (flag + {@link VarIntUtils varint} payload length + payload).
+ * {@link IBufferMessage}s are written straight into the internal buffer, bypassing the {@link DataOutputStream}.
+ * Not thread-safe.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 16:41:09 - 05.07.2011
+ */
+public class MessageEncoder {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final int CAPACITY_DEFAULT = 256;
+
+	private static final int FLAG_SIZE = 2;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final EncoderOutputStream mEncoderOutputStream;
+	private final DataOutputStream mDataOutputStream;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public MessageEncoder() {
+		this(CAPACITY_DEFAULT);
+	}
+
+	public MessageEncoder(final int pInitialCapacity) {
+		this.mEncoderOutputStream = new EncoderOutputStream(pInitialCapacity);
+		this.mDataOutputStream = new DataOutputStream(this.mEncoderOutputStream);
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	public byte[] encode(final IMessage pMessage) throws IOException {
+		this.write(pMessage);
+		return this.mEncoderOutputStream.toByteArray();
+	}
+
+	public byte[] encodeFramed(final IMessage pMessage) throws IOException {
+		this.write(pMessage);
+
+		final EncoderOutputStream encoderOutputStream = this.mEncoderOutputStream;
+		final byte[] buffer = encoderOutputStream.getBuffer();
+		final int payloadLength = encoderOutputStream.size() - FLAG_SIZE;
+
+		final byte[] frame = new byte[FLAG_SIZE + VarIntUtils.getVarIntSize(payloadLength) + payloadLength];
+		frame[0] = buffer[0];
+		frame[1] = buffer[1];
+		final int payloadOffset = VarIntUtils.writeVarInt(frame, FLAG_SIZE, payloadLength);
+		System.arraycopy(buffer, FLAG_SIZE, frame, payloadOffset, payloadLength);
+		return frame;
+	}
+
+	/**
+	 * Writes the framed {@link IMessage} to the {@link DataOutputStream} without allocating.
+	 */
+	public void writeFramed(final IMessage pMessage, final DataOutputStream pDataOutputStream) throws IOException {
+		this.write(pMessage);
+
+		final EncoderOutputStream encoderOutputStream = this.mEncoderOutputStream;
+		final byte[] buffer = encoderOutputStream.getBuffer();
+		final int payloadLength = encoderOutputStream.size() - FLAG_SIZE;
+
+		pDataOutputStream.write(buffer, 0, FLAG_SIZE);
+		VarIntUtils.writeVarInt(pDataOutputStream, payloadLength);
+		pDataOutputStream.write(buffer, FLAG_SIZE, payloadLength);
+	}
+
+	private void write(final IMessage pMessage) throws IOException {
+		this.mEncoderOutputStream.reset();
+		if(pMessage instanceof IBufferMessage) {
+			this.mEncoderOutputStream.write((IBufferMessage) pMessage);
+		} else {
+			pMessage.write(this.mDataOutputStream);
+			this.mDataOutputStream.flush();
+		}
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	private static class EncoderOutputStream extends ByteArrayOutputStream {
+		// ===========================================================
+		// Constants
+		// ===========================================================
+
+		// ===========================================================
+		// Fields
+		// ===========================================================
+
+		private ByteBuffer mByteBuffer;
+
+		// ===========================================================
+		// Constructors
+		// ===========================================================
+
+		public EncoderOutputStream(final int pInitialCapacity) {
+			super(pInitialCapacity);
+		}
+
+		// ===========================================================
+		// Getter & Setter
+		// ===========================================================
+
+		/**
+		 * @return the internal buffer, valid up to {@link #size()}.
+		 */
+		public byte[] getBuffer() {
+			return this.buf;
+		}
+
+		// ===========================================================
+		// Methods for/from SuperClass/Interfaces
+		// ===========================================================
+
+		// ===========================================================
+		// Methods
+		// ===========================================================
+
+		/**
+		 * Appends the {@link IBufferMessage}, growing the internal buffer until it fits.
+		 */
+		public void write(final IBufferMessage pBufferMessage) throws IOException {
+			while(true) {
+				if(this.mByteBuffer == null || this.mByteBuffer.array() != this.buf) {
+					this.mByteBuffer = ByteBuffer.wrap(this.buf);
+				}
+
+				final ByteBuffer byteBuffer = this.mByteBuffer;
+				byteBuffer.clear();
+				byteBuffer.position(this.count);
+				try {
+					pBufferMessage.write(byteBuffer);
+					this.count = byteBuffer.position();
+					return;
+				} catch (final BufferOverflowException e) {
+					final byte[] grownBuffer = new byte[this.buf.length * 2];
+					System.arraycopy(this.buf, 0, grownBuffer, 0, this.count);
+					this.buf = grownBuffer;
+				}
+			}
+		}
+
+		// ===========================================================
+		// Inner and Anonymous Classes
+		// ===========================================================
+	}
+}
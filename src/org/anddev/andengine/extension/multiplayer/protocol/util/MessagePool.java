@@ -5,9 +5,9 @@ import java.io.IOException;
 import java.util.List;
 
 import org.anddev.andengine.extension.multiplayer.protocol.adt.message.IMessage;
-import org.anddev.andengine.util.Debug;
 import org.anddev.andengine.util.pool.GenericPool;
-import org.anddev.andengine.util.pool.MultiPool;
+
+import android.util.SparseArray;
 
 /**
  * (c) 2010 Nicolas Gramlich 
@@ -25,44 +25,115 @@ public class MessagePool<M extends IMessage> {
 	// Fields
 	// ===========================================================
 
-	private final MultiPool<M> mMessageMultiPool = new MultiPool<M>();
+	private final boolean mConcurrent;
+
+	private final SparseArray<GenericPool<M>> mMessagePools = new SparseArray<GenericPool<M>>();
+	/**
+	 * Only set once {@link #freeze()} was called. Until then, lookups go through {@link #mMessagePools}, which stays valid afterwards.
+	 */
+	/* Volatile, so connection threads see the elements of the table as soon as they see the table. */
+	private volatile GenericPool<M>[] mMessagePoolTable;
 
 	// ===========================================================
 	// Constructors
 	// ===========================================================
 
+	public MessagePool() {
+		this(false);
+	}
+
+	/**
+	 * @param pConcurrent when <code>true</code>, messages are pooled in {@link ConcurrentPool}s, so they can be obtained and recycled on different threads without locking,
+	 * i.e. when they are handed off to the update thread with {@link org.anddev.andengine.extension.multiplayer.protocol.shared.Connector.DispatchPolicy#QUEUED}.
+	 */
+	public MessagePool(final boolean pConcurrent) {
+		this.mConcurrent = pConcurrent;
+	}
+
 	// ===========================================================
 	// Getter & Setter
 	// ===========================================================
 
+	public boolean isConcurrent() {
+		return this.mConcurrent;
+	}
+
+	public boolean isFrozen() {
+		return this.mMessagePoolTable != null;
+	}
+
 	// ===========================================================
 	// Methods for/from SuperClass/Interfaces
 	// ===========================================================
 
 	public void registerMessage(final short pFlag, final Class<? extends M> pMessageClass) {
-		this.mMessageMultiPool.registerPool(pFlag,
-			new GenericPool<M>() {
+		this.registerMessage(pFlag, pMessageClass, 0);
+	}
+
+	/**
+	 * @param pInitialPoolSize the amount of instances that are allocated right away.
+	 */
+	public void registerMessage(final short pFlag, final Class<? extends M> pMessageClass, final int pInitialPoolSize) {
+		this.registerMessage(pFlag, new ReflectionMessageFactory<M>(pMessageClass), pInitialPoolSize);
+	}
+
+	public void registerMessage(final short pFlag, final IMessageFactory<? extends M> pMessageFactory) {
+		this.registerMessage(pFlag, pMessageFactory, 0);
+	}
+
+	/**
+	 * @param pFlag must not be {@link MessageBatch#FLAG_BATCH}, which is reserved.
+	 * @param pInitialPoolSize the amount of instances that are allocated right away, so the first burst of messages doesn't allocate.
+	 */
+	public void registerMessage(final short pFlag, final IMessageFactory<? extends M> pMessageFactory, final int pInitialPoolSize) {
+		if(this.isFrozen()) {
+			throw new IllegalStateException("No messages can be registered after " + this.getClass().getSimpleName() + " was frozen.");
+		}
+		if(pFlag == MessageBatch.FLAG_BATCH) {
+			throw new IllegalArgumentException("pFlag='" + pFlag + "' is reserved for batches.");
+		}
+
+		final GenericPool<M> messagePool;
+		if(this.mConcurrent) {
+			messagePool = new ConcurrentPool<M>() {
 				@Override
 				protected M onAllocatePoolItem() {
-					try {
-						return pMessageClass.newInstance();
-					} catch (final Throwable t) {
-						Debug.e(t);
-						return null;
-					}
+					return pMessageFactory.newMessage();
 				}
-			}
-		);
+			};
+		} else {
+			messagePool = new GenericPool<M>() {
+				@Override
+				protected M onAllocatePoolItem() {
+					return pMessageFactory.newMessage();
+				}
+			};
+		}
+		if(pInitialPoolSize > 0) {
+			messagePool.batchAllocatePoolItems(pInitialPoolSize);
+		}
+		this.mMessagePools.put(pFlag, messagePool);
 	}
 
 	public M obtainMessage(final short pFlag) {
-		return this.mMessageMultiPool.obtainPoolItem(pFlag);
+		final GenericPool<M> messagePool = this.getMessagePool(pFlag);
+		if(messagePool != null) {
+			return messagePool.obtainPoolItem();
+		} else {
+			return null;
+		}
 	}
 
 	public M obtainMessage(final short pFlag, final DataInputStream pDataInputStream) throws IOException {
-		final M message = this.mMessageMultiPool.obtainPoolItem(pFlag);
+		final M message = this.obtainMessage(pFlag);
 		if(message != null) { 
-			message.read(pDataInputStream);
+			try {
+				message.read(pDataInputStream);
+			} catch (final IOException e) {
+				/* I.e. an incomplete message, that is read again later on. */
+				this.recycleMessage(message);
+				throw e;
+			}
 			return message;
 		} else {
 			throw new IllegalArgumentException("No message found for pFlag='" + pFlag + "'.");
@@ -70,14 +141,15 @@ public class MessagePool<M extends IMessage> {
 	}
 
 	public void recycleMessage(final M pMessage) {
-		this.mMessageMultiPool.recyclePoolItem(pMessage.getFlag(), pMessage);
+		final GenericPool<M> messagePool = this.getMessagePool(pMessage.getFlag());
+		if(messagePool != null) {
+			messagePool.recyclePoolItem(pMessage);
+		}
 	}
 
 	public void recycleMessages(final List<? extends M> pMessages) {
-		final MultiPool<M> messageMultiPool = this.mMessageMultiPool;
 		for(int i = pMessages.size() - 1; i >= 0; i--) {
-			final M message = pMessages.get(i);
-			messageMultiPool.recyclePoolItem(message.getFlag(), message);
+			this.recycleMessage(pMessages.get(i));
 		}
 	}
 
@@ -85,7 +157,78 @@ public class MessagePool<M extends IMessage> {
 	// Methods
 	// ===========================================================
 
+	/**
+	 * Switches the lookup of the pool of a flag from a binary search to a single array index.
+	 * No more messages can be registered afterwards. Flags should be densely packed, starting at <code>0</code>.
+	 * @throws IllegalArgumentException when a negative flag was registered.
+	 */
+	@SuppressWarnings("unchecked")
+	public void freeze() {
+		if(!this.isFrozen()) {
+			final GenericPool<M>[] emptyMessagePoolTable = (GenericPool<M>[]) new GenericPool<?>[0];
+			this.mMessagePoolTable = SparseArrayUtils.toIndexedArray(this.mMessagePools, emptyMessagePoolTable);
+		}
+	}
+
+	private GenericPool<M> getMessagePool(final short pFlag) {
+		final GenericPool<M>[] messagePoolTable = this.mMessagePoolTable;
+		if(messagePoolTable != null) {
+			if(pFlag >= 0 && pFlag < messagePoolTable.length) {
+				return messagePoolTable[pFlag];
+			} else {
+				return null;
+			}
+		} else {
+			return this.mMessagePools.get(pFlag);
+		}
+	}
+
 	// ===========================================================
 	// Inner and Anonymous Classes
 	// ===========================================================
+
+	private static class ReflectionMessageFactory<M extends IMessage> implements IMessageFactory<M> {
+		// ===========================================================
+		// Constants
+		// ===========================================================
+
+		// ===========================================================
+		// Fields
+		// ===========================================================
+
+		private final Class<? extends M> mMessageClass;
+
+		// ===========================================================
+		// Constructors
+		// ===========================================================
+
+		public ReflectionMessageFactory(final Class<? extends M> pMessageClass) {
+			this.mMessageClass = pMessageClass;
+		}
+
+		// ===========================================================
+		// Getter & Setter
+		// ===========================================================
+
+		// ===========================================================
+		// Methods for/from SuperClass/Interfaces
+		// ===========================================================
+
+		@Override
+		public M newMessage() {
+			try {
+				return this.mMessageClass.newInstance();
+			} catch (final Throwable t) {
+				throw new IllegalStateException("Could not instantiate: '" + this.mMessageClass.getName() + "'. It needs an accessible no-arg constructor.", t);
+			}
+		}
+
+		// ===========================================================
+		// Methods
+		// ===========================================================
+
+		// ===========================================================
+		// Inner and Anonymous Classes
+		// ===========================================================
+	}
 }
@@ -0,0 +1,68 @@
+package org.anddev.andengine.extension.multiplayer.protocol.util;
+
+import java.lang.reflect.Array;
+
+import android.util.SparseArray;
+
+/**
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 17:20:36 - 11.07.2011
+ */
+public class SparseArrayUtils {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Copies the {@link SparseArray} into a plain array, where the value of each key is stored at the index of the key.
+	 * Only sensible for densely packed keys.
+	 * @param pEmptyArray only used to determine the component type of the returned array.
+	 * @throws IllegalArgumentException when the {@link SparseArray} contains a negative key.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T[] toIndexedArray(final SparseArray<? extends T> pSparseArray, final T[] pEmptyArray) {
+		final int size = pSparseArray.size();
+
+		int keyMaximum = -1;
+		for(int i = 0; i < size; i++) {
+			final int key = pSparseArray.keyAt(i);
+			if(key < 0) {
+				throw new IllegalArgumentException("Negative key: '" + key + "' can't be used as an index.");
+			}
+			keyMaximum = Math.max(keyMaximum, key);
+		}
+
+		final T[] indexedArray = (T[]) Array.newInstance(pEmptyArray.getClass().getComponentType(), keyMaximum + 1);
+		for(int i = 0; i < size; i++) {
+			indexedArray[pSparseArray.keyAt(i)] = pSparseArray.valueAt(i);
+		}
+		return indexedArray;
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+}
@@ -0,0 +1,235 @@
+package org.anddev.andengine.extension.multiplayer.protocol.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Variable-length encoding of non-negative integers: 7 bits per byte, least significant group first,
+ * the most significant bit of each byte is set when more bytes follow.
+ * Signed values are zig-zag encoded first (0, -1, 1, -2, 2, ... become 0, 1, 2, 3, 4, ...), so values close to zero stay short either way.
+ * 
+ * (c) 2010 Nicolas Gramlich 
+ * (c) 2011 Zynga Inc.
+ * 
+ * @author Nicolas Gramlich
+ * @since 14:03:55 - 08.07.2011
+ */
+public class VarIntUtils {
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	public static final int VARINT_SIZE_MAXIMUM = 5;
+	public static final int VARLONG_SIZE_MAXIMUM = 10;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	// ===========================================================
+	// Methods for/from SuperClass/Interfaces
+	// ===========================================================
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	public static int encodeZigZag(final int pValue) {
+		return (pValue << 1) ^ (pValue >> 31);
+	}
+
+	public static int decodeZigZag(final int pValue) {
+		return (pValue >>> 1) ^ -(pValue & 1);
+	}
+
+	public static long encodeZigZag(final long pValue) {
+		return (pValue << 1) ^ (pValue >> 63);
+	}
+
+	public static long decodeZigZag(final long pValue) {
+		return (pValue >>> 1) ^ -(pValue & 1);
+	}
+
+	public static int getVarIntSize(final int pValue) {
+		if((pValue & (0xFFFFFFFF << 7)) == 0) {
+			return 1;
+		} else if((pValue & (0xFFFFFFFF << 14)) == 0) {
+			return 2;
+		} else if((pValue & (0xFFFFFFFF << 21)) == 0) {
+			return 3;
+		} else if((pValue & (0xFFFFFFFF << 28)) == 0) {
+			return 4;
+		} else {
+			return 5;
+		}
+	}
+
+	public static int getVarLongSize(final long pValue) {
+		int size = 1;
+		long value = pValue;
+		while((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	public static void writeVarInt(final DataOutput pDataOutput, final int pValue) throws IOException {
+		int value = pValue;
+		while((value & ~0x7F) != 0) {
+			pDataOutput.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		pDataOutput.writeByte(value);
+	}
+
+	/**
+	 * @return the offset right behind the written bytes.
+	 */
+	public static int writeVarInt(final byte[] pBuffer, final int pOffset, final int pValue) {
+		int value = pValue;
+		int offset = pOffset;
+		while((value & ~0x7F) != 0) {
+			pBuffer[offset++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		pBuffer[offset++] = (byte)value;
+		return offset;
+	}
+
+	/**
+	 * @throws BufferOverflowException when the {@link ByteBuffer} has not enough space remaining.
+	 */
+	public static void writeVarInt(final ByteBuffer pByteBuffer, final int pValue) {
+		int value = pValue;
+		while((value & ~0x7F) != 0) {
+			pByteBuffer.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		pByteBuffer.put((byte)value);
+	}
+
+	public static void writeVarLong(final DataOutput pDataOutput, final long pValue) throws IOException {
+		long value = pValue;
+		while((value & ~0x7FL) != 0) {
+			pDataOutput.writeByte((int)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		pDataOutput.writeByte((int)value);
+	}
+
+	/**
+	 * @throws BufferOverflowException when the {@link ByteBuffer} has not enough space remaining.
+	 */
+	public static void writeVarLong(final ByteBuffer pByteBuffer, final long pValue) {
+		long value = pValue;
+		while((value & ~0x7FL) != 0) {
+			pByteBuffer.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		pByteBuffer.put((byte)value);
+	}
+
+	public static void writeSignedVarInt(final DataOutput pDataOutput, final int pValue) throws IOException {
+		VarIntUtils.writeVarInt(pDataOutput, VarIntUtils.encodeZigZag(pValue));
+	}
+
+	public static void writeSignedVarInt(final ByteBuffer pByteBuffer, final int pValue) {
+		VarIntUtils.writeVarInt(pByteBuffer, VarIntUtils.encodeZigZag(pValue));
+	}
+
+	public static void writeSignedVarLong(final DataOutput pDataOutput, final long pValue) throws IOException {
+		VarIntUtils.writeVarLong(pDataOutput, VarIntUtils.encodeZigZag(pValue));
+	}
+
+	public static void writeSignedVarLong(final ByteBuffer pByteBuffer, final long pValue) {
+		VarIntUtils.writeVarLong(pByteBuffer, VarIntUtils.encodeZigZag(pValue));
+	}
+
+	public static int readVarInt(final DataInput pDataInput) throws IOException {
+		int value = 0;
+		for(int shift = 0; shift < 7 * VARINT_SIZE_MAXIMUM; shift += 7) {
+			final byte b = pDataInput.readByte();
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("VarInt is longer than " + VARINT_SIZE_MAXIMUM + " bytes.");
+	}
+
+	/**
+	 * @throws BufferUnderflowException when the {@link ByteBuffer} ends within the varint.
+	 */
+	public static int readVarInt(final ByteBuffer pByteBuffer) throws StreamCorruptedException {
+		int value = 0;
+		for(int shift = 0; shift < 7 * VARINT_SIZE_MAXIMUM; shift += 7) {
+			final byte b = pByteBuffer.get();
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("VarInt is longer than " + VARINT_SIZE_MAXIMUM + " bytes.");
+	}
+
+	public static long readVarLong(final DataInput pDataInput) throws IOException {
+		long value = 0;
+		for(int shift = 0; shift < 7 * VARLONG_SIZE_MAXIMUM; shift += 7) {
+			final byte b = pDataInput.readByte();
+			value |= (long)(b & 0x7F) << shift;
+			if((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("VarLong is longer than " + VARLONG_SIZE_MAXIMUM + " bytes.");
+	}
+
+	/**
+	 * @throws BufferUnderflowException when the {@link ByteBuffer} ends within the varlong.
+	 */
+	public static long readVarLong(final ByteBuffer pByteBuffer) throws StreamCorruptedException {
+		long value = 0;
+		for(int shift = 0; shift < 7 * VARLONG_SIZE_MAXIMUM; shift += 7) {
+			final byte b = pByteBuffer.get();
+			value |= (long)(b & 0x7F) << shift;
+			if((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("VarLong is longer than " + VARLONG_SIZE_MAXIMUM + " bytes.");
+	}
+
+	public static int readSignedVarInt(final DataInput pDataInput) throws IOException {
+		return VarIntUtils.decodeZigZag(VarIntUtils.readVarInt(pDataInput));
+	}
+
+	public static int readSignedVarInt(final ByteBuffer pByteBuffer) throws StreamCorruptedException {
+		return VarIntUtils.decodeZigZag(VarIntUtils.readVarInt(pByteBuffer));
+	}
+
+	public static long readSignedVarLong(final DataInput pDataInput) throws IOException {
+		return VarIntUtils.decodeZigZag(VarIntUtils.readVarLong(pDataInput));
+	}
+
+	public static long readSignedVarLong(final ByteBuffer pByteBuffer) throws StreamCorruptedException {
+		return VarIntUtils.decodeZigZag(VarIntUtils.readVarLong(pByteBuffer));
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+}